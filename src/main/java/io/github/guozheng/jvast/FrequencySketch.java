@@ -0,0 +1,81 @@
+package io.github.guozheng.jvast;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate, lock-free access counts of keys, a count-min sketch of four hashed counters per key. All
+ * counters are halved once enough increments have been seen, so counts describe recent traffic. Counts may
+ * be over-estimated on hash collisions and a concurrent halving may lose a few increments, both are fine
+ * for deciding cache admission.
+ */
+final class FrequencySketch {
+  private static final int[] SEEDS = {0x97cb3127, 0xab7f3ab5, 0xc6a4a793, 0x8f87c6fd};
+  // increments per counter between two halvings, the one increment reaching the sample size halves them
+  private static final int SAMPLE_FACTOR = 10;
+
+  private final AtomicIntegerArray counters;
+  private final int mask;
+  private final int sampleSize;
+  private final AtomicInteger additions = new AtomicInteger();
+
+  /**
+   * Create a sketch.
+   * @param expectedKeys    {@code int} expected number of distinct keys in recent traffic
+   */
+  FrequencySketch(int expectedKeys) {
+    final int width = Integer.highestOneBit(Math.max(expectedKeys, 16) - 1) << 1;
+    this.counters = new AtomicIntegerArray(width);
+    this.mask = width - 1;
+    this.sampleSize = width * SAMPLE_FACTOR;
+  }
+
+  /**
+   * Count an access of a key.
+   * @param key       {@link Object} key
+   * @return          {@code int} estimated recent accesses of the key, including this one
+   */
+  int increment(Object key) {
+    final int hash = spread(key.hashCode());
+    int min = Integer.MAX_VALUE;
+    for (int seed : SEEDS) {
+      min = Math.min(min, counters.incrementAndGet(index(hash, seed)));
+    }
+    if (additions.incrementAndGet() == sampleSize) {
+      age();
+    }
+    return min;
+  }
+
+  /**
+   * Get the estimated recent accesses of a key.
+   * @param key       {@link Object} key
+   * @return          {@code int} estimated recent accesses of the key
+   */
+  int frequency(Object key) {
+    final int hash = spread(key.hashCode());
+    int min = Integer.MAX_VALUE;
+    for (int seed : SEEDS) {
+      min = Math.min(min, counters.get(index(hash, seed)));
+    }
+    return min;
+  }
+
+  private void age() {
+    additions.set(0);
+    for (int i = 0; i < counters.length(); i++) {
+      counters.set(i, counters.get(i) >>> 1);
+    }
+  }
+
+  private int index(int hash, int seed) {
+    int h = (hash + seed) * seed;
+    h += h >>> 16;
+    return h & mask;
+  }
+
+  private static int spread(int hash) {
+    final int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
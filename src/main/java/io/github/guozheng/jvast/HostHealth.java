@@ -0,0 +1,122 @@
+package io.github.guozheng.jvast;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recent latency and failures of the requests to one host. Latencies go to a lock-free histogram of four
+ * buckets per power of two microseconds, halved once enough samples have been seen so percentiles follow
+ * recent traffic. Consecutive failures open a circuit breaker, an open host is not requested until its open
+ * time is over, then a single trial request closes it again or keeps it open.
+ */
+final class HostHealth {
+  // 4 sub-buckets per power of two microseconds, up to about a minute
+  private static final int BUCKETS = 104;
+  private static final int SAMPLE_SIZE = 1024;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicInteger samples = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicLong openUntil = new AtomicLong();
+  private final int failureThreshold;
+  private final long openNanos;
+
+  /**
+   * Create the health of a host.
+   * @param failureThreshold    {@code int} consecutive failures opening the circuit breaker
+   * @param openTime            {@link Duration} time the breaker stays open before a trial request
+   */
+  HostHealth(int failureThreshold, Duration openTime) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openTime.toNanos();
+  }
+
+  /**
+   * Record a successful request, it closes the circuit breaker.
+   * @param latencyNanos    {@code long} time from sending the request to getting its response
+   */
+  void success(long latencyNanos) {
+    buckets.incrementAndGet(bucket(latencyNanos / 1000L));
+    if (samples.incrementAndGet() == SAMPLE_SIZE) {
+      age();
+    }
+    failures.set(0);
+  }
+
+  /**
+   * Record a failed request, enough consecutive ones open the circuit breaker.
+   */
+  void failure() {
+    if (failures.incrementAndGet() >= failureThreshold) {
+      openUntil.set(System.nanoTime() + openNanos);
+    }
+  }
+
+  /**
+   * Check whether the host may be requested. Once the open time is over, only the first caller gets to send
+   * a trial request, the breaker stays open for the others until the trial completes.
+   * @return      {@code boolean} true if the host may be requested, false while the breaker is open
+   */
+  boolean allowRequest() {
+    if (failures.get() < failureThreshold) {
+      return true;
+    }
+    final long until = openUntil.get();
+    final long now = System.nanoTime();
+    return now - until >= 0 && openUntil.compareAndSet(until, now + openNanos);
+  }
+
+  /**
+   * Get a latency percentile of the recent requests.
+   * @param percentile    {@code double} percentile between 0 and 1, e.g. 0.95
+   * @param minSamples    {@code int} minimum number of recent samples
+   * @return              {@code long} upper bound of the percentile in nanoseconds, or -1 if there are fewer
+   *                      samples
+   */
+  long latencyNanos(double percentile, int minSamples) {
+    long total = 0L;
+    final long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total < minSamples || total == 0L) {
+      return -1L;
+    }
+    final long rank = (long) Math.ceil(percentile * total);
+    long seen = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return upperBound(i) * 1000L;
+      }
+    }
+    return upperBound(BUCKETS - 1) * 1000L;
+  }
+
+  private void age() {
+    samples.set(0);
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, buckets.get(i) >>> 1);
+    }
+  }
+
+  static int bucket(long micros) {
+    if (micros < 4L) {
+      return (int) Math.max(micros, 0L);
+    }
+    final int log = 63 - Long.numberOfLeadingZeros(micros);
+    final int sub = (int) (micros >>> (log - 2)) & 3;
+    return Math.min(((log - 1) << 2) + sub, BUCKETS - 1);
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < 4) {
+      return bucket + 1L;
+    }
+    final int log = (bucket >> 2) + 1;
+    return (5L + (bucket & 3)) << (log - 2);
+  }
+}
@@ -0,0 +1,196 @@
+package io.github.guozheng.jvast;
+
+import java.nio.ByteBuffer;
+import io.github.guozheng.jvast.util.Splicer;
+import io.github.guozheng.jvast.util.StringUtil;
+import io.github.guozheng.jvast.util.VastIndex;
+
+/**
+ * Scratch state of one processing call: the element index, the Ad element numbers and their splicers, and
+ * output buffers. A fresh instance is used per call by default. In pooled mode every thread keeps one
+ * instance that is borrowed for a call and released once the output is written, so in steady state a
+ * call allocates nothing but its result. Buffers are sized from the output length and only grow.
+ */
+final class ScratchBuffers {
+  // buffers larger than this are dropped on release instead of staying reachable from the thread
+  private static final int MAX_RETAINED_LENGTH = 4 << 20;
+  private static final int DEFAULT_ADS = 8;
+
+  private static final ThreadLocal<ScratchBuffers> POOL = ThreadLocal.withInitial(ScratchBuffers::new);
+
+  private final boolean pooled;
+  private boolean inUse;
+
+  private VastIndex index;
+  private int[] ads = new int[DEFAULT_ADS];
+  private Splicer[] splicers = new Splicer[DEFAULT_ADS];
+  private int adCount;
+
+  private StringBuilder chars;
+  private char[] charArray;
+  private byte[] bytes;
+  private ByteBuffer byteBuffer;
+
+  private ScratchBuffers() {
+    this(true);
+  }
+
+  private ScratchBuffers(boolean pooled) {
+    this.pooled = pooled;
+  }
+
+  /**
+   * Create scratch state for one call, it is not pooled.
+   * @return      {@link ScratchBuffers} fresh scratch state
+   */
+  static ScratchBuffers create() {
+    return new ScratchBuffers(false);
+  }
+
+  /**
+   * Borrow the scratch state of the current thread, a nested call on the same thread gets fresh scratch state.
+   * @return      {@link ScratchBuffers} scratch state, to be released after the output is written
+   */
+  static ScratchBuffers borrow() {
+    final ScratchBuffers scratch = POOL.get();
+    if (scratch.inUse) {
+      return create();
+    }
+    scratch.inUse = true;
+    return scratch;
+  }
+
+  /**
+   * Release borrowed scratch state. References to the doc and to inserted fragments are cleared, oversized
+   * output buffers are dropped.
+   */
+  void release() {
+    if (!pooled) {
+      return;
+    }
+    for (int i = 0; i < adCount; i++) {
+      splicers[i].reset(StringUtil.EMPTY, 0, 0);
+    }
+    adCount = 0;
+    if (index != null) {
+      index.reindex(StringUtil.EMPTY);
+    }
+    if (chars != null && chars.capacity() > MAX_RETAINED_LENGTH) {
+      chars = null;
+    }
+    if (charArray != null && charArray.length > MAX_RETAINED_LENGTH) {
+      charArray = null;
+    }
+    if (bytes != null && bytes.length > MAX_RETAINED_LENGTH) {
+      bytes = null;
+      byteBuffer = null;
+    }
+    inUse = false;
+  }
+
+  /**
+   * Index a doc, reusing the index of a previous call.
+   * @param doc       {@link CharSequence} vast doc
+   * @return          {@link VastIndex} element offset index of the doc
+   */
+  VastIndex index(CharSequence doc) {
+    index = index == null ? VastIndex.of(doc) : index.reindex(doc);
+    return index;
+  }
+
+  /**
+   * Make room for the Ad elements of the indexed doc.
+   * @param capacity    {@code int} maximum number of Ad elements
+   */
+  void ensureAdCapacity(int capacity) {
+    if (ads.length < capacity) {
+      ads = new int[capacity];
+      final Splicer[] grown = new Splicer[capacity];
+      System.arraycopy(splicers, 0, grown, 0, splicers.length);
+      splicers = grown;
+    }
+    adCount = 0;
+  }
+
+  /**
+   * Add an Ad element and get its splicer over the Ad element range of the doc.
+   * @param ad      {@code int} Ad element number
+   * @param doc     {@link CharSequence} vast doc
+   * @param start   {@code int} start index of the Ad element, inclusive
+   * @param end     {@code int} end index of the Ad element, exclusive
+   */
+  void addAd(int ad, CharSequence doc, int start, int end) {
+    ads[adCount] = ad;
+    splicers[adCount] = splicers[adCount] == null
+        ? new Splicer(doc, start, end)
+        : splicers[adCount].reset(doc, start, end);
+    adCount++;
+  }
+
+  int adCount() {
+    return adCount;
+  }
+
+  int ad(int i) {
+    return ads[i];
+  }
+
+  Splicer splicer(int i) {
+    return splicers[i];
+  }
+
+  Splicer[] splicers() {
+    return splicers;
+  }
+
+  /**
+   * Get an empty char buffer, it is sized by the caller.
+   * @return              {@link StringBuilder} empty buffer
+   */
+  StringBuilder chars() {
+    if (chars == null) {
+      chars = new StringBuilder(0);
+    }
+    chars.setLength(0);
+    return chars;
+  }
+
+  /**
+   * Copy a char buffer into a reused char array, e.g. for writing to a {@link java.io.Writer}.
+   * @param sb      {@link StringBuilder} chars to copy
+   * @return        {@code char[]} array holding the chars at its start
+   */
+  char[] charArray(StringBuilder sb) {
+    if (charArray == null || charArray.length < sb.length()) {
+      charArray = new char[sb.length()];
+    }
+    sb.getChars(0, sb.length(), charArray, 0);
+    return charArray;
+  }
+
+  /**
+   * Get a byte buffer with room for the output.
+   * @param length      {@code int} output length in bytes
+   * @return            {@code byte[]} buffer of at least the length
+   */
+  byte[] bytes(int length) {
+    if (bytes == null || bytes.length < length) {
+      bytes = new byte[length];
+      byteBuffer = null;
+    }
+    return bytes;
+  }
+
+  /**
+   * Get the byte buffer wrapped for a channel write.
+   * @param length      {@code int} number of bytes to write
+   * @return            {@link ByteBuffer} buffer over the first bytes of {@link #bytes(int)}
+   */
+  ByteBuffer byteBuffer(int length) {
+    if (byteBuffer == null) {
+      byteBuffer = ByteBuffer.wrap(bytes);
+    }
+    byteBuffer.clear().limit(length);
+    return byteBuffer;
+  }
+}
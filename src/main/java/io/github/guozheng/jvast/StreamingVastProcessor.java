@@ -0,0 +1,405 @@
+package io.github.guozheng.jvast;
+
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_POSTFIX;
+import static io.github.guozheng.jvast.util.VideoAdUtil.getVastPrefix;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import io.github.guozheng.jvast.model.AdTypeVersion;
+import io.github.guozheng.jvast.model.CompiledInputData;
+import io.github.guozheng.jvast.model.ProcessingInput;
+import io.github.guozheng.jvast.util.ByteCharSequence;
+import io.github.guozheng.jvast.util.Splicer;
+import io.github.guozheng.jvast.util.StringUtil;
+import io.github.guozheng.jvast.util.VastIndex;
+import io.github.guozheng.jvast.util.VideoAdUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Processes a UTF-8 encoded VAST or VMAP doc incrementally as chunks of the upstream body arrive.
+ * Chunks are pushed with {@link #feed(ByteBuffer)} and {@link #finish()}, or by subscribing this processor
+ * to an upstream {@link Flow.Publisher}. The output is published downstream in pieces: the VAST prefix as
+ * soon as the type and version are sniffed, each processed {@code <Ad>...</Ad>} as soon as it closes, and
+ * the VAST postfix when the input finishes. A VAST 4.x doc keeps its own envelope, the input bytes around
+ * the Ad elements are published as they are instead. A VMAP doc keeps its envelope too and is published one
+ * processed {@code <vmap:AdBreak>} element at a time. The concatenated output equals the output of
+ * {@link VideoAdProcessor#process(byte[], ProcessingInput)}. Only the unfinished tail of the input, i.e. the
+ * current {@code <Ad>} or {@code <vmap:AdBreak>} element or a partial tag, is carried across chunk boundaries.
+ * Docs that are neither VAST nor VMAP are passed through unchanged.
+ * Feeding is not thread safe, chunks must be fed by one thread at a time.
+ */
+public class StreamingVastProcessor extends SubmissionPublisher<ByteBuffer>
+    implements Flow.Processor<ByteBuffer, ByteBuffer> {
+  private static final Logger LOGGER = LogManager.getLogger(StreamingVastProcessor.class);
+
+  // give up looking for the root element after this many bytes and pass the doc through unchanged
+  static final int SNIFF_LIMIT = 8 * 1024;
+
+  private static final int INITIAL_CAPACITY = 8 * 1024;
+  private static final int NOT_FOUND = -1;
+  private static final int NEED_MORE = -2;
+  private static final String AD_OPEN = "<Ad";
+  private static final String AD_CLOSE = "</Ad";
+  private static final String AD_BREAK_OPEN = "<vmap:AdBreak";
+  private static final String AD_BREAK_CLOSE = "</vmap:AdBreak";
+  private static final String COMMENT_OPEN = "<!--";
+  private static final String COMMENT_CLOSE = "-->";
+  private static final String CDATA_OPEN = "<![CDATA[";
+  private static final String CDATA_CLOSE = "]]>";
+
+  private final CompiledInputData inputData;
+
+  private byte[] pending = new byte[INITIAL_CAPACITY];
+  private int size;
+  private int scanPos;
+  private int adStart = NOT_FOUND;
+  // start of the pending bytes not published yet, only tracked for a doc keeping its envelope
+  private int flushed;
+
+  private volatile AdTypeVersion adTypeVersion;
+  private boolean passThrough;
+  private boolean keepEnvelope;
+  private boolean vmap;
+  // open and close tag of the elements published one at a time, Ad or vmap:AdBreak
+  private String unitOpen = AD_OPEN;
+  private String unitClose = AD_CLOSE;
+  private boolean finished;
+  private Flow.Subscription subscription;
+
+  /**
+   * Create a streaming processor publishing on the common pool with the default buffer size.
+   * @param inputData       {@link ProcessingInput} input data for processing
+   */
+  public StreamingVastProcessor(ProcessingInput inputData) {
+    this(inputData, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+  }
+
+  /**
+   * Create a streaming processor.
+   * @param inputData           {@link ProcessingInput} input data for processing
+   * @param executor            {@link Executor} executor delivering output to subscribers
+   * @param maxBufferCapacity   {@code int} maximum number of output pieces buffered per subscriber
+   */
+  public StreamingVastProcessor(ProcessingInput inputData, Executor executor, int maxBufferCapacity) {
+    super(executor, maxBufferCapacity);
+    this.inputData = inputData.compile();
+  }
+
+  /**
+   * Get the sniffed video ad type and version.
+   * @return      {@link AdTypeVersion} ad type and version, null until the root element has arrived
+   */
+  public AdTypeVersion getAdTypeVersion() {
+    return adTypeVersion;
+  }
+
+  /**
+   * Feed the next chunk of the UTF-8 encoded input. The remaining bytes of the chunk are copied, the chunk
+   * position is not changed and the chunk can be reused once this method returns. Publishing blocks while
+   * a subscriber's buffer is full.
+   * @param chunk     {@link ByteBuffer} next chunk of the input
+   */
+  public void feed(ByteBuffer chunk) {
+    if (finished) {
+      throw new IllegalStateException("Streaming VAST processor is already finished");
+    }
+    if (passThrough) {
+      submit(copyOf(chunk));
+      return;
+    }
+    append(chunk);
+    if (adTypeVersion == null && !sniff(false)) {
+      return;
+    }
+    if (!passThrough) {
+      scanAds();
+    }
+  }
+
+  /**
+   * Signal the end of the input, publish what is left and close the processor. An unclosed trailing
+   * {@code <Ad>} element is dropped, or kept as it is for a VAST 4.x doc, the same as
+   * {@link VideoAdProcessor#process(byte[], ProcessingInput)} does.
+   */
+  public void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (adTypeVersion == null) {
+      sniff(true);
+    }
+    if (!passThrough) {
+      scanAds();
+      if (keepEnvelope) {
+        // the root close tag and anything after the last Ad element
+        publishRaw(flushed, size);
+      } else {
+        if (adStart != NOT_FOUND) {
+          LOGGER.debug("vast doc has an unclosed ad element, dropped {} bytes", size - adStart);
+        }
+        submit(ByteBuffer.wrap(VAST_POSTFIX.getBytes(StandardCharsets.UTF_8)));
+      }
+    }
+    pending = null;
+    close();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    subscription.request(1);
+  }
+
+  @Override
+  public void onNext(ByteBuffer item) {
+    try {
+      feed(item);
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to process streaming VAST chunk", e);
+      subscription.cancel();
+      onError(e);
+      return;
+    }
+    subscription.request(1);
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    finished = true;
+    pending = null;
+    closeExceptionally(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    finish();
+  }
+
+  /**
+   * Sniff the video ad type and version once the root element has arrived, and publish the VAST prefix unless
+   * the doc keeps its own envelope, as VAST 4.x and VMAP docs do.
+   * @param last      {@code boolean} true if no more input will arrive
+   * @return          {@code boolean} true if the type and version are decided, false if more input is needed
+   */
+  private boolean sniff(boolean last) {
+    final ByteCharSequence doc = new ByteCharSequence(pending, 0, size);
+    if (!last && size < SNIFF_LIMIT && !hasCompleteTag(doc, "<VAST") && !hasCompleteTag(doc, "<vmap:VMAP")) {
+      return false;
+    }
+    final AdTypeVersion typeVersion = VideoAdUtil.getVideoAdType(doc);
+    if (typeVersion.isVast4()) {
+      keepEnvelope = true;
+    } else if (VmapProcessor.isVmap(typeVersion)) {
+      keepEnvelope = true;
+      vmap = true;
+      unitOpen = AD_BREAK_OPEN;
+      unitClose = AD_BREAK_CLOSE;
+    } else if (typeVersion.getType().equals("VAST")) {
+      submit(ByteBuffer.wrap(getVastPrefix(typeVersion.getVersion()).getBytes(StandardCharsets.UTF_8)));
+    } else {
+      LOGGER.error("Unsupported video ad type or version: {}, pass through", typeVersion);
+      passThrough = true;
+      if (size > 0) {
+        submit(ByteBuffer.wrap(Arrays.copyOf(pending, size)));
+      }
+      size = 0;
+    }
+    adTypeVersion = typeVersion;
+    return true;
+  }
+
+  /**
+   * Scan the pending bytes for complete Ad elements, or AdBreak elements of a VMAP doc, publish each one as
+   * soon as it closes and drop the consumed bytes. Comments and CDATA sections are skipped as a whole.
+   */
+  private void scanAds() {
+    int pos = scanPos;
+    while (true) {
+      final int lt = StringUtil.indexOf(pending, (byte) '<', pos, size);
+      if (lt == NOT_FOUND) {
+        pos = size;
+        break;
+      }
+      final int skipped = skipMarkup(lt);
+      if (skipped == NEED_MORE) {
+        pos = lt;
+        break;
+      }
+      if (skipped != lt) {
+        pos = skipped;
+        continue;
+      }
+      final int match = matchTag(lt, adStart == NOT_FOUND ? unitOpen : unitClose);
+      if (match == NEED_MORE) {
+        pos = lt;
+        break;
+      }
+      if (match == NOT_FOUND) {
+        pos = lt + 1;
+      } else if (adStart == NOT_FOUND) {
+        if (keepEnvelope) {
+          // the prolog and root open tag, or the bytes in between two Ad or AdBreak elements
+          publishRaw(flushed, lt);
+          flushed = lt;
+        }
+        adStart = lt;
+        pos = match;
+      } else {
+        final int gt = StringUtil.indexOf(pending, (byte) '>', match, size);
+        if (gt == NOT_FOUND) {
+          pos = lt;
+          break;
+        }
+        if (vmap) {
+          publishBreak(adStart, gt + 1);
+        } else {
+          publishAd(adStart, gt + 1);
+        }
+        flushed = gt + 1;
+        adStart = NOT_FOUND;
+        pos = gt + 1;
+      }
+    }
+    compact(pos);
+  }
+
+  /**
+   * Process one complete Ad element and publish the UTF-8 encoded output.
+   * @param start     {@code int} start of the Ad element in the pending bytes
+   * @param end       {@code int} end of the Ad element in the pending bytes
+   */
+  private void publishAd(int start, int end) {
+    final ByteCharSequence ad = new ByteCharSequence(pending, start, end - start);
+    for (Splicer splicer : VastProcessor.spliceAds(ad, inputData)) {
+      byte[] out = new byte[splicer.utf8Length()];
+      splicer.writeUtf8(out, 0);
+      submit(ByteBuffer.wrap(out));
+    }
+  }
+
+  /**
+   * Process one complete AdBreak element of a VMAP doc and publish the UTF-8 encoded output.
+   * @param start     {@code int} start of the AdBreak element in the pending bytes
+   * @param end       {@code int} end of the AdBreak element in the pending bytes
+   */
+  private void publishBreak(int start, int end) {
+    final Splicer splicer = VmapProcessor.spliceBreak(new ByteCharSequence(pending, start, end - start), inputData);
+    byte[] out = new byte[splicer.utf8Length()];
+    splicer.writeUtf8(out, 0);
+    submit(ByteBuffer.wrap(out));
+  }
+
+  /**
+   * Publish a range of the pending bytes as they are.
+   * @param start     {@code int} start of the range in the pending bytes
+   * @param end       {@code int} end of the range in the pending bytes
+   */
+  private void publishRaw(int start, int end) {
+    if (end > start) {
+      submit(ByteBuffer.wrap(Arrays.copyOfRange(pending, start, end)));
+    }
+  }
+
+  /**
+   * Skip a comment or CDATA section starting at {@code lt}.
+   * @param lt        {@code int} position of '&lt;' in the pending bytes
+   * @return          {@code int} position after the section, {@code lt} if there is no section,
+   *     or {@link #NEED_MORE} if the section is not complete yet
+   */
+  private int skipMarkup(int lt) {
+    if (lt + 1 >= size) {
+      return NEED_MORE;
+    }
+    if (pending[lt + 1] != '!') {
+      return lt;
+    }
+    if (lt + CDATA_OPEN.length() > size) {
+      return NEED_MORE;
+    }
+    String close;
+    int from;
+    if (StringUtil.regionMatches(pending, lt, COMMENT_OPEN)) {
+      close = COMMENT_CLOSE;
+      from = lt + COMMENT_OPEN.length();
+    } else if (StringUtil.regionMatches(pending, lt, CDATA_OPEN)) {
+      close = CDATA_CLOSE;
+      from = lt + CDATA_OPEN.length();
+    } else {
+      return lt;
+    }
+    final int idx = StringUtil.indexOf(pending, close, from, size);
+    return idx == NOT_FOUND ? NEED_MORE : idx + close.length();
+  }
+
+  /**
+   * Match a tag name at {@code lt}, the name must be followed by whitespace, '&gt;' or '/'.
+   * @param lt        {@code int} position of '&lt;' in the pending bytes
+   * @param tag       {@link String} '&lt;' followed by the tag name
+   * @return          {@code int} position after the tag name, {@link #NOT_FOUND} if it does not match,
+   *     or {@link #NEED_MORE} if more input is needed to decide
+   */
+  private int matchTag(int lt, String tag) {
+    final int nameEnd = lt + tag.length();
+    if (nameEnd >= size) {
+      return NEED_MORE;
+    }
+    if (!StringUtil.regionMatches(pending, lt, tag)) {
+      return NOT_FOUND;
+    }
+    final byte next = pending[nameEnd];
+    return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\n' || next == '\r'
+        ? nameEnd : NOT_FOUND;
+  }
+
+  /**
+   * Drop the consumed pending bytes, keeping the current Ad or AdBreak element or the partial tag at {@code pos}. For a
+   * doc keeping its envelope the dropped bytes outside of Ad elements are published first.
+   * @param pos       {@code int} position to resume scanning from
+   */
+  private void compact(int pos) {
+    final int keep = adStart != NOT_FOUND ? adStart : pos;
+    if (keepEnvelope) {
+      publishRaw(flushed, keep);
+      flushed = 0;
+    }
+    if (keep > 0) {
+      System.arraycopy(pending, keep, pending, 0, size - keep);
+      size -= keep;
+      if (adStart != NOT_FOUND) {
+        adStart -= keep;
+      }
+    }
+    scanPos = pos - keep;
+  }
+
+  private void append(ByteBuffer chunk) {
+    final int length = chunk.remaining();
+    if (size + length > pending.length) {
+      pending = Arrays.copyOf(pending, Math.max(pending.length << 1, size + length));
+    }
+    chunk.duplicate().get(pending, size, length);
+    size += length;
+  }
+
+  private static ByteBuffer copyOf(ByteBuffer chunk) {
+    byte[] copy = new byte[chunk.remaining()];
+    chunk.duplicate().get(copy);
+    return ByteBuffer.wrap(copy);
+  }
+
+  private static boolean hasCompleteTag(ByteCharSequence doc, String tag) {
+    final int idx = StringUtil.indexOf(doc, tag, 0, doc.length());
+    return idx != NOT_FOUND && VastIndex.tagEnd(doc, idx, doc.length()) != NOT_FOUND;
+  }
+}
@@ -1,99 +1,60 @@
 package io.github.guozheng.jvast;
 
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_COMPANION_ELEMENT_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_COMPANION_ELEMENT_WITH_ATTRS;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_CREATIVES;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_CREATIVE_EXTENSIONS_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_DURATION_ELEMENT_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_ERROR_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_HTML_RESOURCE_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_IFRAME_RESOURCE_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_IMPRESSION;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_LINEAR_ELEMENT_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_LINEAR_ELEMENT_WITHOUT_ATTRS;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_LINEAR_ELEMENT_WITH_ATTRS;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_NON_LINEAR;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_NON_LINEAR_ADS_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_NON_LINEAR_ADS_WITHOUT_ATTRS;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_NON_LINEAR_ADS_WITH_ATTRS;
 import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_POSTFIX;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_STATIC_RESOURCE_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENT;
 import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENTS;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENTS_END;
-import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_VIDEO_CLICKS_ELEMENT;
-import static io.github.guozheng.jvast.util.VideoAdUtil.buildPixelElements;
-import static io.github.guozheng.jvast.util.VideoAdUtil.buildTrackingEventElements;
 import static io.github.guozheng.jvast.util.VideoAdUtil.getVastPrefix;
-import static io.github.guozheng.jvast.util.VideoAdUtil.isInline;
-import static io.github.guozheng.jvast.util.VideoAdUtil.isWrapper;
-
-import com.google.common.collect.Multimap;
-import java.util.HashSet;
+import static io.github.guozheng.jvast.util.VastIndex.NOT_FOUND;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import io.github.guozheng.jvast.model.Ad;
-import io.github.guozheng.jvast.model.InputData;
-import io.github.guozheng.jvast.model.Pair;
-import io.github.guozheng.jvast.model.PixelElementType;
-import io.github.guozheng.jvast.model.TrackingEventElementType;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import io.github.guozheng.jvast.model.CompiledInputData;
+import io.github.guozheng.jvast.model.MacroValues;
+import io.github.guozheng.jvast.model.ProcessingInput;
+import io.github.guozheng.jvast.model.ProcessingOptions;
 import io.github.guozheng.jvast.model.AdTypeVersion;
-import io.github.guozheng.jvast.util.VideoAdUtil;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.util.EditScript;
+import io.github.guozheng.jvast.util.MacroTemplate;
+import io.github.guozheng.jvast.util.PixelFragments;
+import io.github.guozheng.jvast.util.Splicer;
+import io.github.guozheng.jvast.util.StringUtil;
+import io.github.guozheng.jvast.util.VastIndex;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.util.Strings;
-import io.github.guozheng.jvast.util.StringUtil;
 
 /**
- * A utility class for processing VAST doc.
+ * A utility class for processing VAST doc. A VAST 2.0 or 3.0 doc is rebuilt from its Ad elements under a
+ * standard VAST root element. A VAST 4.x doc keeps its own prolog and root element, with their namespaces,
+ * and is copied by offset from the source outside of the insertions. VMAP docs go through the same entry
+ * points and are kept whole too, their AdBreak elements are processed by {@link VmapProcessor} in place
+ * of Ad elements.
  */
 public class VastProcessor {
-  private static Set<Pair<String, String>> TRACKING_EVENT_PARENTS = new HashSet<>(4);
-
-  static {
-    // opening parent elements, e.g. Linear, NonLinear, Companion
-    TRACKING_EVENT_PARENTS.add(new Pair(VAST_LINEAR_ELEMENT_WITH_ATTRS, VAST_LINEAR_ELEMENT_END));
-    TRACKING_EVENT_PARENTS.add(new Pair(VAST_LINEAR_ELEMENT_WITHOUT_ATTRS, VAST_LINEAR_ELEMENT_END));
-
-    TRACKING_EVENT_PARENTS.add(new Pair(VAST_NON_LINEAR_ADS_WITH_ATTRS, VAST_NON_LINEAR_ADS_END));
-    TRACKING_EVENT_PARENTS.add(new Pair(VAST_NON_LINEAR_ADS_WITHOUT_ATTRS, VAST_NON_LINEAR_ADS_END));
-
-    TRACKING_EVENT_PARENTS.add(new Pair(VAST_COMPANION_ELEMENT_WITH_ATTRS, VAST_COMPANION_ELEMENT_END));
-  }
-
   private static final Logger LOGGER = LogManager.getLogger(VastProcessor.class);
 
+  // ranges of ads per fork/join worker, more than one so workers finishing early can steal the rest
+  private static final int SPLITS_PER_WORKER = 4;
+
   /**
    * Process a VAST doc from a {@link StringBuilder} input, e.g. insert pixels.
    *
    * @param vastDocBuilder      {@link StringBuilder} the StringBuilder holding the input VAST doc
    * @param adTypeVersion       {@link AdTypeVersion} ad type and version for input VAST doc
-   * @param inputData           {@link InputData} input data for processing
+   * @param inputData           {@link ProcessingInput} input data for processing
    * @return                    {@link StringBuilder} the StringBuilder holding the output VAST doc
    */
   public static StringBuilder process(StringBuilder vastDocBuilder,
       final AdTypeVersion adTypeVersion,
-      final InputData inputData) {
-    StringBuilder builder = new StringBuilder();
-    final String version = adTypeVersion.getVersion();
-
-    // split the entire VAST xml into multiple ads
-    List<Ad> ads = VideoAdUtil.splitVastDoc(vastDocBuilder);
-
-    // process each ad
-    for (Ad ad : ads) {
-      if (ad.getContent() != null) {
-        ad = processSingleAd(ad, inputData);
-        LOGGER.debug("============ ad content: {}", ad.getContent());
-        builder.append(ad.getContent());
-      }
-    }
-
-    // construct the result VAST xml
-    builder.append(VAST_POSTFIX); // add postfix
-    builder.insert(0, getVastPrefix(version)); // prepend prefix
-
-    return builder;
+      final ProcessingInput inputData) {
+    return process((CharSequence) vastDocBuilder, adTypeVersion, inputData);
   }
 
   /**
@@ -101,192 +62,725 @@ public class VastProcessor {
    *
    * @param vastDoc           {@link String} the String holding the input VAST doc
    * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
-   * @param inputData         {@link InputData} input data for processing
+   * @param inputData         {@link ProcessingInput} input data for processing
    * @return                  {@link StringBuilder} the StringBuilder holding the output VAST doc
    */
   public static StringBuilder process(String vastDoc,
       final AdTypeVersion adTypeVersion,
-      final InputData inputData) {
-    return process(new StringBuilder(vastDoc), adTypeVersion, inputData);
+      final ProcessingInput inputData) {
+    return process((CharSequence) vastDoc, adTypeVersion, inputData);
   }
 
   /**
-   * Update ad data, e.g. insert pixels.
-   * //TODO: move all the other vast processing logic here
-   * @param ad               {@link Ad} ad data
-   * @param inputData        {@link InputData} ad processing input data
-   * @return                 {@link Ad} updated ad data
+   * Process a VAST doc from any {@link CharSequence} input, e.g. insert pixels. The input is read in place,
+   * a {@link io.github.guozheng.jvast.util.ByteCharSequence} is decoded from UTF-8 only while building output.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @return                  {@link StringBuilder} the StringBuilder holding the output VAST doc
+   */
+  public static StringBuilder process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData) {
+    return process(vastDoc, adTypeVersion, inputData, new StringBuilder(0));
+  }
+
+  /**
+   * Process a VAST doc and append the output to a {@link StringBuilder}, e.g. a reused scratch buffer.
+   * The builder grows at most once.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param builder           {@link StringBuilder} output builder
+   * @return                  {@link StringBuilder} the output builder
+   */
+  public static StringBuilder process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      StringBuilder builder) {
+    return process(vastDoc, adTypeVersion, inputData, builder, ProcessingOptions.defaults());
+  }
+
+  /**
+   * Process a VAST doc and append the output to a {@link StringBuilder}, the ads of a large doc are processed
+   * in parallel as configured by the options. The builder grows at most once.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param builder           {@link StringBuilder} output builder
+   * @param options           {@link ProcessingOptions} thresholds and pool for processing ads in parallel
+   * @return                  {@link StringBuilder} the output builder
    */
-  private static Ad processSingleAd(Ad ad,
-      final InputData inputData) {
-    StringBuilder adXml = ad.getContent();
-    LOGGER.debug("Single ad before processing: {}", adXml);
+  public static StringBuilder process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      StringBuilder builder,
+      final ProcessingOptions options) {
+    final ScratchBuffers scratch = scratch(options);
+    try {
+      splice(vastDoc, inputData, options, scratch, adTypeVersion);
+      return appendTo(builder, prefix(adTypeVersion), postfix(adTypeVersion), scratch);
+    } finally {
+      scratch.release();
+    }
+  }
 
-    if (Strings.isEmpty(adXml)) {
-      LOGGER.debug("Null or empty ad content from ad, skip ad processing");
-      return ad; // do nothing
+  /**
+   * Process a VAST doc and encode the output as UTF-8, e.g. insert pixels. Unchanged ranges of a
+   * {@link io.github.guozheng.jvast.util.ByteCharSequence} input are copied as raw bytes without decoding.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @return                  {@code byte[]} UTF-8 encoded output VAST doc
+   */
+  public static byte[] processToUtf8(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData) {
+    return processToUtf8(vastDoc, adTypeVersion, inputData, ProcessingOptions.defaults());
+  }
+
+  /**
+   * Process a VAST doc and encode the output as UTF-8, the ads of a large doc are processed in parallel as
+   * configured by the options.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param options           {@link ProcessingOptions} thresholds and pool for processing ads in parallel
+   * @return                  {@code byte[]} UTF-8 encoded output VAST doc
+   */
+  public static byte[] processToUtf8(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      final ProcessingOptions options) {
+    final ScratchBuffers scratch = scratch(options);
+    try {
+      splice(vastDoc, inputData, options, scratch, adTypeVersion);
+      final String vastPrefix = prefix(adTypeVersion);
+      final String vastPostfix = postfix(adTypeVersion);
+
+      // construct the result VAST xml in one exactly-sized byte array
+      byte[] out = new byte[utf8Length(vastPrefix, vastPostfix, scratch)];
+      encodeUtf8(out, vastPrefix, vastPostfix, scratch);
+      return out;
+    } finally {
+      scratch.release();
     }
+  }
 
-    boolean isWrapperVast = isWrapper(adXml);
-    boolean isInLineVast = isInline(adXml);
-    if (!isWrapperVast && !isInLineVast) {
-      LOGGER.debug("Invalid ad content from AdData, not Wrapper or InLine vast, skip ad processing");
-      return ad; // do nothing
+  /**
+   * Process a VAST doc and append the output to an {@link Appendable}, e.g. insert pixels. The prefix,
+   * each Ad element and the postfix are appended in order, no intermediate output doc is built.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param out               {@link Appendable} output
+   * @throws IOException      if appending to the output fails
+   */
+  public static void process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      Appendable out) throws IOException {
+    process(vastDoc, adTypeVersion, inputData, out, ProcessingOptions.defaults());
+  }
+
+  /**
+   * Process a VAST doc and append the output to an {@link Appendable}. By default the prefix, each Ad element
+   * and the postfix are appended in order. In pooled mode the output is built in a pooled buffer and handed
+   * over in one call, a {@link Writer} gets it as a pooled char array so nothing is copied into a String.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param out               {@link Appendable} output
+   * @param options           {@link ProcessingOptions} pooling, thresholds and pool for processing ads in parallel
+   * @throws IOException      if appending to the output fails
+   */
+  public static void process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      Appendable out,
+      final ProcessingOptions options) throws IOException {
+    final ScratchBuffers scratch = scratch(options);
+    try {
+      splice(vastDoc, inputData, options, scratch, adTypeVersion);
+      final String vastPrefix = prefix(adTypeVersion);
+      final String vastPostfix = postfix(adTypeVersion);
+      if (!options.isPooled()) {
+        out.append(vastPrefix);
+        for (int i = 0; i < scratch.adCount(); i++) {
+          scratch.splicer(i).appendTo(out);
+        }
+        out.append(vastPostfix);
+        return;
+      }
+      final StringBuilder chars = appendTo(scratch.chars(), vastPrefix, vastPostfix, scratch);
+      if (out instanceof Writer) {
+        // Writer.append(CharSequence) would copy the chars into a String first
+        ((Writer) out).write(scratch.charArray(chars), 0, chars.length());
+      } else {
+        out.append(chars);
+      }
+    } finally {
+      scratch.release();
+    }
+  }
+
+  /**
+   * Process a VAST doc and write the UTF-8 encoded output to an {@link OutputStream}, e.g. insert pixels.
+   * The prefix, each Ad element and the postfix are written in order, no intermediate output doc is built.
+   * Unchanged ranges of a {@link io.github.guozheng.jvast.util.ByteCharSequence} input are written straight
+   * from the input bytes.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param out               {@link OutputStream} output stream
+   * @throws IOException      if writing to the output stream fails
+   */
+  public static void process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      OutputStream out) throws IOException {
+    process(vastDoc, adTypeVersion, inputData, out, ProcessingOptions.defaults());
+  }
+
+  /**
+   * Process a VAST doc and write the UTF-8 encoded output to an {@link OutputStream}. By default the prefix,
+   * each Ad element and the postfix are written in order. In pooled mode the output is encoded into a pooled
+   * byte array and written in one call.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param out               {@link OutputStream} output stream
+   * @param options           {@link ProcessingOptions} pooling, thresholds and pool for processing ads in parallel
+   * @throws IOException      if writing to the output stream fails
+   */
+  public static void process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      OutputStream out,
+      final ProcessingOptions options) throws IOException {
+    final ScratchBuffers scratch = scratch(options);
+    try {
+      splice(vastDoc, inputData, options, scratch, adTypeVersion);
+      final String vastPrefix = prefix(adTypeVersion);
+      final String vastPostfix = postfix(adTypeVersion);
+      if (!options.isPooled()) {
+        StringUtil.writeUtf8(out, vastPrefix, 0, vastPrefix.length());
+        for (int i = 0; i < scratch.adCount(); i++) {
+          scratch.splicer(i).writeUtf8(out);
+        }
+        StringUtil.writeUtf8(out, vastPostfix, 0, vastPostfix.length());
+        return;
+      }
+      final int length = utf8Length(vastPrefix, vastPostfix, scratch);
+      final byte[] bytes = scratch.bytes(length);
+      encodeUtf8(bytes, vastPrefix, vastPostfix, scratch);
+      out.write(bytes, 0, length);
+    } finally {
+      scratch.release();
+    }
+  }
+
+  /**
+   * Process a VAST doc and write the UTF-8 encoded output to a blocking {@link WritableByteChannel}. By default
+   * the output is written through an {@link OutputStream} view of the channel. In pooled mode the output is
+   * encoded into a pooled byte array and written with a pooled buffer wrapping it.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param out               {@link WritableByteChannel} output channel
+   * @param options           {@link ProcessingOptions} pooling, thresholds and pool for processing ads in parallel
+   * @throws IOException      if writing to the output channel fails
+   */
+  public static void process(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData,
+      WritableByteChannel out,
+      final ProcessingOptions options) throws IOException {
+    if (!options.isPooled()) {
+      process(vastDoc, adTypeVersion, inputData, Channels.newOutputStream(out), options);
+      return;
+    }
+    final ScratchBuffers scratch = scratch(options);
+    try {
+      splice(vastDoc, inputData, options, scratch, adTypeVersion);
+      final String vastPrefix = prefix(adTypeVersion);
+      final String vastPostfix = postfix(adTypeVersion);
+      final int length = utf8Length(vastPrefix, vastPostfix, scratch);
+      encodeUtf8(scratch.bytes(length), vastPrefix, vastPostfix, scratch);
+      final ByteBuffer buffer = scratch.byteBuffer(length);
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+    } finally {
+      scratch.release();
+    }
+  }
+
+  /**
+   * Process a VAST doc into an {@link EditScript}, e.g. insert pixels. The output is kept as segments,
+   * slices of the input and inserted fragments, so the input is never copied.
+   *
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version for input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @return                  {@link EditScript} the output VAST doc as segments
+   */
+  public static EditScript processToEditScript(CharSequence vastDoc,
+      final AdTypeVersion adTypeVersion,
+      final ProcessingInput inputData) {
+    final ScratchBuffers scratch = ScratchBuffers.create();
+    splice(vastDoc, inputData, ProcessingOptions.defaults(), scratch, adTypeVersion);
+    EditScript script = new EditScript(vastDoc).append(prefix(adTypeVersion));
+    for (int i = 0; i < scratch.adCount(); i++) {
+      scratch.splicer(i).appendTo(script);
+    }
+    return script.append(postfix(adTypeVersion));
+  }
+
+  /**
+   * Index a VAST doc and collect insertions for each Ad element, nothing is copied until the caller
+   * builds the output.
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @return                  {@code List<Splicer>} insertions recorded against each Ad element range
+   */
+  static List<Splicer> spliceAds(CharSequence vastDoc, final ProcessingInput inputData) {
+    final ScratchBuffers scratch = ScratchBuffers.create();
+    splice(vastDoc, inputData, ProcessingOptions.defaults(), scratch, null);
+    return Arrays.asList(scratch.splicers()).subList(0, scratch.adCount());
+  }
+
+  /**
+   * Check if a doc keeps its own envelope, the prolog and root element, rather than being rebuilt from its
+   * Ad elements.
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version, null for a doc rebuilt from its Ad elements
+   * @return                  {@code boolean} true for VAST 4.x and VMAP docs, false otherwise
+   */
+  static boolean keepsEnvelope(AdTypeVersion adTypeVersion) {
+    return adTypeVersion != null && (adTypeVersion.isVast4() || VmapProcessor.isVmap(adTypeVersion));
+  }
+
+  /**
+   * Get the prefix of the output doc, empty for a doc copied with its own envelope.
+   */
+  private static String prefix(AdTypeVersion adTypeVersion) {
+    return keepsEnvelope(adTypeVersion) ? "" : getVastPrefix(adTypeVersion.getVersion());
+  }
+
+  /**
+   * Get the postfix of the output doc, empty for a doc copied with its own envelope.
+   */
+  private static String postfix(AdTypeVersion adTypeVersion) {
+    return keepsEnvelope(adTypeVersion) ? "" : VAST_POSTFIX;
+  }
+
+  /**
+   * Split an indexed doc into ranges covering the entire doc, one per element of a type, each with an empty
+   * splicer. A range runs from the end of the previous element to the close tag end of its element, so the
+   * first range also holds the prolog and root open tag. The last range is the tail of the doc after the
+   * last element, e.g. the root close tag, its element number is {@link VastIndex#NOT_FOUND}. An element
+   * that is not closed ends the ranges and is left in the tail.
+   * @param index       {@link VastIndex} element offset index of the doc
+   * @param scratch     {@link ScratchBuffers} scratch state receiving the ranges
+   * @param type        {@link VastElementType} element type, e.g. Ad or vmap:AdBreak
+   * @return            {@code int} number of element ranges, not counting the tail
+   */
+  static int addRanges(VastIndex index, ScratchBuffers scratch, VastElementType type) {
+    final CharSequence doc = index.getDoc();
+    final int length = doc.length();
+    scratch.ensureAdCapacity(index.count(type) + 1);
+    int start = 0;
+    for (int element = index.first(type, 0, length); element != NOT_FOUND && index.isClosed(element);
+        element = index.first(type, index.closeEnd(element), length)) {
+      scratch.addAd(element, doc, start, index.closeEnd(element));
+      start = index.closeEnd(element);
     }
+    final int elements = scratch.adCount();
+    scratch.addAd(NOT_FOUND, doc, start, length);
+    return elements;
+  }
+
+  /**
+   * Get the scratch state of one call, borrowed from the pool of the current thread in pooled mode.
+   */
+  private static ScratchBuffers scratch(ProcessingOptions options) {
+    return options.isPooled() ? ScratchBuffers.borrow() : ScratchBuffers.create();
+  }
+
+  /**
+   * Index a VAST doc and collect edits for each Ad element into the scratch state. Ad elements are independent
+   * ranges of the doc, for a doc over the size or ad count thresholds of the options they are processed in
+   * parallel with fork/join, the splicers are kept in the original order either way. For a doc keeping its
+   * envelope the ranges cover the entire doc and are followed by the untouched tail of the doc, the AdBreak
+   * ranges of a VMAP doc are processed the same way.
+   * @param vastDoc           {@link CharSequence} the input VAST doc
+   * @param inputData         {@link ProcessingInput} input data for processing
+   * @param options           {@link ProcessingOptions} thresholds and pool for processing ads in parallel
+   * @param scratch           {@link ScratchBuffers} scratch state receiving the index and the splicers
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version, null for a doc rebuilt from its Ad elements
+   */
+  private static void splice(CharSequence vastDoc, final ProcessingInput inputData,
+      final ProcessingOptions options, ScratchBuffers scratch, AdTypeVersion adTypeVersion) {
+    final CompiledInputData compiled = inputData.compile();
+
+    // index the entire VAST xml once, every pass below looks up element offsets in the index
+    final VastIndex index = scratch.index(vastDoc);
+
+    final int length = vastDoc.length();
+    final boolean vmap = VmapProcessor.isVmap(adTypeVersion);
+    final int ads;
+    if (keepsEnvelope(adTypeVersion)) {
+      ads = addRanges(index, scratch, vmap ? VastElementType.VmapAdBreak : VastElementType.Ad);
+    } else {
+      // ads that need no edits end up as a splicer without insertions, a straight copy of the source range,
+      // an Ad element that is not closed ends the ads
+      scratch.ensureAdCapacity(index.count(VastElementType.Ad));
+      for (int ad = index.first(VastElementType.Ad, 0, length); ad != NOT_FOUND && index.isClosed(ad);
+          ad = index.first(VastElementType.Ad, index.closeEnd(ad), length)) {
+        scratch.addAd(ad, vastDoc, index.openStart(ad), index.closeEnd(ad));
+      }
+      ads = scratch.adCount();
+    }
+
+    if (ads > 1 && (length >= options.getParallelDocLength() || ads >= options.getParallelAdCount())) {
+      final ForkJoinPool pool = options.getForkJoinPool();
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Processing {} {} of {} chars in parallel", ads, vmap ? "ad breaks" : "ads", length);
+      }
+      pool.invoke(new SpliceTask(index, compiled, scratch, vmap, 0, ads,
+          Math.max(1, ads / (pool.getParallelism() * SPLITS_PER_WORKER))));
+    } else {
+      for (int i = 0; i < ads; i++) {
+        processRange(index, compiled, scratch, vmap, i);
+      }
+    }
+  }
+
+  /**
+   * Collect insertions for one Ad element of a VAST doc, or one AdBreak element of a VMAP doc.
+   */
+  private static void processRange(VastIndex index, CompiledInputData inputData, ScratchBuffers scratch,
+      boolean vmap, int i) {
+    if (vmap) {
+      VmapProcessor.processBreak(index, scratch.ad(i), inputData, scratch.splicer(i));
+    } else {
+      processSingleAd(index, scratch.ad(i), inputData, scratch.splicer(i));
+    }
+  }
+
+  /**
+   * Append the prefix, the spliced Ad elements and the postfix to a {@link StringBuilder}, growing it at most once.
+   */
+  private static StringBuilder appendTo(StringBuilder builder, String vastPrefix, String vastPostfix,
+      ScratchBuffers scratch) {
+    int length = vastPrefix.length() + vastPostfix.length();
+    for (int i = 0; i < scratch.adCount(); i++) {
+      length += scratch.splicer(i).length();
+    }
+    builder.ensureCapacity(builder.length() + length);
+    builder.append(vastPrefix);
+    for (int i = 0; i < scratch.adCount(); i++) {
+      scratch.splicer(i).appendTo(builder);
+    }
+    return builder.append(vastPostfix);
+  }
+
+  /**
+   * Get the UTF-8 encoded length of the prefix, the spliced Ad elements and the postfix.
+   */
+  private static int utf8Length(String vastPrefix, String vastPostfix, ScratchBuffers scratch) {
+    int length = StringUtil.utf8Length(vastPrefix, 0, vastPrefix.length())
+        + StringUtil.utf8Length(vastPostfix, 0, vastPostfix.length());
+    for (int i = 0; i < scratch.adCount(); i++) {
+      length += scratch.splicer(i).utf8Length();
+    }
+    return length;
+  }
+
+  /**
+   * Encode the prefix, the spliced Ad elements and the postfix as UTF-8 into a byte array sized with
+   * {@link #utf8Length(String, String, ScratchBuffers)}.
+   */
+  private static void encodeUtf8(byte[] out, String vastPrefix, String vastPostfix, ScratchBuffers scratch) {
+    int pos = StringUtil.encodeUtf8(vastPrefix, 0, vastPrefix.length(), out, 0);
+    for (int i = 0; i < scratch.adCount(); i++) {
+      pos = scratch.splicer(i).writeUtf8(out, pos);
+    }
+    StringUtil.encodeUtf8(vastPostfix, 0, vastPostfix.length(), out, pos);
+  }
+
+  /**
+   * Process a range of the ads, or the ad breaks, of one doc, split in halves until a range holds at most
+   * {@code grain} of them.
+   */
+  private static final class SpliceTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final VastIndex index;
+    private final CompiledInputData inputData;
+    private final ScratchBuffers scratch;
+    private final boolean vmap;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    SpliceTask(VastIndex index, CompiledInputData inputData, ScratchBuffers scratch, boolean vmap,
+        int from, int to, int grain) {
+      this.index = index;
+      this.inputData = inputData;
+      this.scratch = scratch;
+      this.vmap = vmap;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        for (int i = from; i < to; i++) {
+          processRange(index, inputData, scratch, vmap, i);
+        }
+        return;
+      }
+      final int mid = (from + to) >>> 1;
+      invokeAll(new SpliceTask(index, inputData, scratch, vmap, from, mid, grain),
+          new SpliceTask(index, inputData, scratch, vmap, mid, to, grain));
+    }
+  }
 
-    Multimap<PixelElementType, String> pixelMap = inputData.getPixelMap();
-    Multimap<TrackingEventElementType, String> trackingEventMap = inputData.getTrackingEventMap();
+  /**
+   * Collect insertions for one Ad element, e.g. pixels. The doc itself is left untouched.
+   * //TODO: move all the other vast processing logic here
+   * @param index            {@link VastIndex} element offset index of the vast doc
+   * @param ad               {@code int} Ad element number in the index
+   * @param inputData        {@link CompiledInputData} compiled ad processing input data
+   * @param splicer          {@link Splicer} empty splicer over the Ad element range
+   * @return                 {@link Splicer} insertions recorded against the Ad element range
+   */
+  static Splicer processSingleAd(VastIndex index,
+      int ad,
+      final CompiledInputData inputData,
+      Splicer splicer) {
+    final int inLine = index.firstChild(ad, VastElementType.InLine);
+    final int adBody = inLine != NOT_FOUND ? inLine : index.firstChild(ad, VastElementType.Wrapper);
+    if (adBody == NOT_FOUND || !index.isClosed(adBody)) {
+      LOGGER.debug("Invalid ad content from AdData, not Wrapper or InLine vast, skip ad processing");
+      return splicer; // do nothing
+    }
 
-    if (!pixelMap.isEmpty() || !trackingEventMap.isEmpty()) {
+    if (!inputData.isEmpty()) {
       // insert pixels and tracking events
-      insertPixelsAndTrackingEvents(adXml, isInLineVast, pixelMap, trackingEventMap);
+      insertPixelsAndTrackingEvents(index, splicer, adBody, inLine != NOT_FOUND, inputData.getFragments());
     }
 
-    ad.setContent(adXml); // update adData
-    LOGGER.debug("Single ad after processing: {}", adXml);
+    if (inLine == NOT_FOUND && inputData.getMacros() != null) {
+      // fill per-request macros of the redirect url of Wrapper VAST
+      replaceAdTagUriMacros(index, splicer, adBody, inputData.getMacros());
+    }
+
+    LOGGER.debug("Single ad after processing: {}", splicer);
 
-    return ad;
+    return splicer;
   }
 
 
-  private static StringBuilder insertPixelsAndTrackingEvents(StringBuilder vastDocBuilder,
+  private static Splicer insertPixelsAndTrackingEvents(VastIndex index,
+      Splicer splicer,
+      int adBody,
       boolean isInLineVast,
-      Multimap<PixelElementType, String> pixelMap,
-      Multimap<TrackingEventElementType, String> trackingEventMap) {
+      PixelFragments fragments) {
 
     ///////////////// insert <Ad> level pixels, e.g. Impression, Error ////////////////
     LOGGER.debug("Start inserting Ad level pixels into {} VAST...", isInLineVast ? "InLine" : "Wrapper");
-    int idx = -1;
-    // according to VAST 3.0 XML schema, <Error> must appear before <Impression>
-    // although in real world, this is not enforced, e.g. we've seen VAST from demand source having
-    // mixed order for Error and Impression
-    idx = vastDocBuilder.lastIndexOf(VAST_ERROR_END);
-    if (idx != -1) {
-      // if <Error> pixels exist already, insert after the last <Error> pixel
-      vastDocBuilder.insert(idx + VAST_ERROR_END.length(), buildPixelElements(pixelMap));
-    } else {
-      // if no existing <Error> pixels, insert before the first <Impression> pixel
-      idx = vastDocBuilder.indexOf(VAST_IMPRESSION);
-      if (idx != -1) {
-        // search for existing <Impression element
-        // note <Impression> element might have id attribute, so we use open element tag
-        // if exists, then insert ad level v2 pixels before the first <Impression> element
-        vastDocBuilder.insert(idx, buildPixelElements(pixelMap));
-      } else {
-        // if there is no existing <Impression> element, insert v2 pixels before <Creatives> element
-        // according to schema, <Creatives> element is required, and it does not have any attribute
-        idx = vastDocBuilder.indexOf(VAST_CREATIVES);
-        vastDocBuilder.insert(idx, buildPixelElements(pixelMap));
-      }
+    if (!insertAdPixels(index, splicer, adBody, fragments.getAdPixels())) {
+      return splicer;
     }
-    LOGGER.debug("==== Inserted Ad level pixels: {}", pixelMap);
+    LOGGER.debug("==== Inserted Ad level pixels: {}", fragments.getAdPixels());
+    final int creatives = index.firstChild(adBody, VastElementType.Creatives);
 
+    if (creatives == NOT_FOUND || !index.isClosed(creatives)) {
+      LOGGER.debug("No {} element found, skip Creative level Tracking Events", VastElementType.Creatives);
+      return splicer;
+    }
 
     ///////////////// insert creative level TrackingEvent pixels, e.g. start, complete ////////////
+    final CharSequence trackingEvents = fragments.getTrackingEvents();
+    final CharSequence trackingEventsElement = fragments.getTrackingEventsElement();
     // different cases: Linear, NonLinear, Companion
     if (isInLineVast) {
       // InLine VAST
       LOGGER.debug("Start inserting Creative level Tracking Events for InLine VAST...");
-      insertTrackingInLineVastLinearCreative(vastDocBuilder, idx, trackingEventMap);
-      insertTrackingNonLinearCreative(vastDocBuilder, idx, trackingEventMap);
-      insertTrackingCompanionCreative(vastDocBuilder, idx, trackingEventMap);
+      insertTrackingInLineVastLinearCreative(index, splicer, creatives, trackingEvents, trackingEventsElement);
+      insertTrackingNonLinearCreative(index, splicer, creatives, trackingEvents, trackingEventsElement);
+      insertTrackingCompanionCreative(index, splicer, creatives, trackingEvents, trackingEventsElement);
       LOGGER.debug("==== Inserted Creative level Tracking Events for InLine VAST: {}",
-          trackingEventMap);
+          trackingEvents);
     } else {
       // Wrapper VAST
       LOGGER.debug("Start inserting Creative level Tracking Events for Wrapper VAST...");
-      insertTrackingWrapperVastLinearCreative(vastDocBuilder, idx, trackingEventMap);
-      insertTrackingNonLinearCreative(vastDocBuilder, idx, trackingEventMap);
-      insertTrackingCompanionCreative(vastDocBuilder, idx, trackingEventMap);
+      insertTrackingWrapperVastLinearCreative(index, splicer, creatives, trackingEvents, trackingEventsElement);
+      insertTrackingNonLinearCreative(index, splicer, creatives, trackingEvents, trackingEventsElement);
+      insertTrackingCompanionCreative(index, splicer, creatives, trackingEvents, trackingEventsElement);
       LOGGER.debug("==== Inserted Creative level Tracking Events for Wrapper VAST: {}",
-          trackingEventMap);
+          trackingEvents);
     }
 
     LOGGER.debug("==== pixel insertion DONE ====");
 
-    return vastDocBuilder;
+    return splicer;
+  }
+
+  /**
+   * Insert Ad level pixels into an InLine or a Wrapper element, after the last Error element, or else before the
+   * first Impression element, or else before the VAST 4.x ViewableImpression and AdVerifications elements and the
+   * Creatives element, whichever comes first.
+   * @param index       {@link VastIndex} element offset index of the vast doc
+   * @param splicer     {@link Splicer} insertions recorded against the vast doc
+   * @param adBody      {@code int} InLine or Wrapper element number
+   * @param adPixels    {@link CharSequence} Ad level pixels, Error elements first
+   * @return            {@code boolean} true if inserted, false if there is no insertion point
+   */
+  static boolean insertAdPixels(VastIndex index, Splicer splicer, int adBody, CharSequence adPixels) {
+    // according to VAST 3.0 XML schema, <Error> must appear before <Impression>
+    // although in real world, this is not enforced, e.g. we've seen VAST from demand source having
+    // mixed order for Error and Impression
+    final int error = index.lastChild(adBody, VastElementType.Error);
+    if (error != NOT_FOUND && index.isClosed(error)) {
+      // if <Error> pixels exist already, insert after the last <Error> pixel
+      splicer.insert(index.closeEnd(error), adPixels);
+      return true;
+    }
+    // if no existing <Error> pixels, insert before the first <Impression> pixel
+    // note <Impression> element might have id attribute, the index covers both cases
+    final int impression = index.firstChild(adBody, VastElementType.Impression);
+    if (impression != NOT_FOUND) {
+      splicer.insert(index.openStart(impression), adPixels);
+      return true;
+    }
+    final int creatives = index.firstChild(adBody, VastElementType.Creatives);
+    if (creatives != NOT_FOUND) {
+      // if there is no existing <Impression> element, insert v2 pixels before <Creatives> element
+      // according to schema, <Creatives> element is required, and it does not have any attribute
+      // VAST 4.x places <ViewableImpression> and <AdVerifications> before it
+      int insertionIdx = index.openStart(creatives);
+      final int viewableImpression = index.firstChild(adBody, VastElementType.ViewableImpression);
+      if (viewableImpression != NOT_FOUND) {
+        insertionIdx = Math.min(insertionIdx, index.openStart(viewableImpression));
+      }
+      final int adVerifications = index.firstChild(adBody, VastElementType.AdVerifications);
+      if (adVerifications != NOT_FOUND) {
+        insertionIdx = Math.min(insertionIdx, index.openStart(adVerifications));
+      }
+      splicer.insert(insertionIdx, adPixels);
+      return true;
+    }
+    LOGGER.error("No {} element found, invalid VAST? skip pixel insertion", VastElementType.Creatives);
+    return false;
   }
 
+  /**
+   * Replace macros in the VASTAdTagURI value of a Wrapper VAST with per-request macro values. The value is
+   * parsed in place and the macro values are written straight into the output, macros without a value are
+   * left in place.
+   * @param index       {@link VastIndex} element offset index of the vast doc
+   * @param splicer     {@link Splicer} edits of the Ad element
+   * @param wrapper     {@code int} Wrapper element number
+   * @param macros      {@link MacroValues} per-request macro values
+   */
+  private static void replaceAdTagUriMacros(VastIndex index, Splicer splicer, int wrapper, MacroValues macros) {
+    final int adTagUri = index.firstChild(wrapper, VastElementType.VASTAdTagURI);
+    if (adTagUri == NOT_FOUND || !index.isClosed(adTagUri) || index.isSelfClosing(adTagUri)) {
+      LOGGER.debug("No {} element found, skip macro replacement", VastElementType.VASTAdTagURI);
+      return;
+    }
+    final MacroTemplate template = MacroTemplate.parse(index.getDoc(), index.openEnd(adTagUri),
+        index.closeStart(adTagUri));
+    if (template.isBoundBy(macros)) {
+      splicer.replace(index.openEnd(adTagUri), index.closeStart(adTagUri), template.bind(macros));
+      LOGGER.debug("==== Replaced {} macros in {}", template.slots(), VastElementType.VASTAdTagURI);
+    }
+  }
 
+  /**
+   * Find the existing {@code <TrackingEvents>} element of a creative element, a self-closing
+   * {@code <TrackingEvents/>} has no room for pixels and is treated as missing.
+   * @param index       {@link VastIndex} element offset index of the vast doc
+   * @param creative    {@code int} creative element number, e.g. Linear, NonLinearAds, Companion
+   * @return            {@code int} TrackingEvents element number, or {@link VastIndex#NOT_FOUND}
+   */
+  private static int findTrackingEvents(VastIndex index, int creative) {
+    final int trackingEvents = index.firstChild(creative, VastElementType.TrackingEvents);
+    if (trackingEvents == NOT_FOUND || !index.isClosed(trackingEvents) || index.isSelfClosing(trackingEvents)) {
+      return NOT_FOUND;
+    }
+    return trackingEvents;
+  }
 
   /**
    * Insert Tracking pixels in each Linear creatives inside an InLine VAST.
-   * @param vastDocBuilder         {@link StringBuilder} vast builder
-   * @param idx                 {@code int} start index in the vast builder to process
-   * @param trackingEventMap    {@code Multimap<TrackingEventElementType, String>} pixels to insert
+   * @param index               {@link VastIndex} element offset index of the vast doc
+   * @param splicer             {@link Splicer} insertions recorded against the vast doc
+   * @param creatives           {@code int} Creatives element number in the index
+   * @param trackingPixels      {@link CharSequence} Tracking elements to insert into an existing TrackingEvents
+   * @param trackingEventsElement {@link CharSequence} Tracking elements wrapped in a new TrackingEvents element
    */
-  private static void insertTrackingInLineVastLinearCreative(StringBuilder vastDocBuilder,
-      int idx,
-      Multimap<TrackingEventElementType, String> trackingEventMap) {
+  static void insertTrackingInLineVastLinearCreative(VastIndex index,
+      Splicer splicer,
+      int creatives,
+      CharSequence trackingPixels,
+      CharSequence trackingEventsElement) {
     LOGGER.debug("Inserting Tracking pixels for Linear Creatives in InLine VAST...");
-    int start = idx;
+    final int end = index.closeStart(creatives);
     int count = 0;
 
     // there could be multiple Linear creatives
-    while (start != -1) {
-      LOGGER.trace("Start looking for Linear element #{} inside InLine VAST to insert pixels, start={}",
-          count + 1, start);
-      int pixelInsertionIdx = start;
-      StringBuilder pixelsStringBuilder = null;
-
-      // look for the next close element </Linear>
-      final int linearEnd = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_END, start);
-      if (linearEnd == -1) {
-        LOGGER.trace("Either no Linear creative or all the Linear creatives have been processed already");
-        break;
-      } else {
-        LOGGER.trace("Found {} at index {}", VAST_LINEAR_ELEMENT_END, linearEnd);
-      }
-
-      // Linear element could be either <Linear> without attributes or <Linear ...> with attributes
-      // we need to find out which case it is, check <Linear> first since it is more common
-      int linearStart = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_WITHOUT_ATTRS, start);
-      if (linearStart == -1 || linearStart > linearEnd) {
-        // cannot find <Linear> or we crossed end index to the next Linear creative
-        // try <Linear with attributes as open element, this must exist since we have a close element
-        linearStart = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_WITH_ATTRS, start);
-        if (linearStart == -1 || linearStart > linearEnd) {
-          // this should not happen since we already found a close element </Linear>
-          LOGGER.error("No open Linear element found to match the close Linear element, invalid InLine VAST?");
-          break;
-        } else {
-          // move start index pass open element including the attributes and closing >
-          linearStart = vastDocBuilder.indexOf(">", linearStart) + 1;
-          LOGGER.trace("Linear element has attributes, start index: {}, end index: {}",
-              linearStart, linearEnd);
-        }
-      } else {
-        // Linear element has not attributes, move start index pass open element to the end
-        linearStart += VAST_LINEAR_ELEMENT_WITHOUT_ATTRS.length();
-        LOGGER.trace("Linear element has no attributes, start index: {}, end index: {}",
-            linearStart, linearEnd);
+    for (int linear = index.first(VastElementType.Linear, index.openEnd(creatives), end);
+        linear != NOT_FOUND && index.isClosed(linear);
+        linear = index.first(VastElementType.Linear, index.closeEnd(linear), end)) {
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Found Linear element #{} inside InLine VAST to insert pixels, start index: {}, end index: {}",
+            count + 1, index.openEnd(linear), index.closeStart(linear));
       }
+      int pixelInsertionIdx;
+      CharSequence pixels;
 
       // check if <TrackingEvents> exists already
-      final int trackingEventsStart = vastDocBuilder.indexOf(VAST_TRACKING_EVENTS, linearStart);
-      if (trackingEventsStart == -1 || trackingEventsStart > linearEnd) {
+      final int trackingEvents = findTrackingEvents(index, linear);
+      if (trackingEvents == NOT_FOUND) {
         // current Linear creative does not have TrackingEvents, insert <TrackingEvents> and
         // pixels right after </Duration>, note </Duration> is a required element
-        final int durationEnd = vastDocBuilder.indexOf(VAST_DURATION_ELEMENT_END, linearStart);
-        pixelInsertionIdx = durationEnd + VAST_DURATION_ELEMENT_END.length();
-        pixelsStringBuilder = buildTrackingEventElements(trackingEventMap)
-            .insert(0, VAST_TRACKING_EVENTS)
-            .append(VAST_TRACKING_EVENTS_END);
+        final int duration = index.firstChild(linear, VastElementType.Duration);
+        if (duration != NOT_FOUND && index.isClosed(duration)) {
+          pixelInsertionIdx = index.closeEnd(duration);
+        } else {
+          LOGGER.error("No Duration element found in Linear creative, invalid InLine VAST? "
+              + "insert {} right after the Linear open element", VAST_TRACKING_EVENTS);
+          pixelInsertionIdx = index.openEnd(linear);
+        }
+        pixels = trackingEventsElement;
         LOGGER.trace("Linear creative does not have TrackingEvents, insert {} together with pixels after </Duration>",
-            VAST_TRACKING_EVENT);
+            VAST_TRACKING_EVENTS);
       } else {
         // current Linear creative already has TrackingEvents, insert right after TrackingEvents open element
-        pixelInsertionIdx = trackingEventsStart + VAST_TRACKING_EVENTS.length();
-        pixelsStringBuilder = buildTrackingEventElements(trackingEventMap);
+        pixelInsertionIdx = index.openEnd(trackingEvents);
+        pixels = trackingPixels;
         LOGGER.trace("Linear creative has {} already, just insert pixels in it",
             VAST_TRACKING_EVENTS);
       }
 
-      // insert pixels
-      vastDocBuilder.insert(pixelInsertionIdx, pixelsStringBuilder);
-
-      // update the global start index to look for the next Linear element
-      start = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_END, pixelInsertionIdx) + VAST_LINEAR_ELEMENT_END.length();
+      // record pixel insertion, the doc is not modified so the index stays valid
+      splicer.insert(pixelInsertionIdx, pixels);
       count++;
     }
 
@@ -299,90 +793,62 @@ public class VastProcessor {
 
   /**
    * Insert Tracking pixels in each Linear creatives inside a Wrapper VAST.
-   * @param vastDocBuilder   {@link StringBuilder} vast builder
-   * @param idx           {@code int} start index in the vast builder to process
-   * @param trackingEventMap    {@code Multimap<TrackingEventElementType, String>} pixels to insert
+   * @param index               {@link VastIndex} element offset index of the vast doc
+   * @param splicer             {@link Splicer} insertions recorded against the vast doc
+   * @param creatives           {@code int} Creatives element number in the index
+   * @param trackingPixels      {@link CharSequence} Tracking elements to insert into an existing TrackingEvents
+   * @param trackingEventsElement {@link CharSequence} Tracking elements wrapped in a new TrackingEvents element
    */
-  private static void insertTrackingWrapperVastLinearCreative(StringBuilder vastDocBuilder,
-      int idx,
-      Multimap<TrackingEventElementType, String> trackingEventMap) {
+  static void insertTrackingWrapperVastLinearCreative(VastIndex index,
+      Splicer splicer,
+      int creatives,
+      CharSequence trackingPixels,
+      CharSequence trackingEventsElement) {
     LOGGER.debug("Inserting Tracking pixels for Linear Creatives in Wrapper VAST...");
-    int start = idx;
+    final int end = index.closeStart(creatives);
     int count = 0;
 
     // there could be multiple Linear creatives
-    while (start != -1) {
-      LOGGER.trace("Start looking for Linear element #{} inside Wrapper VAST to insert pixels, start={}",
-          count + 1, start);
-      int pixelInsertionIdx = start;
-      StringBuilder pixelsStringBuilder = null;
-
-      // look for the next close element </Linear>
-      final int linearEnd = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_END, start);
-      if (linearEnd == -1) {
-        LOGGER.trace("Either no Linear creative or all the Linear creatives have been processed already");
-        break;
-      } else {
-        LOGGER.trace("Found {} at index {}", VAST_LINEAR_ELEMENT_END, linearEnd);
-      }
-
-      // <Linear> element in Wrapper VAST does not have attribute, search for <Linear> as open element
-      //TODO: if in the future, Wrapper VAST Linear element could have attributes, then we need to
-      //do the same check as in insertTrackingInLineVastLinearCreative
-      int linearStart = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_WITHOUT_ATTRS, start);
-      if (linearStart == -1 || linearStart > linearEnd) {
-        // this should not happen since we already found a close element </Linear>
-        LOGGER.error("No open Linear element found to match the close Linear element, invalid Wrapper VAST?");
-        break;
-      } else {
-        // move currentStart index pass open element
-        linearStart += VAST_LINEAR_ELEMENT_WITHOUT_ATTRS.length();
-        LOGGER.trace("Linear element has no attributes, start index: {}, end index: {}",
-            linearStart, linearEnd);
+    for (int linear = index.first(VastElementType.Linear, index.openEnd(creatives), end);
+        linear != NOT_FOUND && index.isClosed(linear);
+        linear = index.first(VastElementType.Linear, index.closeEnd(linear), end)) {
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Found Linear element #{} inside Wrapper VAST to insert pixels, start index: {}, end index: {}",
+            count + 1, index.openEnd(linear), index.closeStart(linear));
       }
+      int pixelInsertionIdx;
+      CharSequence pixels;
 
       // check if <TrackingEvents> exists already
-      final int trackingEventsStart = vastDocBuilder.indexOf(VAST_TRACKING_EVENTS, linearStart);
-      if (trackingEventsStart == -1 || trackingEventsStart > linearEnd) {
-        //TODO: create and insert an empty TrackingEvents element?
-
+      final int trackingEvents = findTrackingEvents(index, linear);
+      if (trackingEvents == NOT_FOUND) {
         // current Linear creative does not have TrackingEvents
         // insert before the optional <VideoClicks> element if it exists
-        final int videoClicksStart = vastDocBuilder.indexOf(VAST_VIDEO_CLICKS_ELEMENT, linearStart);
-        if (videoClicksStart == -1 || videoClicksStart > linearEnd) {
+        final int videoClicks = index.firstChild(linear, VastElementType.VideoClicks);
+        if (videoClicks == NOT_FOUND) {
           // <VideoClicks> does not exist, insert before </Linear> element
-          pixelInsertionIdx = linearEnd;
-          pixelsStringBuilder = buildTrackingEventElements(trackingEventMap)
-              .insert(0, VAST_TRACKING_EVENTS)
-              .append(VAST_TRACKING_EVENTS_END);
+          pixelInsertionIdx = index.closeStart(linear);
           LOGGER.trace("Linear creative does not have TrackingEvents, {} not exist, "
-                  + "insert {} together with pixels before {}",
-              VAST_VIDEO_CLICKS_ELEMENT, VAST_TRACKING_EVENTS, VAST_LINEAR_ELEMENT_END);
-
+                  + "insert {} together with pixels before </Linear>",
+              VastElementType.VideoClicks, VAST_TRACKING_EVENTS);
         } else {
           // <VideoClicks> exist, insert before it
-          pixelInsertionIdx = videoClicksStart;
-          pixelsStringBuilder = buildTrackingEventElements(trackingEventMap)
-              .insert(0, VAST_TRACKING_EVENTS)
-              .append(VAST_TRACKING_EVENTS_END);
+          pixelInsertionIdx = index.openStart(videoClicks);
           LOGGER.trace("Linear creative does not have TrackingEvents, but found {}, "
-                  + "insert {} together with pixels before {}",
-              VAST_VIDEO_CLICKS_ELEMENT, VAST_TRACKING_EVENTS, VAST_VIDEO_CLICKS_ELEMENT);
+                  + "insert {} together with pixels before it",
+              VastElementType.VideoClicks, VAST_TRACKING_EVENTS);
         }
-
+        pixels = trackingEventsElement;
       } else {
         // current Linear creative already has TrackingEvents, insert right after TrackingEvents open element
-        pixelInsertionIdx = trackingEventsStart + VAST_TRACKING_EVENTS.length();
-        pixelsStringBuilder = buildTrackingEventElements(trackingEventMap);
+        pixelInsertionIdx = index.openEnd(trackingEvents);
+        pixels = trackingPixels;
         LOGGER.trace("Linear creative has {}, just insert pixels in it",
             VAST_TRACKING_EVENTS);
       }
 
-      // insert pixels
-      vastDocBuilder.insert(pixelInsertionIdx, pixelsStringBuilder);
-
-      // update the global start index to look for the next Linear element
-      start = vastDocBuilder.indexOf(VAST_LINEAR_ELEMENT_END, pixelInsertionIdx) + VAST_LINEAR_ELEMENT_END.length();
+      // record pixel insertion, the doc is not modified so the index stays valid
+      splicer.insert(pixelInsertionIdx, pixels);
       count++;
     }
 
@@ -395,71 +861,58 @@ public class VastProcessor {
 
   /**
    * Insert Tracking pixels in each NonLinear creatives inside an InLine or a Wrapper VAST.
-   * @param vastDocBuilder           {@link StringBuilder} vast builder
-   * @param idx                   {@code int} start index in the vast builder to process
-   * @param trackingEventMap    {@code Multimap<TrackingEventElementType, String>} pixels to insert
+   * @param index               {@link VastIndex} element offset index of the vast doc
+   * @param splicer             {@link Splicer} insertions recorded against the vast doc
+   * @param creatives           {@code int} Creatives element number in the index
+   * @param trackingPixels      {@link CharSequence} Tracking elements to insert into an existing TrackingEvents
+   * @param trackingEventsElement {@link CharSequence} Tracking elements wrapped in a new TrackingEvents element
    */
-  private static void insertTrackingNonLinearCreative(StringBuilder vastDocBuilder,
-      int idx,
-      Multimap<TrackingEventElementType, String> trackingEventMap) {
+  static void insertTrackingNonLinearCreative(VastIndex index,
+      Splicer splicer,
+      int creatives,
+      CharSequence trackingPixels,
+      CharSequence trackingEventsElement) {
     LOGGER.debug("Inserting Tracking pixels for NonLinearAds creatives...");
-    int start = idx;
+    final int end = index.closeStart(creatives);
     int count = 0;
 
     // there might be multiple NonLinear creatives
-    while (start != -1) {
-      LOGGER.trace("Start looking for NonLinearAds element #{} to insert pixels, start={}",
-          count + 1, start);
-      int pixelInsertionIdx = start;
-      StringBuilder pixelsStringBuilder = null;
-
-      // look for the next close element </NonLinearAds>
-      final int nonLinearAdsEnd = vastDocBuilder.indexOf(VAST_NON_LINEAR_ADS_END, start);
-      if (nonLinearAdsEnd == -1) {
-        LOGGER.trace("Either no NonLinearAds creative or all the NonLinearAds creatives have been processed already");
-        break;
-      } else {
-        LOGGER.trace("Found {} at index {}", VAST_NON_LINEAR_ADS_END, nonLinearAdsEnd);
-      }
-
-      // <NonLinearAds> does not have attributes, we can simply search for <NonLinearAds> as open element
-      int nonLinearAdsStart = vastDocBuilder.indexOf(VAST_NON_LINEAR_ADS_WITHOUT_ATTRS, start);
-      if (nonLinearAdsStart == -1 || nonLinearAdsStart > nonLinearAdsEnd) {
-        // this should not happen since we already found a close element </Linear>
-        LOGGER.error("No open NonLinearAds element found to match the close Linear element, invalid Wrapper VAST?");
-        break;
-      } else {
-        // move start index pass open element
-        nonLinearAdsStart += VAST_NON_LINEAR_ADS_WITHOUT_ATTRS.length();
-        LOGGER.trace("Found {}, start index: {}, end index: {}",
-            VAST_NON_LINEAR_ADS_WITHOUT_ATTRS, nonLinearAdsStart, nonLinearAdsEnd);
+    for (int nonLinearAds = index.first(VastElementType.NonLinearAds, index.openEnd(creatives), end);
+        nonLinearAds != NOT_FOUND && index.isClosed(nonLinearAds);
+        nonLinearAds = index.first(VastElementType.NonLinearAds, index.closeEnd(nonLinearAds), end)) {
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Found NonLinearAds element #{} to insert pixels, start index: {}, end index: {}",
+            count + 1, index.openEnd(nonLinearAds), index.closeStart(nonLinearAds));
       }
+      int pixelInsertionIdx;
+      CharSequence pixels;
 
       // check if <TrackingEvents> exists already
-      final int trackingEventsStart = vastDocBuilder.indexOf(VAST_TRACKING_EVENTS, nonLinearAdsStart);
-      if (trackingEventsStart == -1 || trackingEventsStart > nonLinearAdsEnd) {
+      final int trackingEvents = findTrackingEvents(index, nonLinearAds);
+      if (trackingEvents == NOT_FOUND) {
         // current NonLinearAds creative does not have TrackingEvents
         // insert before the required <NonLinear> element
-        final int nonLinearStart = vastDocBuilder.indexOf(VAST_NON_LINEAR, nonLinearAdsStart);
-        pixelInsertionIdx = nonLinearStart;
-        pixelsStringBuilder = buildTrackingEventElements(trackingEventMap)
-            .insert(0, VAST_TRACKING_EVENTS)
-            .append(VAST_TRACKING_EVENTS_END);
+        final int nonLinear = index.firstChild(nonLinearAds, VastElementType.NonLinear);
+        if (nonLinear != NOT_FOUND) {
+          pixelInsertionIdx = index.openStart(nonLinear);
+        } else {
+          LOGGER.error("No NonLinear element found in NonLinearAds, invalid VAST? "
+              + "insert {} before </NonLinearAds>", VAST_TRACKING_EVENTS);
+          pixelInsertionIdx = index.closeStart(nonLinearAds);
+        }
+        pixels = trackingEventsElement;
         LOGGER.trace("NonLinearAds does not have TrackingEvents, insert {} together with pixels before <NonLinear>",
             VAST_TRACKING_EVENTS);
       } else {
         // current NonLinearAds creative already has TrackingEvents, insert right after TrackingEvents open element
-        pixelInsertionIdx = trackingEventsStart + VAST_TRACKING_EVENTS.length();
-        pixelsStringBuilder = buildTrackingEventElements(trackingEventMap);
+        pixelInsertionIdx = index.openEnd(trackingEvents);
+        pixels = trackingPixels;
         LOGGER.trace("NonLinearAds creative has {} already, just insert pixels in it",
             VAST_TRACKING_EVENTS);
       }
 
-      // insert pixels
-      vastDocBuilder.insert(pixelInsertionIdx, pixelsStringBuilder);
-
-      // update the global start index to look for the next NonLinearAds element
-      start = vastDocBuilder.indexOf(VAST_NON_LINEAR_ADS_END, pixelInsertionIdx) + VAST_NON_LINEAR_ADS_END.length();
+      // record pixel insertion, the doc is not modified so the index stays valid
+      splicer.insert(pixelInsertionIdx, pixels);
       count++;
     }
 
@@ -472,119 +925,81 @@ public class VastProcessor {
 
   /**
    * Insert Tracking pixels in each Companion ad inside an InLine or a Wrapper VAST.
-   * @param vastDocBuilder         {@link StringBuilder} vast builder
-   * @param idx                 {@code int} start index in the vast builder to process
-   * @param trackingEventMap    {@code Multimap<TrackingEventElementType, String>} pixels to insert
+   * @param index               {@link VastIndex} element offset index of the vast doc
+   * @param splicer             {@link Splicer} insertions recorded against the vast doc
+   * @param creatives           {@code int} Creatives element number in the index
+   * @param trackingPixels      {@link CharSequence} Tracking elements to insert into an existing TrackingEvents
+   * @param trackingEventsElement {@link CharSequence} Tracking elements wrapped in a new TrackingEvents element
    */
-  private static void insertTrackingCompanionCreative(StringBuilder vastDocBuilder,
-      int idx,
-      Multimap<TrackingEventElementType, String> trackingEventMap) {
+  static void insertTrackingCompanionCreative(VastIndex index,
+      Splicer splicer,
+      int creatives,
+      CharSequence trackingPixels,
+      CharSequence trackingEventsElement) {
     LOGGER.debug("Inserting Tracking pixels for Companion ads in the VAST...");
-    int start = idx;
+    final int end = index.closeStart(creatives);
     int count = 0;
 
     // there could be multiple Companion ads
-    while (start != -1) {
-      // look for the next close element </Companion>
-      LOGGER.trace("Start looking for Companion element #{} to insert pixels, start={}",
-          count + 1, start);
-      int pixelInsertionIdx = start;
-      StringBuilder pixelsStringBuilder = null;
-
-      final int companionEnd = vastDocBuilder.indexOf(VAST_COMPANION_ELEMENT_END, start);
-      if (companionEnd == -1) {
-        LOGGER.trace("Either no Companion ad in VAST or all the Companion ads have been processed already");
-        break;
-      } else {
-        LOGGER.trace("Found {} at index {}", VAST_COMPANION_ELEMENT_END, companionEnd);
-      }
-
-      // <Companion> element has required attributes of width and height, so we can search for
-      // "<Companion " as open element
-      int companionStart = vastDocBuilder.indexOf(VAST_COMPANION_ELEMENT_WITH_ATTRS, start);
-      LOGGER.trace("Found {} at index {}", VAST_COMPANION_ELEMENT_WITH_ATTRS, companionStart);
-      if (companionStart == -1 || companionStart > companionEnd) {
-        // this should not happen since we have close element </Companion> already
-        LOGGER.error("No open Companion element found to match the close Companion element, "
-                + "invalid VAST, companionStart: {}, companionEnd: {}",
-            companionStart, companionEnd);
-        break;
-      } else {
-        // move start index pass open element, find the next > to account for attributes
-        companionStart = vastDocBuilder.indexOf(">", companionStart) + 1;
-        LOGGER.trace("Updated element {} index to {} to include its attributes",
-            VAST_COMPANION_ELEMENT_WITH_ATTRS, companionStart);
+    for (int companion = index.first(VastElementType.Companion, index.openEnd(creatives), end);
+        companion != NOT_FOUND && index.isClosed(companion);
+        companion = index.first(VastElementType.Companion, index.closeEnd(companion), end)) {
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Found Companion element #{} to insert pixels, start index: {}, end index: {}",
+            count + 1, index.openEnd(companion), index.closeStart(companion));
       }
+      int pixelInsertionIdx;
+      CharSequence pixels;
 
       // check if <TrackingEvents> exists already
-      final int trackingEventsStart = vastDocBuilder.indexOf(VAST_TRACKING_EVENTS, companionStart);
-      if (trackingEventsStart == -1 || trackingEventsStart > companionEnd) {
+      final int trackingEvents = findTrackingEvents(index, companion);
+      if (trackingEvents == NOT_FOUND) {
         // current Companion element does not have TrackingEvents
-        // first search for one of the required close elements:
-        // </StaticResource>, </IFrameResource>, </HTMLResource>
-        int requiredElementEnd = StringUtil.findNextNeedleIndex(vastDocBuilder, companionStart, companionEnd,
-            VAST_STATIC_RESOURCE_END, true);
-        if (requiredElementEnd == -1) {
-          requiredElementEnd = StringUtil.findNextNeedleIndex(vastDocBuilder, companionStart, companionEnd,
-              VAST_IFRAME_RESOURCE_END, true);
-          if (requiredElementEnd == -1) {
-            requiredElementEnd = StringUtil.findNextNeedleIndex(vastDocBuilder, companionStart, companionEnd,
-                VAST_HTML_RESOURCE_END, true);
-            if (requiredElementEnd == -1) {
-              // should not happen that all three elements are missing
-              LOGGER.error("One of <StaticResource>, <IFrameResource> or <HTMLResource> elements "
-                  + "must exist in Companion ad, but not, invalid VAST?");
-              break;
-            } else {
-              LOGGER.trace("Found a required element: {} at index {}, searching for {} from the index",
-                  VAST_HTML_RESOURCE_END, requiredElementEnd, VAST_CREATIVE_EXTENSIONS_END);
-            }
-          } else {
-            LOGGER.trace("Found a required element: {} at index {}, searching for {} from the index",
-                VAST_IFRAME_RESOURCE_END, requiredElementEnd, VAST_CREATIVE_EXTENSIONS_END);
-          }
-        } else {
-          LOGGER.trace("Found a required element: {} at index {} , searching for {} from the index",
-              VAST_STATIC_RESOURCE_END, requiredElementEnd, VAST_CREATIVE_EXTENSIONS_END);
+        // first search for one of the required elements:
+        // <StaticResource>, <IFrameResource>, <HTMLResource>
+        int requiredElement = index.firstChild(companion, VastElementType.StaticResource);
+        if (requiredElement == NOT_FOUND) {
+          requiredElement = index.firstChild(companion, VastElementType.IFrameResource);
+        }
+        if (requiredElement == NOT_FOUND) {
+          requiredElement = index.firstChild(companion, VastElementType.HTMLResource);
+        }
+        if (requiredElement == NOT_FOUND || !index.isClosed(requiredElement)) {
+          // should not happen that all three elements are missing
+          LOGGER.error("One of <StaticResource>, <IFrameResource> or <HTMLResource> elements "
+              + "must exist in Companion ad, but not, invalid VAST?");
+          continue;
+        }
+        if (LOGGER.isTraceEnabled()) {
+          LOGGER.trace("Found a required element: {} at index {}, searching for {} from the index",
+              index.type(requiredElement), index.closeEnd(requiredElement), VastElementType.CreativeExtensions);
         }
 
         // then search for an optional </CreativeExtensions> element, if found then insert after that
         // if </CreativeExtensions> is not found, then insert after the required element mentioned above
-        final int creativeExtensionsEnd = StringUtil.findNextNeedleIndex(vastDocBuilder, requiredElementEnd,
-            companionEnd, VAST_CREATIVE_EXTENSIONS_END, true);
-        if (creativeExtensionsEnd == -1) {
-          pixelInsertionIdx = requiredElementEnd;
-          pixelsStringBuilder = buildTrackingEventElements(trackingEventMap)
-              .insert(0, VAST_TRACKING_EVENTS)
-              .append(VAST_TRACKING_EVENTS_END);
+        final int creativeExtensions = index.first(VastElementType.CreativeExtensions,
+            index.closeEnd(requiredElement), index.closeStart(companion));
+        if (creativeExtensions == NOT_FOUND || !index.isClosed(creativeExtensions)) {
+          pixelInsertionIdx = index.closeEnd(requiredElement);
           LOGGER.trace("Companion ad does not have TrackingEvents, the optional {} is not found, "
-                  + "insert {} together with pixels after {}, {} or {}",
-              VAST_CREATIVE_EXTENSIONS_END, VAST_TRACKING_EVENTS, VAST_STATIC_RESOURCE_END,
-              VAST_IFRAME_RESOURCE_END, VAST_HTML_RESOURCE_END);
+                  + "insert {} together with pixels after {}",
+              VastElementType.CreativeExtensions, VAST_TRACKING_EVENTS, index.type(requiredElement));
         } else {
-          pixelInsertionIdx = creativeExtensionsEnd;
-          pixelsStringBuilder = buildTrackingEventElements(trackingEventMap)
-              .insert(0, VAST_TRACKING_EVENTS)
-              .append(VAST_TRACKING_EVENTS_END);
+          pixelInsertionIdx = index.closeEnd(creativeExtensions);
           LOGGER.trace("Companion ad does not have TrackingEvents, found the optional {}, "
-                  + "insert {} together with pixels after {}, {} or {}",
-              VAST_CREATIVE_EXTENSIONS_END, VAST_TRACKING_EVENTS, VAST_STATIC_RESOURCE_END,
-              VAST_IFRAME_RESOURCE_END, VAST_HTML_RESOURCE_END);
+                  + "insert {} together with pixels after it",
+              VastElementType.CreativeExtensions, VAST_TRACKING_EVENTS);
         }
-
+        pixels = trackingEventsElement;
       } else {
         // current Companion element has TrackingEvents already
-        pixelInsertionIdx = trackingEventsStart + VAST_TRACKING_EVENTS.length();
-        pixelsStringBuilder = buildTrackingEventElements(trackingEventMap);
+        pixelInsertionIdx = index.openEnd(trackingEvents);
+        pixels = trackingPixels;
         LOGGER.trace("Companion ad has {}, just insert pixels in it", VAST_TRACKING_EVENTS);
       }
 
-      // insert pixels
-      vastDocBuilder.insert(pixelInsertionIdx, pixelsStringBuilder);
-
-      // update the global start index to look for the next Companion
-      start = vastDocBuilder.indexOf(VAST_COMPANION_ELEMENT_END, pixelInsertionIdx)
-          + VAST_COMPANION_ELEMENT_END.length();
+      // record pixel insertion, the doc is not modified so the index stays valid
+      splicer.insert(pixelInsertionIdx, pixels);
       count++;
     }
 
@@ -7,11 +7,28 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import io.github.guozheng.jvast.model.AdTypeVersion;
-import io.github.guozheng.jvast.model.InputData;
+import io.github.guozheng.jvast.model.ProcessingInput;
+import io.github.guozheng.jvast.model.ProcessingOptions;
 import io.github.guozheng.jvast.model.PixelElementType;
 import io.github.guozheng.jvast.model.TrackingEventElementType;
+import io.github.guozheng.jvast.util.ByteCharSequence;
+import io.github.guozheng.jvast.util.EditScript;
+import io.github.guozheng.jvast.util.StringUtil;
 import io.github.guozheng.jvast.util.VideoAdUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -26,37 +43,506 @@ public class VideoAdProcessor {
    * Process video ad from a {@link StringBuilder} input.
    *
    * @param videoAdBuilder    {@link StringBuilder} video ad input from string builder
-   * @param inputData         {@link InputData} input data for processing
+   * @param inputData         {@link ProcessingInput} input data for processing
    * @return                  {@link StringBuilder} video ad output
    */
-  public static StringBuilder process(StringBuilder videoAdBuilder, InputData inputData) {
+  public static StringBuilder process(StringBuilder videoAdBuilder, ProcessingInput inputData) {
     final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(videoAdBuilder);
-    if (adTypeVersion.equals(AdTypeVersion.UNKNOWN)) {
-      LOGGER.error("Unsupported video ad type");
+    if (!isSupported(adTypeVersion)) {
       return videoAdBuilder; // no change
     }
+    return VastProcessor.process(videoAdBuilder, adTypeVersion, inputData);
+  }
+
+  /**
+   * Process video ad from a {@link String} input.
+   *
+   * @param videoAd         {@link String} video ad input from string
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@link String} video ad output
+   */
+  public static String process(String videoAd, ProcessingInput inputData) {
+    return process((CharSequence) videoAd, inputData).toString();
+  }
+
+  /**
+   * Process video ad from any {@link CharSequence} input, e.g. a {@link java.nio.CharBuffer} from a decoder.
+   * The input is read in place and never copied into a {@link StringBuilder}.
+   *
+   * @param videoAd         {@link CharSequence} video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@link CharSequence} video ad output, the input itself if it is not processed
+   */
+  public static CharSequence process(CharSequence videoAd, ProcessingInput inputData) {
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(videoAd);
+    if (!isSupported(adTypeVersion)) {
+      return videoAd; // no change
+    }
+    return VastProcessor.process(videoAd, adTypeVersion, inputData);
+  }
+
+  /**
+   * Process video ad from any {@link CharSequence} input, the ads of a large doc, e.g. a CTV ad pod, are
+   * processed in parallel as configured by the options.
+   *
+   * @param videoAd         {@link CharSequence} video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} thresholds and pool for processing ads in parallel
+   * @return                {@link CharSequence} video ad output, the input itself if it is not processed
+   */
+  public static CharSequence process(CharSequence videoAd, ProcessingInput inputData, ProcessingOptions options) {
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(videoAd);
+    if (!isSupported(adTypeVersion)) {
+      return videoAd; // no change
+    }
+    return VastProcessor.process(videoAd, adTypeVersion, inputData, new StringBuilder(0), options);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes. The engine runs on the bytes directly, there is no decode
+   * to {@link String} and the output is written as UTF-8 bytes.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@code byte[]} UTF-8 encoded video ad output, the input itself if it is not processed
+   */
+  public static byte[] process(byte[] videoAd, ProcessingInput inputData) {
+    return process(videoAd, inputData, ProcessingOptions.defaults());
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes, the ads of a large doc, e.g. a CTV ad pod, are processed in
+   * parallel as configured by the options.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} thresholds and pool for processing ads in parallel
+   * @return                {@code byte[]} UTF-8 encoded video ad output, the input itself if it is not processed
+   */
+  public static byte[] process(byte[] videoAd, ProcessingInput inputData, ProcessingOptions options) {
+    final ByteCharSequence doc = new ByteCharSequence(videoAd);
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(doc);
+    if (!isSupported(adTypeVersion)) {
+      return videoAd; // no change
+    }
+    return VastProcessor.processToUtf8(doc, adTypeVersion, inputData, options);
+  }
+
+  /**
+   * Process video ad from a buffer of UTF-8 encoded bytes. Heap buffers are read in place, the remaining
+   * bytes of a direct buffer are copied once. The position of the input buffer is not changed.
+   *
+   * @param videoAd         {@link ByteBuffer} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@link ByteBuffer} UTF-8 encoded video ad output, the input itself if it is not processed
+   */
+  public static ByteBuffer process(ByteBuffer videoAd, ProcessingInput inputData) {
+    final ByteCharSequence doc = ByteCharSequence.of(videoAd);
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(doc);
+    if (!isSupported(adTypeVersion)) {
+      return videoAd; // no change
+    }
+    return ByteBuffer.wrap(VastProcessor.processToUtf8(doc, adTypeVersion, inputData));
+  }
+
+  /**
+   * Process video ad from any {@link CharSequence} input and append the output to an {@link Appendable},
+   * e.g. a response {@link java.io.Writer}. No intermediate output doc is built.
+   *
+   * @param videoAd         {@link CharSequence} video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param out             {@link Appendable} output, the input is appended unchanged if it is not processed
+   * @throws IOException    if appending to the output fails
+   */
+  public static void process(CharSequence videoAd, ProcessingInput inputData, Appendable out) throws IOException {
+    process(videoAd, inputData, ProcessingOptions.defaults(), out);
+  }
+
+  /**
+   * Process video ad from any {@link CharSequence} input and append the output to an {@link Appendable}.
+   * In pooled mode the output is built in a per-thread buffer and appended in one call.
+   *
+   * @param videoAd         {@link CharSequence} video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} pooling, thresholds and pool for processing ads in parallel
+   * @param out             {@link Appendable} output, the input is appended unchanged if it is not processed
+   * @throws IOException    if appending to the output fails
+   */
+  public static void process(CharSequence videoAd, ProcessingInput inputData, ProcessingOptions options,
+      Appendable out) throws IOException {
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(videoAd);
+    if (!isSupported(adTypeVersion)) {
+      out.append(videoAd); // no change
+      return;
+    }
+    VastProcessor.process(videoAd, adTypeVersion, inputData, out, options);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes and write the UTF-8 encoded output to an {@link OutputStream}.
+   * No intermediate output doc is built.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param out             {@link OutputStream} output stream, the input is written unchanged if it is not processed
+   * @throws IOException    if writing to the output stream fails
+   */
+  public static void process(byte[] videoAd, ProcessingInput inputData, OutputStream out) throws IOException {
+    process(new ByteCharSequence(videoAd), inputData, ProcessingOptions.defaults(), out);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes and write the UTF-8 encoded output to an {@link OutputStream}.
+   * In pooled mode the output is encoded into a per-thread buffer and written in one call.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} pooling, thresholds and pool for processing ads in parallel
+   * @param out             {@link OutputStream} output stream, the input is written unchanged if it is not processed
+   * @throws IOException    if writing to the output stream fails
+   */
+  public static void process(byte[] videoAd, ProcessingInput inputData, ProcessingOptions options,
+      OutputStream out) throws IOException {
+    process(new ByteCharSequence(videoAd), inputData, options, out);
+  }
+
+  /**
+   * Process video ad from a buffer of UTF-8 encoded bytes and write the UTF-8 encoded output to an
+   * {@link OutputStream}. No intermediate output doc is built. The position of the input buffer is not changed.
+   *
+   * @param videoAd         {@link ByteBuffer} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param out             {@link OutputStream} output stream, the input is written unchanged if it is not processed
+   * @throws IOException    if writing to the output stream fails
+   */
+  public static void process(ByteBuffer videoAd, ProcessingInput inputData, OutputStream out) throws IOException {
+    process(ByteCharSequence.of(videoAd), inputData, ProcessingOptions.defaults(), out);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes and write the UTF-8 encoded output to a blocking
+   * {@link WritableByteChannel}, e.g. a response channel. No intermediate output doc is built.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param out             {@link WritableByteChannel} output channel, the input is written unchanged if it is not processed
+   * @throws IOException    if writing to the output channel fails
+   */
+  public static void process(byte[] videoAd, ProcessingInput inputData, WritableByteChannel out) throws IOException {
+    process(new ByteCharSequence(videoAd), inputData, ProcessingOptions.defaults(), out);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes and write the UTF-8 encoded output to a blocking
+   * {@link WritableByteChannel}. In pooled mode the output is encoded into a per-thread buffer and written
+   * without allocating a buffer per call.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} pooling, thresholds and pool for processing ads in parallel
+   * @param out             {@link WritableByteChannel} output channel, the input is written unchanged if it is not processed
+   * @throws IOException    if writing to the output channel fails
+   */
+  public static void process(byte[] videoAd, ProcessingInput inputData, ProcessingOptions options,
+      WritableByteChannel out) throws IOException {
+    process(new ByteCharSequence(videoAd), inputData, options, out);
+  }
+
+  /**
+   * Process video ad from a buffer of UTF-8 encoded bytes and write the UTF-8 encoded output to a blocking
+   * {@link WritableByteChannel}, e.g. a response channel. No intermediate output doc is built.
+   * The position of the input buffer is not changed.
+   *
+   * @param videoAd         {@link ByteBuffer} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param out             {@link WritableByteChannel} output channel, the input is written unchanged if it is not processed
+   * @throws IOException    if writing to the output channel fails
+   */
+  public static void process(ByteBuffer videoAd, ProcessingInput inputData, WritableByteChannel out) throws IOException {
+    process(ByteCharSequence.of(videoAd), inputData, ProcessingOptions.defaults(), out);
+  }
+
+  private static void process(ByteCharSequence doc, ProcessingInput inputData, ProcessingOptions options,
+      OutputStream out) throws IOException {
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(doc);
+    if (!isSupported(adTypeVersion)) {
+      StringUtil.writeUtf8(out, doc, 0, doc.length()); // no change
+      return;
+    }
+    VastProcessor.process(doc, adTypeVersion, inputData, out, options);
+  }
+
+  private static void process(ByteCharSequence doc, ProcessingInput inputData, ProcessingOptions options,
+      WritableByteChannel out) throws IOException {
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(doc);
+    if (!isSupported(adTypeVersion)) {
+      StringUtil.writeUtf8(Channels.newOutputStream(out), doc, 0, doc.length()); // no change
+      return;
+    }
+    VastProcessor.process(doc, adTypeVersion, inputData, out, options);
+  }
+
+  /**
+   * Process video ad into an {@link EditScript}, an ordered list of slices of the input and inserted fragments.
+   * The input is never copied, the result can be written with gathering writes or read as a
+   * {@link CharSequence} that is never flattened.
+   *
+   * @param videoAd         {@link CharSequence} video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@link EditScript} video ad output, one segment of the input if it is not processed
+   */
+  public static EditScript processToEditScript(CharSequence videoAd, ProcessingInput inputData) {
+    final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(videoAd);
+    if (!isSupported(adTypeVersion)) {
+      return new EditScript(videoAd).append(videoAd); // no change
+    }
+    return VastProcessor.processToEditScript(videoAd, adTypeVersion, inputData);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes into an {@link EditScript} of UTF-8 segments. Slices of the input
+   * wrap the input bytes, the result can be written with {@link EditScript#writeTo(java.nio.channels.GatheringByteChannel)}.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@link EditScript} video ad output, one segment of the input if it is not processed
+   */
+  public static EditScript processToEditScript(byte[] videoAd, ProcessingInput inputData) {
+    return processToEditScript(new ByteCharSequence(videoAd), inputData);
+  }
+
+  /**
+   * Process video ad from a buffer of UTF-8 encoded bytes into an {@link EditScript} of UTF-8 segments.
+   * Heap buffers are sliced in place, the remaining bytes of a direct buffer are copied once.
+   *
+   * @param videoAd         {@link ByteBuffer} UTF-8 encoded video ad input
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@link EditScript} video ad output, one segment of the input if it is not processed
+   */
+  public static EditScript processToEditScript(ByteBuffer videoAd, ProcessingInput inputData) {
+    return processToEditScript(ByteCharSequence.of(videoAd), inputData);
+  }
+
+  /**
+   * Process video ad asynchronously on the default async executor.
+   *
+   * @param videoAd         {@link CharSequence} video ad input, it must not change until the future completes
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@code CompletableFuture<String>} video ad output
+   */
+  public static CompletableFuture<String> processAsync(CharSequence videoAd, ProcessingInput inputData) {
+    return processAsync(videoAd, inputData, ProcessingOptions.defaults());
+  }
 
-    //based on video ad type and version, call a matching ad processor
-    //TODO: support VAST 4.x
-    //TODO: add a VMAP processor
-    if (adTypeVersion.getType().equals("VAST")) {
-      return VastProcessor.process(videoAdBuilder, adTypeVersion, inputData);
+  /**
+   * Process video ad asynchronously on the async executor of the options. At most as many docs as the
+   * bulkhead has permits are in flight on the executor, a doc without a permit, or rejected by the executor,
+   * is processed by the calling thread, which throttles the caller instead of queueing unbounded work.
+   *
+   * @param videoAd         {@link CharSequence} video ad input, it must not change until the future completes
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} async executor, bulkhead, thresholds and pool for processing ads
+   * @return                {@code CompletableFuture<String>} video ad output
+   */
+  public static CompletableFuture<String> processAsync(CharSequence videoAd, ProcessingInput inputData,
+      ProcessingOptions options) {
+    return submit(() -> process(videoAd, inputData, options).toString(), options);
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes asynchronously on the default async executor.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input, it must not change until the future completes
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @return                {@code CompletableFuture<byte[]>} UTF-8 encoded video ad output
+   */
+  public static CompletableFuture<byte[]> processAsync(byte[] videoAd, ProcessingInput inputData) {
+    return processAsync(videoAd, inputData, ProcessingOptions.defaults());
+  }
+
+  /**
+   * Process video ad from UTF-8 encoded bytes asynchronously on the async executor of the options, with the
+   * same bulkhead and caller-runs fallback as {@link #processAsync(CharSequence, ProcessingInput, ProcessingOptions)}.
+   *
+   * @param videoAd         {@code byte[]} UTF-8 encoded video ad input, it must not change until the future completes
+   * @param inputData       {@link ProcessingInput} input data for processing
+   * @param options         {@link ProcessingOptions} async executor, bulkhead, thresholds and pool for processing ads
+   * @return                {@code CompletableFuture<byte[]>} UTF-8 encoded video ad output
+   */
+  public static CompletableFuture<byte[]> processAsync(byte[] videoAd, ProcessingInput inputData,
+      ProcessingOptions options) {
+    return submit(() -> process(videoAd, inputData, options), options);
+  }
+
+  /**
+   * Run a task on the async executor if the bulkhead has a permit, otherwise on the calling thread.
+   */
+  private static <T> CompletableFuture<T> submit(Supplier<T> task, ProcessingOptions options) {
+    final Semaphore bulkhead = options.getBulkhead();
+    if (bulkhead.tryAcquire()) {
+      CompletableFuture<T> future = new CompletableFuture<>();
+      try {
+        options.getAsyncExecutor().execute(() -> {
+          try {
+            future.complete(task.get());
+          } catch (Throwable t) {
+            future.completeExceptionally(t);
+          } finally {
+            bulkhead.release();
+          }
+        });
+        return future;
+      } catch (RejectedExecutionException e) {
+        bulkhead.release();
+        LOGGER.debug("Async executor rejected video ad, processing it on the calling thread");
+      }
     } else {
-      LOGGER.error("Unsupported video ad type or version: {}", adTypeVersion);
-      return videoAdBuilder; // no change
+      LOGGER.debug("Too many video ads in flight, processing video ad on the calling thread");
+    }
+    try {
+      return CompletableFuture.completedFuture(task.get());
+    } catch (Throwable t) {
+      // errors fail the future on the calling thread as they do on the async executor
+      return CompletableFuture.failedFuture(t);
     }
+  }
 
+  /**
+   * Process a batch of video ads sharing the same input data in parallel on the common pool.
+   *
+   * @param videoAds        {@code List<? extends CharSequence>} video ad inputs
+   * @param inputData       {@link ProcessingInput} input data for processing, compiled once for the batch
+   * @return                {@code List<String>} video ad outputs in input order
+   */
+  public static List<String> processBatch(List<? extends CharSequence> videoAds, ProcessingInput inputData) {
+    return processBatch(videoAds, inputData, ProcessingOptions.defaults());
   }
 
   /**
-   * Process video ad from a {@link String} input.
+   * Process a batch of video ads sharing the same input data in parallel.
    *
-   * @param videoAd         {@link String} video ad input from string
-   * @param inputData       {@link InputData} input data for processing
-   * @return                {@link String} video ad output
+   * @param videoAds        {@code List<? extends CharSequence>} video ad inputs
+   * @param inputData       {@link ProcessingInput} input data for processing, compiled once for the batch
+   * @param options         {@link ProcessingOptions} executor, parallelism and sequential cutoff
+   * @return                {@code List<String>} video ad outputs in input order
+   */
+  public static List<String> processBatch(List<? extends CharSequence> videoAds, ProcessingInput inputData,
+      ProcessingOptions options) {
+    return processBatch(videoAds, Collections.nCopies(videoAds.size(), inputData.compile()), options);
+  }
+
+  /**
+   * Process a batch of video ads in parallel, each with its own input data. Workers claim docs one at a
+   * time, so a few large docs do not hold up the batch, and each worker reuses one scratch buffer for all
+   * the docs it processes, in pooled mode the index and splicers are reused as well. The calling thread works
+   * on the batch as well, batches of less than twice the sequential cutoff are processed by the calling
+   * thread only.
+   *
+   * @param videoAds        {@code List<? extends CharSequence>} video ad inputs
+   * @param inputData       {@code List<? extends ProcessingInput>} input data for processing, one per video ad
+   * @param options         {@link ProcessingOptions} executor, parallelism and sequential cutoff
+   * @return                {@code List<String>} video ad outputs in input order
+   */
+  public static List<String> processBatch(List<? extends CharSequence> videoAds,
+      List<? extends ProcessingInput> inputData, ProcessingOptions options) {
+    if (videoAds.size() != inputData.size()) {
+      throw new IllegalArgumentException("Got " + videoAds.size() + " video ads but " + inputData.size()
+          + " input data");
+    }
+    final String[] results = new String[videoAds.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final int workers = Math.min(options.getParallelism(), videoAds.size() / Math.max(options.getSequentialCutoff(), 1));
+    LOGGER.debug("Processing batch of {} video ads with {} workers", videoAds.size(), Math.max(workers, 1));
+
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[Math.max(workers - 1, 0)];
+    for (int i = 0; i < futures.length; i++) {
+      futures[i] = CompletableFuture.runAsync(
+          () -> processBatchWorker(videoAds, inputData, options, results, next), options.getExecutor());
+    }
+    // the calling thread is a worker too instead of waiting idle
+    Throwable failure = null;
+    try {
+      processBatchWorker(videoAds, inputData, options, results, next);
+    } catch (Throwable t) {
+      failure = t;
+    }
+    // no worker is left running in the background, the first failure is rethrown as it was thrown
+    for (CompletableFuture<?> future : futures) {
+      try {
+        future.join();
+      } catch (CompletionException e) {
+        final Throwable cause = e.getCause() == null ? e : e.getCause();
+        if (failure == null) {
+          failure = cause;
+        } else if (failure != cause) {
+          failure.addSuppressed(cause);
+        }
+      }
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    if (failure != null) {
+      throw new CompletionException(failure);
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Claim and process docs of a batch until none are left, with one scratch buffer for all of them. A failure
+   * stops the other workers from claiming more docs.
    */
-  public static String process(String videoAd, InputData inputData) {
-    return process(new StringBuilder(videoAd), inputData).toString();
+  private static void processBatchWorker(List<? extends CharSequence> videoAds,
+      List<? extends ProcessingInput> inputData, ProcessingOptions options, String[] results, AtomicInteger next) {
+    try {
+      processBatchDocs(videoAds, inputData, options, results, next);
+    } catch (Throwable t) {
+      next.set(results.length);
+      throw t;
+    }
+  }
+
+  private static void processBatchDocs(List<? extends CharSequence> videoAds,
+      List<? extends ProcessingInput> inputData, ProcessingOptions options, String[] results, AtomicInteger next) {
+    StringBuilder scratch = null;
+    for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+      final CharSequence videoAd = videoAds.get(i);
+      final AdTypeVersion adTypeVersion = VideoAdUtil.getVideoAdType(videoAd);
+      if (!isSupported(adTypeVersion)) {
+        results[i] = videoAd.toString(); // no change
+        continue;
+      }
+      if (scratch == null) {
+        scratch = new StringBuilder(videoAd.length() + (videoAd.length() >> 2));
+      }
+      scratch.setLength(0);
+      results[i] = VastProcessor.process(videoAd, adTypeVersion, inputData.get(i), scratch, options).toString();
+    }
+  }
+
+  /**
+   * Check if there is a matching ad processor for the video ad type and version.
+   *
+   * @param adTypeVersion   {@link AdTypeVersion} ad type and version
+   * @return                {@code boolean} true if the video ad can be processed, false otherwise
+   */
+  private static boolean isSupported(AdTypeVersion adTypeVersion) {
+    if (adTypeVersion.equals(AdTypeVersion.UNKNOWN)) {
+      LOGGER.error("Unsupported video ad type");
+      return false;
+    }
+
+    //based on video ad type and version, call a matching ad processor, VMAP docs are handled by VmapProcessor
+    //and VAST 4.x docs keep their own envelope
+    if (adTypeVersion.getType().equals("VAST") || adTypeVersion.getType().equals(VideoAdUtil.TYPE_VMAP)) {
+      return true;
+    } else {
+      LOGGER.error("Unsupported video ad type or version: {}", adTypeVersion);
+      return false;
+    }
   }
 
 }
@@ -0,0 +1,276 @@
+package io.github.guozheng.jvast;
+
+import static io.github.guozheng.jvast.util.VastIndex.NOT_FOUND;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import io.github.guozheng.jvast.model.BreakPrefetch;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.model.WrapperChain;
+import io.github.guozheng.jvast.util.VastIndex;
+import io.github.guozheng.jvast.util.VideoAdUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Resolves the vmap:AdTagURI of the AdBreak elements of a VMAP doc ahead of play, in the order the breaks
+ * play rather than the order they are listed. The earliest breaks are resolved right away with
+ * {@link WrapperResolver}. The later breaks are deferred to a background lane until the early ones are
+ * settled, so the time to the first ad does not grow with the number of breaks. The lane is shared by all
+ * docs of a prefetcher, at most a fixed number of its breaks are resolved at a time, the earliest first.
+ *
+ * <p>Breaks are ordered by timeOffset: {@code start}, then {@code HH:MM:SS[.mmm]} offsets, then percentage
+ * and {@code #n} positional offsets, which cannot be placed on the timeline without the content duration,
+ * then {@code end}. Breaks with the same offset keep their doc order.
+ */
+public class VmapPrefetcher {
+  private static final Logger LOGGER = LogManager.getLogger(VmapPrefetcher.class);
+
+  public static final int DEFAULT_PRIORITY_BREAKS = 1;
+  public static final int DEFAULT_BACKGROUND_CONCURRENCY = 4;
+
+  private static final String START = "start";
+  private static final String END = "end";
+  private static final String BREAK_ID = "breakId";
+  private static final String TIME_OFFSET = "timeOffset";
+
+  // ordering keys of time offsets, absolute offsets are in milliseconds
+  static final long START_KEY = 0L;
+  static final long PERCENT_KEY = Long.MAX_VALUE / 4;
+  static final long POSITION_KEY = Long.MAX_VALUE / 2;
+  static final long END_KEY = Long.MAX_VALUE - 1;
+  static final long UNKNOWN_KEY = Long.MAX_VALUE;
+
+  private final WrapperResolver resolver;
+  private final int priorityBreaks;
+  private final int backgroundConcurrency;
+
+  // deferred breaks of all docs, earliest time offset first
+  private final PriorityQueue<Scheduled> background = new PriorityQueue<>();
+  private int backgroundInFlight;
+  private boolean draining;
+  private long sequence;
+
+  /**
+   * Create a prefetcher resolving the earliest break right away and up to
+   * {@link #DEFAULT_BACKGROUND_CONCURRENCY} deferred breaks at a time.
+   * @param resolver      {@link WrapperResolver} resolver, shared with other callers
+   */
+  public VmapPrefetcher(WrapperResolver resolver) {
+    this(resolver, DEFAULT_PRIORITY_BREAKS, DEFAULT_BACKGROUND_CONCURRENCY);
+  }
+
+  /**
+   * Create a prefetcher.
+   * @param resolver                {@link WrapperResolver} resolver, shared with other callers
+   * @param priorityBreaks          {@code int} earliest breaks of a doc resolved right away
+   * @param backgroundConcurrency   {@code int} maximum deferred breaks being resolved at a time, across docs
+   */
+  public VmapPrefetcher(WrapperResolver resolver, int priorityBreaks, int backgroundConcurrency) {
+    if (priorityBreaks < 0 || backgroundConcurrency < 1) {
+      throw new IllegalArgumentException("Invalid prefetch limits: priorityBreaks=" + priorityBreaks
+          + ", backgroundConcurrency=" + backgroundConcurrency);
+    }
+    this.resolver = resolver;
+    this.priorityBreaks = priorityBreaks;
+    this.backgroundConcurrency = backgroundConcurrency;
+  }
+
+  /**
+   * Schedule the resolution of the vmap:AdTagURI of every AdBreak element of a VMAP doc. Breaks with inline
+   * VAST in vmap:VASTAdData have nothing to resolve and are left out.
+   * @param vmapDoc     {@link CharSequence} VMAP doc
+   * @return            {@code List<BreakPrefetch>} one entry per break with a redirect url, in play order
+   */
+  public List<BreakPrefetch> prefetch(CharSequence vmapDoc) {
+    final List<Scheduled> breaks = scan(VastIndex.of(vmapDoc));
+    if (breaks.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // stable, breaks with the same time offset keep their doc order
+    Collections.sort(breaks);
+
+    List<BreakPrefetch> prefetches = new ArrayList<>(breaks.size());
+    List<CompletableFuture<WrapperChain>> priority = new ArrayList<>(Math.min(priorityBreaks, breaks.size()));
+    List<Scheduled> deferred = new ArrayList<>(Math.max(0, breaks.size() - priorityBreaks));
+    for (Scheduled scheduled : breaks) {
+      final boolean isPriority = priority.size() < priorityBreaks;
+      if (isPriority) {
+        scheduled.chain = resolver.resolve(scheduled.adTagUri);
+        priority.add(scheduled.chain);
+      } else {
+        scheduled.chain = new CompletableFuture<>();
+        deferred.add(scheduled);
+      }
+      prefetches.add(BreakPrefetch.builder()
+          .position(scheduled.position)
+          .breakId(scheduled.breakId)
+          .timeOffset(scheduled.timeOffset)
+          .adTagUri(scheduled.adTagUri)
+          .priority(isPriority)
+          .chain(scheduled.chain)
+          .build());
+    }
+    LOGGER.debug("Prefetching {} ad breaks, {} deferred", breaks.size(), deferred.size());
+
+    if (!deferred.isEmpty()) {
+      // the chain futures never fail, the deferred breaks are queued once the priority breaks are settled
+      CompletableFuture.allOf(priority.toArray(new CompletableFuture<?>[0]))
+          .whenComplete((done, error) -> defer(deferred));
+    }
+    return prefetches;
+  }
+
+  /**
+   * Get the number of deferred breaks not started yet, across docs.
+   * @return      {@code int} number of queued breaks
+   */
+  public synchronized int backgroundQueueSize() {
+    return background.size();
+  }
+
+  private static List<Scheduled> scan(VastIndex index) {
+    final int length = index.getDoc().length();
+    List<Scheduled> breaks = new ArrayList<>(index.count(VastElementType.VmapAdBreak));
+    int position = 0;
+    for (int adBreak = index.first(VastElementType.VmapAdBreak, 0, length);
+        adBreak != NOT_FOUND && index.isClosed(adBreak);
+        adBreak = index.first(VastElementType.VmapAdBreak, index.closeEnd(adBreak), length), position++) {
+      final int adSource = index.firstChild(adBreak, VastElementType.VmapAdSource);
+      if (adSource == NOT_FOUND || !index.isClosed(adSource) || index.isSelfClosing(adSource)) {
+        continue;
+      }
+      final int adTagUri = index.firstChild(adSource, VastElementType.VmapAdTagURI);
+      if (adTagUri == NOT_FOUND || !index.isClosed(adTagUri) || index.isSelfClosing(adTagUri)) {
+        continue;
+      }
+      final String url = VideoAdUtil.getText(index, adTagUri);
+      if (url.isEmpty()) {
+        continue;
+      }
+      final String timeOffset = index.getAttribute(adBreak, TIME_OFFSET);
+      breaks.add(new Scheduled(position, index.getAttribute(adBreak, BREAK_ID), timeOffset, url,
+          offsetKey(timeOffset)));
+    }
+    return breaks;
+  }
+
+  private void defer(List<Scheduled> deferred) {
+    synchronized (this) {
+      for (Scheduled scheduled : deferred) {
+        scheduled.sequence = sequence++;
+        background.add(scheduled);
+      }
+    }
+    drain();
+  }
+
+  /**
+   * Start queued breaks while the lane has room. A break whose caller gave up on it is skipped.
+   * Only one thread drains at a time. A resolve completing inline, e.g. on a cache hit, frees its slot and
+   * returns to the running loop, which starts the next break, instead of draining again one stack frame deeper.
+   */
+  private void drain() {
+    synchronized (this) {
+      if (draining) {
+        return;
+      }
+      draining = true;
+    }
+    while (true) {
+      final Scheduled next;
+      synchronized (this) {
+        // the loop ends under the same lock a release takes, so a slot freed afterwards starts a new drain
+        if (backgroundInFlight >= backgroundConcurrency || background.isEmpty()) {
+          draining = false;
+          return;
+        }
+        next = background.poll();
+        backgroundInFlight++;
+      }
+      if (next.chain.isDone()) {
+        release();
+        continue;
+      }
+      LOGGER.debug("Prefetching deferred ad break at {}: {}", next.timeOffset, next.adTagUri);
+      resolver.resolve(next.adTagUri).whenComplete((chain, error) -> {
+        if (error != null) {
+          next.chain.completeExceptionally(error);
+        } else {
+          next.chain.complete(chain);
+        }
+        release();
+        drain();
+      });
+    }
+  }
+
+  private synchronized void release() {
+    backgroundInFlight--;
+  }
+
+  /**
+   * Get the ordering key of a VMAP timeOffset value.
+   * @param timeOffset    {@link String} timeOffset attribute, may be null
+   * @return              {@code long} ordering key, milliseconds for an absolute offset
+   */
+  static long offsetKey(String timeOffset) {
+    if (timeOffset == null) {
+      return UNKNOWN_KEY;
+    }
+    final String offset = timeOffset.trim();
+    if (offset.equalsIgnoreCase(START)) {
+      return START_KEY;
+    }
+    if (offset.equalsIgnoreCase(END)) {
+      return END_KEY;
+    }
+    try {
+      if (offset.endsWith("%")) {
+        final double percent = Double.parseDouble(offset.substring(0, offset.length() - 1));
+        if (percent <= 0) {
+          return START_KEY;
+        }
+        return percent >= 100 ? END_KEY : PERCENT_KEY + Math.round(percent * 1000);
+      }
+      if (offset.startsWith("#")) {
+        return POSITION_KEY + Long.parseLong(offset.substring(1));
+      }
+      final String[] parts = offset.split(":");
+      if (parts.length == 3) {
+        final long minutes = Long.parseLong(parts[0]) * 60 + Long.parseLong(parts[1]);
+        return minutes * 60_000L + Math.round(Double.parseDouble(parts[2]) * 1000);
+      }
+    } catch (NumberFormatException e) {
+      LOGGER.debug("Invalid timeOffset: {}", timeOffset);
+    }
+    return UNKNOWN_KEY;
+  }
+
+  private static final class Scheduled implements Comparable<Scheduled> {
+    private final int position;
+    private final String breakId;
+    private final String timeOffset;
+    private final String adTagUri;
+    private final long key;
+    private long sequence;
+    private CompletableFuture<WrapperChain> chain;
+
+    Scheduled(int position, String breakId, String timeOffset, String adTagUri, long key) {
+      this.position = position;
+      this.breakId = breakId;
+      this.timeOffset = timeOffset;
+      this.adTagUri = adTagUri;
+      this.key = key;
+    }
+
+    @Override
+    public int compareTo(Scheduled other) {
+      final int byKey = Long.compare(key, other.key);
+      return byKey != 0 ? byKey : Long.compare(sequence, other.sequence);
+    }
+  }
+}
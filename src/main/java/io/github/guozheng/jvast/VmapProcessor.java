@@ -0,0 +1,138 @@
+package io.github.guozheng.jvast;
+
+import static io.github.guozheng.jvast.util.VastIndex.NOT_FOUND;
+import static io.github.guozheng.jvast.util.VideoAdUtil.TYPE_VMAP;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VMAP_TRACKING_EVENTS;
+
+import io.github.guozheng.jvast.model.AdTypeVersion;
+import io.github.guozheng.jvast.model.CompiledInputData;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.util.PixelFragments;
+import io.github.guozheng.jvast.util.Splicer;
+import io.github.guozheng.jvast.util.VastIndex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Processing of VMAP docs, e.g. insert pixels. Unlike a VAST 2.0 or 3.0 doc, which is rebuilt from its Ad
+ * elements, a VMAP doc is kept as it is and the edits are recorded against it: the doc is split into one
+ * range per vmap:AdBreak element, ending at the close tag of the break, and a tail range after the last
+ * break. The AdBreak ranges are independent, so they are processed like the Ad elements of a VAST doc, in
+ * parallel for a large doc. Inline VAST docs of a break, in vmap:VASTAdData, go through the same Ad processing as
+ * a VAST doc, and break level tracking is added to the vmap:TrackingEvents of each break.
+ */
+final class VmapProcessor {
+  private static final Logger LOGGER = LogManager.getLogger(VmapProcessor.class);
+
+  private VmapProcessor() {
+  }
+
+  /**
+   * Check if a doc of an ad type is processed as a VMAP doc.
+   * @param adTypeVersion     {@link AdTypeVersion} ad type and version
+   * @return                  {@code boolean} true for VMAP, false otherwise
+   */
+  static boolean isVmap(AdTypeVersion adTypeVersion) {
+    return adTypeVersion != null && TYPE_VMAP.equals(adTypeVersion.getType());
+  }
+
+  /**
+   * Collect insertions for one AdBreak element: pixels and tracking events of the inline VAST Ad elements,
+   * and break level tracking events. The doc itself is left untouched.
+   * @param index            {@link VastIndex} element offset index of the VMAP doc
+   * @param adBreak          {@code int} AdBreak element number in the index
+   * @param inputData        {@link CompiledInputData} compiled ad processing input data
+   * @param splicer          {@link Splicer} empty splicer over the AdBreak range
+   * @return                 {@link Splicer} insertions recorded against the AdBreak range
+   */
+  static Splicer processBreak(VastIndex index,
+      int adBreak,
+      final CompiledInputData inputData,
+      Splicer splicer) {
+    if (index.isSelfClosing(adBreak)) {
+      LOGGER.debug("Empty {} element, skip break processing", VastElementType.VmapAdBreak.getTag());
+      return splicer;
+    }
+
+    final int adSource = index.firstChild(adBreak, VastElementType.VmapAdSource);
+    if (adSource != NOT_FOUND && index.isClosed(adSource) && !index.isSelfClosing(adSource)) {
+      final int vastAdData = index.firstChild(adSource, VastElementType.VmapVASTAdData);
+      if (vastAdData != NOT_FOUND && index.isClosed(vastAdData)) {
+        processVastAdData(index, vastAdData, inputData, splicer);
+      } else {
+        LOGGER.debug("No inline VAST in {}, skip Ad processing", VastElementType.VmapAdSource.getTag());
+      }
+    }
+
+    if (inputData.hasBreakEvents()) {
+      insertBreakTracking(index, splicer, adBreak, adSource, inputData.getFragments());
+    }
+
+    LOGGER.debug("Single ad break after processing: {}", splicer);
+
+    return splicer;
+  }
+
+  /**
+   * Collect insertions for a standalone AdBreak element, e.g. one cut out of a streamed VMAP doc.
+   * @param adBreak          {@link CharSequence} AdBreak element, from its open tag to its close tag
+   * @param inputData        {@link CompiledInputData} compiled ad processing input data
+   * @return                 {@link Splicer} insertions recorded against the entire AdBreak element
+   */
+  static Splicer spliceBreak(CharSequence adBreak, final CompiledInputData inputData) {
+    final VastIndex index = VastIndex.of(adBreak);
+    final Splicer splicer = new Splicer(adBreak, 0, adBreak.length());
+    final int element = index.first(VastElementType.VmapAdBreak, 0, adBreak.length());
+    if (element == NOT_FOUND || !index.isClosed(element)) {
+      return splicer;
+    }
+    return processBreak(index, element, inputData, splicer);
+  }
+
+  /**
+   * Process each Ad element of the inline VAST doc of a break, as in a VAST doc.
+   */
+  private static void processVastAdData(VastIndex index, int vastAdData, CompiledInputData inputData,
+      Splicer splicer) {
+    final int end = index.closeStart(vastAdData);
+    int count = 0;
+    for (int ad = index.first(VastElementType.Ad, index.openEnd(vastAdData), end);
+        ad != NOT_FOUND && index.isClosed(ad);
+        ad = index.first(VastElementType.Ad, index.closeEnd(ad), end)) {
+      VastProcessor.processSingleAd(index, ad, inputData, splicer);
+      count++;
+    }
+    LOGGER.debug("Total Ad elements inside {} processed: {}", VastElementType.VmapVASTAdData.getTag(), count);
+  }
+
+  /**
+   * Insert break level Tracking pixels into the vmap:TrackingEvents element of an AdBreak, or else a new
+   * vmap:TrackingEvents element after the AdSource element, which comes before it in the VMAP schema.
+   * @param index       {@link VastIndex} element offset index of the VMAP doc
+   * @param splicer     {@link Splicer} insertions recorded against the AdBreak range
+   * @param adBreak     {@code int} AdBreak element number
+   * @param adSource    {@code int} AdSource element number, or {@link VastIndex#NOT_FOUND}
+   * @param fragments   {@link PixelFragments} rendered break tracking fragments
+   */
+  private static void insertBreakTracking(VastIndex index, Splicer splicer, int adBreak, int adSource,
+      PixelFragments fragments) {
+    final int trackingEvents = index.firstChild(adBreak, VastElementType.VmapTrackingEvents);
+    if (trackingEvents != NOT_FOUND && index.isClosed(trackingEvents)) {
+      if (index.isSelfClosing(trackingEvents)) {
+        // a self-closing <vmap:TrackingEvents/> has no room for pixels, replace it
+        splicer.replace(index.openStart(trackingEvents), index.closeEnd(trackingEvents),
+            fragments.getBreakTrackingEventsElement());
+      } else {
+        splicer.insert(index.openEnd(trackingEvents), fragments.getBreakTrackingEvents());
+      }
+      LOGGER.debug("==== Inserted break level Tracking Events into existing {}", VMAP_TRACKING_EVENTS);
+      return;
+    }
+    if (adSource != NOT_FOUND && index.isClosed(adSource)) {
+      splicer.insert(index.closeEnd(adSource), fragments.getBreakTrackingEventsElement());
+    } else {
+      splicer.insert(index.openEnd(adBreak), fragments.getBreakTrackingEventsElement());
+    }
+    LOGGER.debug("==== Inserted break level Tracking Events in a new {}", VMAP_TRACKING_EVENTS);
+  }
+}
@@ -0,0 +1,193 @@
+package io.github.guozheng.jvast;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import io.github.guozheng.jvast.model.MacroValues;
+import io.github.guozheng.jvast.util.MacroTemplate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache of Wrapper responses in front of {@link WrapperResolver}. Many redirect urls only differ in their
+ * cache-busting parameters, entries are keyed by the url with those parameters removed. The cache is bounded
+ * by bytes and entries expire a fixed time after they are written. A response is only admitted once its url
+ * has been seen a few times recently, so urls seen once do not evict popular ones. Reads are lock-free and
+ * writes lock one of several segments.
+ */
+public class WrapperCache {
+  private static final Logger LOGGER = LogManager.getLogger(WrapperCache.class);
+
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+  public static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+  public static final int DEFAULT_MIN_FREQUENCY = 2;
+
+  // query parameters commonly carrying a cache buster, compared ignoring case
+  public static final Set<String> CACHE_BUSTING_PARAMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+      "cb", "cachebuster", "cachebusting", "cache_buster", "rnd", "rand", "random", "ord", "correlator",
+      "ts", "timestamp")));
+  // macros standing for per-request values, a parameter holding one is dropped whatever its name
+  private static final Set<String> CACHE_BUSTING_MACROS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+      MacroValues.CACHEBUSTING, MacroValues.TIMESTAMP, MacroValues.REQUEST_ID)));
+
+  // average size of a cached doc, used to size the admission sketch from the byte bound
+  private static final int AVERAGE_DOC_BYTES = 4 << 10;
+
+  private final Cache<String, String> cache;
+  private final FrequencySketch sketch;
+  private final int minFrequency;
+  private final AtomicLong rejections = new AtomicLong();
+
+  /**
+   * Create a cache with the default bounds.
+   */
+  public WrapperCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_TTL, DEFAULT_MIN_FREQUENCY);
+  }
+
+  /**
+   * Create a cache.
+   * @param maxBytes        {@code long} maximum weight, one byte per char of the urls and docs
+   * @param ttl             {@link Duration} time to live of an entry after it is written
+   * @param minFrequency    {@code int} recent lookups of a url before its response is admitted, 1 admits all
+   */
+  public WrapperCache(long maxBytes, Duration ttl, int minFrequency) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher((String key, String doc) -> key.length() + doc.length())
+        .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+        .concurrencyLevel(Math.max(4, Runtime.getRuntime().availableProcessors()))
+        .recordStats()
+        .build();
+    this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1L, maxBytes / AVERAGE_DOC_BYTES)));
+    this.minFrequency = minFrequency;
+  }
+
+  /**
+   * Look up the response of a redirect url, the lookup counts towards admitting the url.
+   * @param adTagUri      {@link String} redirect url
+   * @return              {@link String} cached response doc, or null on a miss
+   */
+  public String get(String adTagUri) {
+    final String key = normalize(adTagUri);
+    sketch.increment(key);
+    return cache.getIfPresent(key);
+  }
+
+  /**
+   * Offer the response of a redirect url, it is cached if the url has been looked up often enough recently.
+   * @param adTagUri      {@link String} redirect url
+   * @param doc           {@link String} response doc
+   * @return              {@code boolean} true if the response was admitted, false otherwise
+   */
+  public boolean put(String adTagUri, String doc) {
+    final String key = normalize(adTagUri);
+    if (sketch.frequency(key) < minFrequency) {
+      rejections.incrementAndGet();
+      return false;
+    }
+    cache.put(key, doc);
+    return true;
+  }
+
+  /**
+   * Get hit, miss and eviction counts.
+   * @return      {@link CacheStats} cache statistics
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Get the number of responses not admitted because their urls were not looked up often enough.
+   * @return      {@code long} number of rejected responses
+   */
+  public long rejectionCount() {
+    return rejections.get();
+  }
+
+  /**
+   * Get the approximate number of cached responses.
+   * @return      {@code long} number of entries
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * Normalize a redirect url into a cache key: scheme and host are lower-cased, the fragment is dropped and
+   * so are query parameters named like a cache buster or holding a per-request macro, e.g. {@code cb=123}
+   * or {@code x=[CACHEBUSTING]}. Other parameters keep their order.
+   * @param adTagUri      {@link String} redirect url
+   * @return              {@link String} cache key
+   */
+  public static String normalize(String adTagUri) {
+    final String trimmed = adTagUri.trim();
+    final int fragment = trimmed.indexOf('#');
+    final String url = fragment == -1 ? trimmed : trimmed.substring(0, fragment);
+    final int query = url.indexOf('?');
+    StringBuilder key = new StringBuilder(url.length());
+    appendLowerCaseOrigin(key, query == -1 ? url : url.substring(0, query));
+    if (query == -1) {
+      return key.toString();
+    }
+    char separator = '?';
+    int from = query + 1;
+    while (from <= url.length()) {
+      int to = url.indexOf('&', from);
+      if (to == -1) {
+        to = url.length();
+      }
+      if (to > from && !isCacheBusting(url, from, to)) {
+        key.append(separator).append(url, from, to);
+        separator = '&';
+      }
+      from = to + 1;
+    }
+    return key.toString();
+  }
+
+  private static void appendLowerCaseOrigin(StringBuilder key, String url) {
+    try {
+      final URI uri = URI.create(url);
+      if (uri.getScheme() != null && uri.getRawAuthority() != null) {
+        final int pathStart = uri.getScheme().length() + 3 + uri.getRawAuthority().length();
+        key.append(url);
+        for (int i = 0; i < pathStart; i++) {
+          key.setCharAt(i, Character.toLowerCase(key.charAt(i)));
+        }
+        return;
+      }
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Redirect url is not a valid uri, caching it as is: {}", url);
+    }
+    key.append(url);
+  }
+
+  private static boolean isCacheBusting(String url, int from, int to) {
+    final int equals = url.indexOf('=', from);
+    final int nameEnd = equals == -1 || equals > to ? to : equals;
+    if (CACHE_BUSTING_PARAMS.contains(url.substring(from, nameEnd).toLowerCase(Locale.ROOT))) {
+      return true;
+    }
+    if (nameEnd == to) {
+      return false;
+    }
+    final MacroTemplate value = MacroTemplate.parse(url, nameEnd + 1, to);
+    for (String name : CACHE_BUSTING_MACROS) {
+      if (value.hasSlot(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
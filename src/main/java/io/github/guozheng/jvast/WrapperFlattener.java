@@ -0,0 +1,225 @@
+package io.github.guozheng.jvast;
+
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENTS;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENTS_END;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_VIDEO_CLICKS_ELEMENT;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_VIDEO_CLICKS_END;
+import static io.github.guozheng.jvast.util.VastIndex.NOT_FOUND;
+
+import java.util.List;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.model.WrapperChain;
+import io.github.guozheng.jvast.util.Splicer;
+import io.github.guozheng.jvast.util.StringUtil;
+import io.github.guozheng.jvast.util.VastIndex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Flattens a resolved Wrapper chain into its InLine VAST doc, so a player gets one doc instead of walking the
+ * chain itself. The Error, Impression, Linear and NonLinearAds Tracking, and Linear ClickTracking elements of
+ * every Wrapper are copied as they are and inserted into the InLine ad in one splice pass over the InLine doc,
+ * with the same insertion points as pixel insertion. Docs are read with the element offset index, there is no
+ * DOM.
+ */
+public final class WrapperFlattener {
+  private static final Logger LOGGER = LogManager.getLogger(WrapperFlattener.class);
+
+  private WrapperFlattener() {
+  }
+
+  /**
+   * Flatten a resolved Wrapper chain. The chain only holds response docs, to also merge the Wrapper ad that
+   * started the chain, pass its doc in front of the chain docs to {@link #flatten(List)}.
+   * @param chain       {@link WrapperChain} resolved chain with at least one hop
+   * @return            {@link String} InLine VAST doc holding the tracking of every Wrapper of the chain
+   */
+  public static String flatten(WrapperChain chain) {
+    if (!chain.isResolved() || chain.getDocs().isEmpty()) {
+      throw new IllegalArgumentException("Only a resolved Wrapper chain can be flattened, got "
+          + chain.getStatus() + " with " + chain.getDocs().size() + " docs");
+    }
+    return flatten(chain.getDocs()).toString();
+  }
+
+  /**
+   * Flatten Wrapper docs into an InLine doc. The first Ad element of each doc is merged, like a Wrapper
+   * response holds a single ad, the other content of the InLine doc is copied unchanged.
+   * @param vastDocs    {@code List<? extends CharSequence>} Wrapper docs in chain order, then the InLine doc
+   * @return            {@link StringBuilder} InLine VAST doc holding the tracking of every Wrapper
+   */
+  public static StringBuilder flatten(List<? extends CharSequence> vastDocs) {
+    if (vastDocs.isEmpty()) {
+      throw new IllegalArgumentException("No VAST doc to flatten");
+    }
+    final CharSequence inLineDoc = vastDocs.get(vastDocs.size() - 1);
+    final VastIndex inLineIndex = VastIndex.of(inLineDoc);
+    final int inLine = firstAdBody(inLineIndex, VastElementType.InLine);
+    if (inLine == NOT_FOUND) {
+      throw new IllegalArgumentException("Last VAST doc has no InLine ad");
+    }
+
+    // tracking of all Wrappers, in chain order
+    final Tracking tracking = new Tracking();
+    for (int i = 0; i < vastDocs.size() - 1; i++) {
+      final VastIndex index = VastIndex.of(vastDocs.get(i));
+      final int wrapper = firstAdBody(index, VastElementType.Wrapper);
+      if (wrapper == NOT_FOUND) {
+        LOGGER.debug("No Wrapper ad in VAST doc #{} of the chain, nothing to merge", i + 1);
+        continue;
+      }
+      tracking.collect(index, wrapper);
+    }
+
+    final Splicer splicer = new Splicer(inLineDoc);
+    final CharSequence adPixels = tracking.adPixels();
+    if (adPixels.length() > 0) {
+      VastProcessor.insertAdPixels(inLineIndex, splicer, inLine, adPixels);
+    }
+    final int creatives = inLineIndex.firstChild(inLine, VastElementType.Creatives);
+    if (creatives != NOT_FOUND && inLineIndex.isClosed(creatives)) {
+      if (tracking.linearTracking.length() > 0) {
+        VastProcessor.insertTrackingInLineVastLinearCreative(inLineIndex, splicer, creatives,
+            tracking.linearTracking, trackingEventsElement(tracking.linearTracking));
+      }
+      if (tracking.nonLinearTracking.length() > 0) {
+        VastProcessor.insertTrackingNonLinearCreative(inLineIndex, splicer, creatives,
+            tracking.nonLinearTracking, trackingEventsElement(tracking.nonLinearTracking));
+      }
+      if (tracking.clickTracking.length() > 0) {
+        insertClickTracking(inLineIndex, splicer, creatives, tracking.clickTracking);
+      }
+    } else {
+      LOGGER.debug("No {} element found in InLine ad, skip merging creative tracking", VastElementType.Creatives);
+    }
+    LOGGER.debug("Flattened {} Wrapper docs with {} insertions", vastDocs.size() - 1, splicer.insertions());
+    return splicer.toStringBuilder();
+  }
+
+  /**
+   * Find the InLine or Wrapper element of the first Ad element of a doc.
+   */
+  private static int firstAdBody(VastIndex index, VastElementType type) {
+    final int ad = index.first(VastElementType.Ad, 0, index.getDoc().length());
+    if (ad == NOT_FOUND || !index.isClosed(ad)) {
+      return NOT_FOUND;
+    }
+    final int adBody = index.firstChild(ad, type);
+    return adBody == NOT_FOUND || !index.isClosed(adBody) ? NOT_FOUND : adBody;
+  }
+
+  private static CharSequence trackingEventsElement(CharSequence trackingEvents) {
+    return new StringBuilder(VAST_TRACKING_EVENTS.length() + trackingEvents.length()
+        + VAST_TRACKING_EVENTS_END.length())
+        .append(VAST_TRACKING_EVENTS)
+        .append(trackingEvents)
+        .append(VAST_TRACKING_EVENTS_END);
+  }
+
+  /**
+   * Insert ClickTracking elements in the VideoClicks element of each Linear creative, after the existing
+   * ClickTracking or ClickThrough elements. A Linear creative without VideoClicks gets a new one before its
+   * MediaFiles element, as the VAST schema orders them.
+   * @param index             {@link VastIndex} element offset index of the InLine doc
+   * @param splicer           {@link Splicer} insertions recorded against the InLine doc
+   * @param creatives         {@code int} Creatives element number in the index
+   * @param clickTracking     {@link CharSequence} ClickTracking elements to insert
+   */
+  private static void insertClickTracking(VastIndex index, Splicer splicer, int creatives,
+      CharSequence clickTracking) {
+    final int end = index.closeStart(creatives);
+    CharSequence videoClicksElement = null;
+    for (int linear = index.first(VastElementType.Linear, index.openEnd(creatives), end);
+        linear != NOT_FOUND && index.isClosed(linear);
+        linear = index.first(VastElementType.Linear, index.closeEnd(linear), end)) {
+      final int videoClicks = index.firstChild(linear, VastElementType.VideoClicks);
+      if (videoClicks != NOT_FOUND && index.isClosed(videoClicks) && !index.isSelfClosing(videoClicks)) {
+        int anchor = index.lastChild(videoClicks, VastElementType.ClickTracking);
+        if (anchor == NOT_FOUND || !index.isClosed(anchor)) {
+          anchor = index.firstChild(videoClicks, VastElementType.ClickThrough);
+        }
+        splicer.insert(anchor != NOT_FOUND && index.isClosed(anchor) ? index.closeEnd(anchor)
+            : index.openEnd(videoClicks), clickTracking);
+        continue;
+      }
+
+      if (videoClicksElement == null) {
+        videoClicksElement = new StringBuilder(VAST_VIDEO_CLICKS_ELEMENT.length() + clickTracking.length()
+            + VAST_VIDEO_CLICKS_END.length())
+            .append(VAST_VIDEO_CLICKS_ELEMENT)
+            .append(clickTracking)
+            .append(VAST_VIDEO_CLICKS_END);
+      }
+      if (videoClicks != NOT_FOUND && index.isClosed(videoClicks)) {
+        // a self-closing <VideoClicks/> has no room for elements, replace it
+        splicer.replace(index.openStart(videoClicks), index.closeEnd(videoClicks), videoClicksElement);
+        continue;
+      }
+      final int mediaFiles = index.firstChild(linear, VastElementType.MediaFiles);
+      splicer.insert(mediaFiles != NOT_FOUND ? index.openStart(mediaFiles) : index.closeStart(linear),
+          videoClicksElement);
+    }
+  }
+
+  /**
+   * Tracking elements collected from the Wrappers of a chain, each element copied with its attributes.
+   */
+  private static final class Tracking {
+    private final StringBuilder errors = new StringBuilder();
+    private final StringBuilder impressions = new StringBuilder();
+    private final StringBuilder linearTracking = new StringBuilder();
+    private final StringBuilder nonLinearTracking = new StringBuilder();
+    private final StringBuilder clickTracking = new StringBuilder();
+
+    void collect(VastIndex index, int wrapper) {
+      appendChildren(errors, index, wrapper, VastElementType.Error);
+      appendChildren(impressions, index, wrapper, VastElementType.Impression);
+
+      final int creatives = index.firstChild(wrapper, VastElementType.Creatives);
+      if (creatives == NOT_FOUND || !index.isClosed(creatives)) {
+        return;
+      }
+      final int end = index.closeStart(creatives);
+      for (int linear = index.first(VastElementType.Linear, index.openEnd(creatives), end);
+          linear != NOT_FOUND && index.isClosed(linear);
+          linear = index.first(VastElementType.Linear, index.closeEnd(linear), end)) {
+        appendGrandChildren(linearTracking, index, linear, VastElementType.TrackingEvents, VastElementType.Tracking);
+        appendGrandChildren(clickTracking, index, linear, VastElementType.VideoClicks,
+            VastElementType.ClickTracking);
+      }
+      for (int nonLinearAds = index.first(VastElementType.NonLinearAds, index.openEnd(creatives), end);
+          nonLinearAds != NOT_FOUND && index.isClosed(nonLinearAds);
+          nonLinearAds = index.first(VastElementType.NonLinearAds, index.closeEnd(nonLinearAds), end)) {
+        appendGrandChildren(nonLinearTracking, index, nonLinearAds, VastElementType.TrackingEvents,
+            VastElementType.Tracking);
+      }
+    }
+
+    /**
+     * Get the Ad level pixels, Error elements first as the VAST schema orders them.
+     */
+    CharSequence adPixels() {
+      return new StringBuilder(errors.length() + impressions.length()).append(errors).append(impressions);
+    }
+
+    private static void appendGrandChildren(StringBuilder out, VastIndex index, int parent,
+        VastElementType childType, VastElementType type) {
+      final int child = index.firstChild(parent, childType);
+      if (child != NOT_FOUND && index.isClosed(child) && !index.isSelfClosing(child)) {
+        appendChildren(out, index, child, type);
+      }
+    }
+
+    private static void appendChildren(StringBuilder out, VastIndex index, int parent, VastElementType type) {
+      final int end = index.closeStart(parent);
+      for (int element = index.first(type, index.openEnd(parent), end);
+          element != NOT_FOUND;
+          element = index.first(type, index.openEnd(element), end)) {
+        if (index.parent(element) == parent && index.isClosed(element)) {
+          out.append(System.lineSeparator());
+          StringUtil.appendTo(out, index.getDoc(), index.openStart(element), index.closeEnd(element));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,534 @@
+package io.github.guozheng.jvast;
+
+import static io.github.guozheng.jvast.util.VastIndex.NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.model.WrapperChain;
+import io.github.guozheng.jvast.model.WrapperChainStatus;
+import io.github.guozheng.jvast.util.VastIndex;
+import io.github.guozheng.jvast.util.VideoAdUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Follows the VASTAdTagURI chains of Wrapper ads to their InLine ads. Requests are sent with a non-blocking
+ * {@link HttpClient}, which reuses connections and negotiates HTTP/2. Every hop has its own deadline on top
+ * of a deadline for the whole chain, a redirect url requested twice in a chain ends it as a loop, and the
+ * number of requests in flight across all chains is bounded. Docs are read with the element offset index,
+ * there is no DOM. An optional {@link WrapperCache} saves requests for redirect urls seen recently, and
+ * concurrent requests for the same redirect url, once normalized as a cache key, share one request in flight.
+ * A request without a response after the recent p95 latency of its host is hedged with a duplicate, the first
+ * response wins, and a host failing repeatedly is skipped for a while by a circuit breaker.
+ */
+public class WrapperResolver {
+  private static final Logger LOGGER = LogManager.getLogger(WrapperResolver.class);
+
+  public static final int DEFAULT_MAX_DEPTH = 5;
+  public static final Duration DEFAULT_HOP_TIMEOUT = Duration.ofSeconds(2);
+  public static final Duration DEFAULT_TOTAL_TIMEOUT = Duration.ofSeconds(5);
+  public static final int DEFAULT_MAX_CONCURRENCY = 64;
+  public static final double HEDGE_PERCENTILE = 0.95;
+  public static final int MIN_HEDGE_SAMPLES = 16;
+  public static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(10);
+  public static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+  public static final Duration CIRCUIT_OPEN_TIME = Duration.ofSeconds(10);
+  private static final long NOT_SENT = Long.MIN_VALUE;
+
+  private final HttpClient client;
+  private final int maxDepth;
+  private final Duration hopTimeout;
+  private final Duration totalTimeout;
+  private final Limiter limiter;
+  private final WrapperCache cache;
+  private final ConcurrentHashMap<String, CompletableFuture<HttpResponse<String>>> inFlight =
+      new ConcurrentHashMap<>();
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final ConcurrentHashMap<String, HostHealth> hosts = new ConcurrentHashMap<>();
+
+  /**
+   * Create a resolver with the default limits and an HTTP/2 client of its own.
+   */
+  public WrapperResolver() {
+    this(newHttpClient(DEFAULT_HOP_TIMEOUT), DEFAULT_MAX_DEPTH, DEFAULT_HOP_TIMEOUT, DEFAULT_TOTAL_TIMEOUT,
+        DEFAULT_MAX_CONCURRENCY);
+  }
+
+  /**
+   * Create a resolver.
+   * @param client            {@link HttpClient} client sending the requests, shared to reuse its connections
+   * @param maxDepth          {@code int} maximum number of Wrapper hops of a chain
+   * @param hopTimeout        {@link Duration} deadline of one request, including the wait for a free slot
+   * @param totalTimeout      {@link Duration} deadline of a whole chain
+   * @param maxConcurrency    {@code int} maximum number of requests in flight across all chains
+   */
+  public WrapperResolver(HttpClient client, int maxDepth, Duration hopTimeout, Duration totalTimeout,
+      int maxConcurrency) {
+    this(client, maxDepth, hopTimeout, totalTimeout, maxConcurrency, null);
+  }
+
+  /**
+   * Create a resolver looking up Wrapper responses in a cache before requesting them.
+   * @param client            {@link HttpClient} client sending the requests, shared to reuse its connections
+   * @param maxDepth          {@code int} maximum number of Wrapper hops of a chain
+   * @param hopTimeout        {@link Duration} deadline of one request, including the wait for a free slot
+   * @param totalTimeout      {@link Duration} deadline of a whole chain
+   * @param maxConcurrency    {@code int} maximum number of requests in flight across all chains
+   * @param cache             {@link WrapperCache} cache of responses, shared between resolvers, or null
+   */
+  public WrapperResolver(HttpClient client, int maxDepth, Duration hopTimeout, Duration totalTimeout,
+      int maxConcurrency, WrapperCache cache) {
+    if (maxDepth < 1 || maxConcurrency < 1) {
+      throw new IllegalArgumentException("maxDepth and maxConcurrency must be positive, got " + maxDepth
+          + " and " + maxConcurrency);
+    }
+    this.client = client;
+    this.maxDepth = maxDepth;
+    this.hopTimeout = hopTimeout;
+    this.totalTimeout = totalTimeout;
+    this.limiter = new Limiter(maxConcurrency);
+    this.cache = cache;
+  }
+
+  /**
+   * Create an HTTP/2 client following HTTP redirects, for sharing between resolvers.
+   * @param connectTimeout    {@link Duration} connect timeout
+   * @return                  {@link HttpClient} new client
+   */
+  public static HttpClient newHttpClient(Duration connectTimeout) {
+    return HttpClient.newBuilder()
+        .version(Version.HTTP_2)
+        .followRedirects(Redirect.NORMAL)
+        .connectTimeout(connectTimeout)
+        .build();
+  }
+
+  /**
+   * Get the number of requests sent.
+   * @return      {@code long} number of requests sent
+   */
+  public long fetchCount() {
+    return fetches.get();
+  }
+
+  /**
+   * Get the number of requests saved by sharing a request in flight for the same redirect url.
+   * @return      {@code long} number of requests saved
+   */
+  public long coalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Get the number of duplicate requests sent for requests without a response after their hedge delay.
+   * @return      {@code long} number of hedged requests
+   */
+  public long hedgeCount() {
+    return hedges.get();
+  }
+
+  /**
+   * Get a latency percentile of the recent requests to a host.
+   * @param authority     {@link String} host and port, if any, e.g. {@code ads.example.com:8080}
+   * @param percentile    {@code double} percentile between 0 and 1, e.g. 0.95
+   * @return              {@link Duration} upper bound of the percentile, or null if the host has no recent
+   *                      responses
+   */
+  public Duration hostLatency(String authority, double percentile) {
+    final HostHealth host = hosts.get(authority.toLowerCase(Locale.ROOT));
+    final long nanos = host == null ? -1L : host.latencyNanos(percentile, 1);
+    return nanos < 0L ? null : Duration.ofNanos(nanos);
+  }
+
+  /**
+   * Resolve the Wrapper chains of all Ad elements of a VAST doc, e.g. an ad pod, concurrently.
+   * @param vastDoc       {@link CharSequence} VAST doc
+   * @return              {@code CompletableFuture<List<WrapperChain>>} one chain per Ad element in doc order,
+   *                      empty for an InLine ad, the future itself never fails and a failed chain does not
+   *                      fail the other ads
+   */
+  public CompletableFuture<List<WrapperChain>> resolveAll(CharSequence vastDoc) {
+    final VastIndex index = VastIndex.of(vastDoc);
+    List<CompletableFuture<WrapperChain>> chains = new ArrayList<>(index.count(VastElementType.Ad));
+    for (int ad = index.first(VastElementType.Ad, 0, vastDoc.length()); ad != NOT_FOUND && index.isClosed(ad);
+        ad = index.first(VastElementType.Ad, index.closeEnd(ad), vastDoc.length())) {
+      chains.add(resolve(index, ad));
+    }
+    return CompletableFuture.allOf(chains.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      List<WrapperChain> resolved = new ArrayList<>(chains.size());
+      for (CompletableFuture<WrapperChain> chain : chains) {
+        resolved.add(chain.join());
+      }
+      return resolved;
+    });
+  }
+
+  /**
+   * Resolve the Wrapper chain starting at a redirect url.
+   * @param adTagUri      {@link String} VASTAdTagURI of a Wrapper ad
+   * @return              {@code CompletableFuture<WrapperChain>} the chain, the future itself never fails
+   */
+  public CompletableFuture<WrapperChain> resolve(String adTagUri) {
+    return follow(adTagUri, new Hops(System.nanoTime() + totalTimeout.toNanos()));
+  }
+
+  private CompletableFuture<WrapperChain> resolve(VastIndex index, int ad) {
+    final int wrapper = index.firstChild(ad, VastElementType.Wrapper);
+    if (wrapper == NOT_FOUND) {
+      final WrapperChainStatus status = VideoAdUtil.isInline(index, ad)
+          ? WrapperChainStatus.RESOLVED : WrapperChainStatus.INVALID_RESPONSE;
+      return CompletableFuture.completedFuture(new Hops(0L).end(status,
+          status == WrapperChainStatus.RESOLVED ? null : "Ad is neither InLine nor Wrapper"));
+    }
+    final String adTagUri = VideoAdUtil.getAdTagUri(index, wrapper);
+    if (adTagUri.isEmpty()) {
+      return CompletableFuture.completedFuture(new Hops(0L).end(WrapperChainStatus.INVALID_RESPONSE,
+          "Wrapper has no " + VastElementType.VASTAdTagURI));
+    }
+    return resolve(adTagUri);
+  }
+
+  /**
+   * Request one redirect url and follow the Wrapper in its response, if any.
+   */
+  private CompletableFuture<WrapperChain> follow(String adTagUri, Hops hops) {
+    if (!hops.visited.add(adTagUri)) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.LOOP, "Loop back to " + adTagUri));
+    }
+    if (hops.adTagUris.size() >= maxDepth) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.DEPTH_EXCEEDED,
+          "Wrapper chain exceeded max depth of " + maxDepth));
+    }
+    final long remaining = hops.deadline - System.nanoTime();
+    if (remaining <= 0) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.TIMEOUT, "Wrapper chain timed out"));
+    }
+    final long timeout = Math.min(remaining, hopTimeout.toNanos());
+    final HttpRequest request;
+    try {
+      // other chains may join the request, its own deadline is a full hop, this chain gives up after timeout
+      request = HttpRequest.newBuilder(URI.create(adTagUri))
+          .timeout(hopTimeout)
+          .GET()
+          .build();
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.INVALID_RESPONSE,
+          "Invalid redirect url " + adTagUri));
+    }
+    hops.adTagUris.add(adTagUri);
+
+    final String cached = cache == null ? null : cache.get(adTagUri);
+    if (cached != null) {
+      LOGGER.debug("Found hop {} of Wrapper chain in cache: {}", hops.adTagUris.size(), adTagUri);
+      return next(request.uri(), cached, hops);
+    }
+    final HostHealth host = host(request.uri());
+    if (!host.allowRequest()) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.CIRCUIT_OPEN,
+          "Circuit open for host of " + adTagUri));
+    }
+    LOGGER.debug("Requesting hop {} of Wrapper chain: {}", hops.adTagUris.size(), adTagUri);
+    return fetch(adTagUri, request, host)
+        .orTimeout(timeout, TimeUnit.NANOSECONDS)
+        .handle((response, error) -> {
+          if (error != null) {
+            return CompletableFuture.completedFuture(failed(hops, adTagUri, error));
+          }
+          if (response.statusCode() != HTTP_OK) {
+            return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.HTTP_ERROR,
+                "Got status " + response.statusCode() + " from " + adTagUri));
+          }
+          return next(request.uri(), response.body(), hops);
+        })
+        .thenCompose(chain -> chain);
+  }
+
+  /**
+   * Send a request, or join the request in flight for the same redirect url. The shared request has the hop
+   * timeout whatever chain sends it, so a chain close to its total deadline does not cut it short for the
+   * chains joining it. Every caller gets its own copy and applies its own deadline to it, so a caller timing
+   * out earlier does not fail the others.
+   */
+  private CompletableFuture<HttpResponse<String>> fetch(String adTagUri, HttpRequest request, HostHealth host) {
+    final String key = WrapperCache.normalize(adTagUri);
+    final CompletableFuture<HttpResponse<String>> started = new CompletableFuture<>();
+    final CompletableFuture<HttpResponse<String>> shared = inFlight.putIfAbsent(key, started);
+    if (shared != null) {
+      coalesced.incrementAndGet();
+      LOGGER.debug("Joining request in flight for {}", adTagUri);
+      return shared.copy();
+    }
+    fetches.incrementAndGet();
+    hedged(request, host, hopTimeout.toNanos())
+        .whenComplete((response, error) -> {
+          // removed before completing, a later caller never joins a finished request
+          inFlight.remove(key, started);
+          if (error != null) {
+            started.completeExceptionally(error);
+            return;
+          }
+          if (cache != null && response.statusCode() == HTTP_OK) {
+            cache.put(adTagUri, response.body());
+          }
+          started.complete(response);
+        });
+    return started.copy();
+  }
+
+  /**
+   * Send a request, and a duplicate one if there is no response after the recent p95 latency of its host, or
+   * after half the timeout while the host has too few recent responses. The first response wins, a failed
+   * request leaves the other one to finish.
+   */
+  private CompletableFuture<HttpResponse<String>> hedged(HttpRequest request, HostHealth host, long timeout) {
+    final CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+    final long deadline = System.nanoTime() + timeout;
+    // requests not finished yet, a duplicate is only sent while the first one is
+    final AtomicInteger attempts = new AtomicInteger(1);
+    attempt(request, host, timeout, result, attempts);
+
+    final long latency = host.latencyNanos(HEDGE_PERCENTILE, MIN_HEDGE_SAMPLES);
+    final long delay = Math.max(MIN_HEDGE_DELAY.toNanos(), latency < 0L ? timeout / 2 : latency);
+    if (delay < timeout) {
+      CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+        int pending;
+        do {
+          pending = attempts.get();
+          if (pending == 0 || result.isDone()) {
+            return;
+          }
+        } while (!attempts.compareAndSet(pending, pending + 1));
+        hedges.incrementAndGet();
+        LOGGER.debug("Hedging request to {} after {} ms", request.uri(), delay / 1_000_000L);
+        attempt(request, host, deadline - System.nanoTime(), result, attempts);
+      });
+    }
+    return result;
+  }
+
+  private void attempt(HttpRequest request, HostHealth host, long timeout,
+      CompletableFuture<HttpResponse<String>> result, AtomicInteger attempts) {
+    // send time, set once the limiter hands the request a permit
+    final AtomicLong sent = new AtomicLong(NOT_SENT);
+    final CompletableFuture<HttpResponse<String>> response = limiter.submit(() -> {
+      sent.set(System.nanoTime());
+      return client.sendAsync(request, BodyHandlers.ofString());
+    }).orTimeout(timeout, TimeUnit.NANOSECONDS);
+    // the losing request is not sent if it still waits for a slot
+    result.whenComplete((value, error) -> response.cancel(false));
+
+    response.whenComplete((value, error) -> {
+      if (error instanceof CancellationException) {
+        return;
+      }
+      if (error == null && value.statusCode() < HTTP_INTERNAL_ERROR) {
+        host.success(System.nanoTime() - sent.get());
+        result.complete(value);
+        return;
+      }
+      // errors, timeouts and server errors of sent requests count towards opening the circuit breaker, a
+      // request timing out while it waits for a permit says nothing about the host
+      if (sent.get() != NOT_SENT) {
+        host.failure();
+      } else {
+        LOGGER.debug("Request to {} timed out waiting for a permit", request.uri());
+      }
+      if (attempts.decrementAndGet() == 0) {
+        if (error != null) {
+          result.completeExceptionally(error);
+        } else {
+          result.complete(value);
+        }
+      }
+    });
+  }
+
+  private HostHealth host(URI uri) {
+    final String authority = uri.getRawAuthority() == null ? "" : uri.getRawAuthority().toLowerCase(Locale.ROOT);
+    return hosts.computeIfAbsent(authority, key -> new HostHealth(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_TIME));
+  }
+
+  /**
+   * Follow the response doc of one hop, it ends the chain unless it holds another Wrapper.
+   */
+  private CompletableFuture<WrapperChain> next(URI uri, String doc, Hops hops) {
+    hops.docs.add(doc);
+    if (!VideoAdUtil.getVideoAdType(doc).getType().equals("VAST")) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.INVALID_RESPONSE,
+          "No VAST doc from " + uri));
+    }
+
+    // a Wrapper response holds a single ad, follow the first one
+    final VastIndex index = VastIndex.of(doc);
+    final int ad = index.first(VastElementType.Ad, 0, doc.length());
+    if (ad == NOT_FOUND || !index.isClosed(ad)) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.INVALID_RESPONSE,
+          "No Ad in VAST doc from " + uri));
+    }
+    if (VideoAdUtil.isInline(index, ad)) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.RESOLVED, null));
+    }
+    final int wrapper = index.firstChild(ad, VastElementType.Wrapper);
+    final String adTagUri = wrapper == NOT_FOUND ? VideoAdUtil.EMPTY_WRAPPER_REDIRECT_URL
+        : VideoAdUtil.getAdTagUri(index, wrapper);
+    if (adTagUri.isEmpty()) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.INVALID_RESPONSE,
+          "No InLine ad or redirect url in VAST doc from " + uri));
+    }
+    final String next;
+    try {
+      // a relative redirect url is relative to the url of the doc holding it
+      next = uri.resolve(adTagUri).toString();
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.completedFuture(hops.end(WrapperChainStatus.INVALID_RESPONSE,
+          "Invalid redirect url " + adTagUri));
+    }
+    return follow(next, hops);
+  }
+
+  private static WrapperChain failed(Hops hops, String adTagUri, Throwable error) {
+    final Throwable cause = error instanceof CompletionException && error.getCause() != null
+        ? error.getCause() : error;
+    if (cause instanceof TimeoutException || cause instanceof HttpTimeoutException) {
+      return hops.end(WrapperChainStatus.TIMEOUT, "Timed out requesting " + adTagUri);
+    }
+    LOGGER.debug("Failed requesting {}: {}", adTagUri, cause.toString());
+    return hops.end(WrapperChainStatus.HTTP_ERROR, "Failed requesting " + adTagUri + ": " + cause);
+  }
+
+  /**
+   * Hops of one chain so far. Hops are sequential, each one completes before the next starts.
+   */
+  private static final class Hops {
+    private final long deadline;
+    private final List<String> adTagUris = new ArrayList<>(DEFAULT_MAX_DEPTH);
+    private final List<String> docs = new ArrayList<>(DEFAULT_MAX_DEPTH);
+    private final Set<String> visited = new HashSet<>();
+
+    Hops(long deadline) {
+      this.deadline = deadline;
+    }
+
+    WrapperChain end(WrapperChainStatus status, String error) {
+      return WrapperChain.builder()
+          .status(status)
+          .adTagUris(Collections.unmodifiableList(adTagUris))
+          .docs(Collections.unmodifiableList(docs))
+          .error(error)
+          .build();
+    }
+  }
+
+  /**
+   * Bounds the number of requests in flight, requests over the bound wait in submission order. A waiting
+   * request whose caller gave up, e.g. on its deadline, is never sent.
+   */
+  private static final class Limiter {
+    private final int permits;
+    private final ArrayDeque<Pending<?>> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    Limiter(int permits) {
+      this.permits = permits;
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+      final Pending<T> pending = new Pending<>(request);
+      final boolean start;
+      synchronized (this) {
+        start = inFlight < permits;
+        if (start) {
+          inFlight++;
+        } else {
+          waiting.add(pending);
+        }
+      }
+      if (start && !pending.start(this)) {
+        release();
+      }
+      return pending.result;
+    }
+
+    /**
+     * Hand the permit of a finished request to the next waiting one, or give it back.
+     */
+    void release() {
+      while (true) {
+        final Pending<?> next;
+        synchronized (this) {
+          next = waiting.poll();
+          if (next == null) {
+            inFlight--;
+            return;
+          }
+        }
+        if (next.start(this)) {
+          return;
+        }
+      }
+    }
+  }
+
+  private static final class Pending<T> {
+    private final Supplier<CompletableFuture<T>> request;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    Pending(Supplier<CompletableFuture<T>> request) {
+      this.request = request;
+    }
+
+    /**
+     * Send the request holding a permit of the limiter.
+     * @return      {@code boolean} true if sent, false if the caller gave up and the permit is still held
+     */
+    boolean start(Limiter limiter) {
+      if (result.isDone()) {
+        return false;
+      }
+      final CompletableFuture<T> response;
+      try {
+        response = request.get();
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+        return false;
+      }
+      response.whenComplete((value, error) -> {
+        limiter.release();
+        if (error != null) {
+          result.completeExceptionally(error);
+        } else {
+          result.complete(value);
+        }
+      });
+      return true;
+    }
+  }
+}
@@ -1,19 +1,36 @@
 package io.github.guozheng.jvast.model;
 
+import java.nio.CharBuffer;
 import java.util.List;
+import io.github.guozheng.jvast.util.ByteCharSequence;
+import io.github.guozheng.jvast.util.StringUtil;
+import io.github.guozheng.jvast.util.VastIndex;
+import io.github.guozheng.jvast.util.VideoAdUtil;
 import lombok.Builder;
 import lombok.Data;
 import lombok.ToString;
 
 /**
- * This class represents data from Ad XML element.
+ * This class represents data from Ad XML element. It is a view of the {@code [start, end)} range of a shared
+ * source doc, the Ad XML is never copied unless {@link #appendTo(StringBuilder)} or {@link #toContentString()}
+ * is called. Ad id and creative ids are looked up in the element offset index on first access.
  */
 @Data
 @Builder(toBuilder = true)
 @ToString(callSuper = true, includeFieldNames = true)
 public class Ad {
-  //Ad XML element string value, e.g. <Ad...>...</Ad>
-  private StringBuilder content;
+  //source doc holding the Ad XML element, shared by all Ad elements of the doc
+  @ToString.Exclude
+  private CharSequence source;
+
+  //Ad XML element range in the source, e.g. <Ad...>...</Ad>
+  private int start;
+  private int end;
+
+  //element offset index of the source and Ad element number in it, used to materialize ids lazily
+  @ToString.Exclude
+  private VastIndex index;
+  private int element;
 
   //Ad type that includes template such as VAST, VMAP and version such as 1.0, 2.0, etc.
   private AdTypeVersion type;
@@ -22,4 +39,86 @@ public class Ad {
 
   private List<String> creativeIds;
 
+  /**
+   * Get a read-only view of the Ad XML element, the source is not copied.
+   * @return      {@link CharSequence} Ad XML element view
+   */
+  public CharSequence getContent() {
+    return source instanceof ByteCharSequence ? source.subSequence(start, end) : CharBuffer.wrap(source, start, end);
+  }
+
+  /**
+   * Point this Ad at a standalone Ad XML element, the entire content is the element. Kept for callers
+   * setting the Ad XML directly, ids are not looked up for such an Ad.
+   * @param content     {@link CharSequence} Ad XML element, e.g. {@code <Ad...>...</Ad>}
+   */
+  public void setContent(CharSequence content) {
+    this.source = content;
+    this.start = 0;
+    this.end = content.length();
+  }
+
+  /**
+   * Get the length of the Ad XML element in the source.
+   * @return      {@code int} length of the Ad XML element
+   */
+  public int length() {
+    return end - start;
+  }
+
+  /**
+   * Copy the Ad XML element straight from the source range.
+   * @param out       {@link StringBuilder} output builder
+   * @return          {@link StringBuilder} the output builder
+   */
+  public StringBuilder appendTo(StringBuilder out) {
+    return StringUtil.appendTo(out, source, start, end);
+  }
+
+  /**
+   * Copy the Ad XML element into a {@link String}.
+   * @return      {@link String} Ad XML element
+   */
+  public String toContentString() {
+    return appendTo(new StringBuilder(length())).toString();
+  }
+
+  /**
+   * Get the ad id, looked up in the index on first access.
+   * @return      {@link String} ad id
+   */
+  public String getAdId() {
+    if (adId == null && index != null) {
+      adId = VideoAdUtil.getAdId(index, element);
+    }
+    return adId;
+  }
+
+  /**
+   * Get the creative ids, looked up in the index on first access.
+   * @return      {@code List<String>} creative ids
+   */
+  public List<String> getCreativeIds() {
+    if (creativeIds == null && index != null) {
+      creativeIds = VideoAdUtil.getCreativeIds(index, element);
+    }
+    return creativeIds;
+  }
+
+  /**
+   * Builder of {@link Ad}, generated by Lombok apart from {@link #content(CharSequence)}.
+   */
+  public static class AdBuilder {
+    /**
+     * Build an Ad of a standalone Ad XML element, the entire content is the element.
+     * @param content     {@link CharSequence} Ad XML element, e.g. {@code <Ad...>...</Ad>}
+     * @return            {@link AdBuilder} this builder
+     */
+    public AdBuilder content(CharSequence content) {
+      this.source = content;
+      this.start = 0;
+      this.end = content.length();
+      return this;
+    }
+  }
 }
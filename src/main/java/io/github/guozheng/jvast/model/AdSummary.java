@@ -0,0 +1,61 @@
+package io.github.guozheng.jvast.model;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+/**
+ * Metadata of one Ad element of a video ad doc, see {@link VastSummary}.
+ */
+public class AdSummary {
+  // id attribute of the Ad element, -1 if there is none
+  String adId;
+
+  // sequence attribute of the Ad element in a pod, -1 if there is none
+  int sequence;
+
+  // true for a Wrapper ad, false for an InLine ad
+  boolean wrapper;
+
+  // redirect url of a Wrapper ad, empty for an InLine ad
+  String adTagUri;
+
+  // id attribute of each Creative element, 'unknown' if there is none, unmodifiable
+  List<String> creativeIds;
+
+  // value of each Duration element in milliseconds, -1 if it is not valid
+  int[] durationsMillis;
+
+  int mediaFileCount;
+
+  // number of existing Tracking elements per TrackingEventElementType ordinal, events not in the enum are
+  // counted as unknown
+  int[] trackingEventCounts;
+
+  /**
+   * Get the value of each Duration element in milliseconds.
+   * @return          {@code int[]} a copy of the durations, -1 for a Duration that is not valid
+   */
+  public int[] getDurationsMillis() {
+    return durationsMillis.clone();
+  }
+
+  /**
+   * Get the number of existing Tracking elements per event type.
+   * @return          {@code int[]} a copy of the counts, indexed by {@link TrackingEventElementType} ordinal
+   */
+  public int[] getTrackingEventCounts() {
+    return trackingEventCounts.clone();
+  }
+
+  /**
+   * Get the number of existing Tracking elements of an event type.
+   * @param type      {@link TrackingEventElementType} tracking event type
+   * @return          {@code int} number of Tracking elements
+   */
+  public int getTrackingEventCount(TrackingEventElementType type) {
+    return trackingEventCounts[type.ordinal()];
+  }
+}
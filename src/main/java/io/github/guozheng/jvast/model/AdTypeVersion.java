@@ -9,6 +9,7 @@ public enum AdTypeVersion {
   VAST_3_0("VAST", "3.0"),
   VAST_4_0("VAST", "4.0"),
   VAST_4_1("VAST", "4.1"),
+  VAST_4_2("VAST", "4.2"),
   VMAP_1_0("VMAP", "1.0");
 
   private String type;
@@ -35,6 +36,14 @@ public enum AdTypeVersion {
     return version;
   }
 
+  /**
+   * Check if the ad type is VAST 4.x.
+   * @return    {@code boolean} true for VAST 4.0, 4.1 and 4.2, false otherwise
+   */
+  public boolean isVast4() {
+    return this == VAST_4_0 || this == VAST_4_1 || this == VAST_4_2;
+  }
+
   /**
    * Get {@link AdTypeVersion} given type and version values.
    * @param type        {@link String} type value
@@ -52,6 +61,8 @@ public enum AdTypeVersion {
           return VAST_4_0;
         case "4.1":
           return VAST_4_1;
+        case "4.2":
+          return VAST_4_2;
         default:
           return VAST_2_0;
       }
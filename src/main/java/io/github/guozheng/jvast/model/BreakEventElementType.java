@@ -0,0 +1,10 @@
+package io.github.guozheng.jvast.model;
+
+/**
+ * Enum representing the events of break level Tracking elements of a VMAP AdBreak.
+ */
+public enum BreakEventElementType {
+  breakStart,
+  breakEnd,
+  error;
+}
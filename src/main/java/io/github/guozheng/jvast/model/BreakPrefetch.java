@@ -0,0 +1,29 @@
+package io.github.guozheng.jvast.model;
+
+import java.util.concurrent.CompletableFuture;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+/**
+ * Scheduled resolution of the vmap:AdTagURI of one VMAP AdBreak element.
+ */
+public class BreakPrefetch {
+  // position of the AdBreak element in the VMAP doc, from 0
+  int position;
+
+  // breakId attribute of the AdBreak element, null if there is none
+  String breakId;
+
+  // timeOffset attribute of the AdBreak element, e.g. start, 00:00:15.000, 50% or end
+  String timeOffset;
+
+  String adTagUri;
+
+  // true if resolved right away, false if deferred to the background lane
+  boolean priority;
+
+  // the resolved chain, the future itself never fails, cancelling a deferred break before it starts skips it
+  CompletableFuture<WrapperChain> chain;
+}
@@ -0,0 +1,188 @@
+package io.github.guozheng.jvast.model;
+
+import com.google.common.collect.Multimap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import io.github.guozheng.jvast.util.PixelFragments;
+
+/**
+ * Immutable insertion plan compiled from {@link InputData}. Pixel and tracking event urls are held in arrays
+ * indexed by {@link PixelElementType#ordinal()} and {@link TrackingEventElementType#ordinal()}, urls are
+ * validated once, and the XML fragments are rendered once. Instances are safe to share across threads and
+ * to cache, e.g. per publisher or campaign, and can be passed to the processor directly.
+ * Per-request macro values are bound with {@link #bind(MacroValues)}, which shares everything compiled.
+ */
+public final class CompiledInputData implements ProcessingInput {
+  private static final String CDATA_END = "]]>";
+  private static final String[] NO_URLS = new String[0];
+
+  private final String[][] pixelUrls;
+  private final String[][] trackingEventUrls;
+  private final String[][] breakEventUrls;
+  private final boolean empty;
+  private final boolean breakEvents;
+  private final PixelFragments fragments;
+  private final MacroValues macros;
+
+  private CompiledInputData(String[][] pixelUrls, String[][] trackingEventUrls, String[][] breakEventUrls,
+      boolean empty, boolean breakEvents) {
+    this.pixelUrls = pixelUrls;
+    this.trackingEventUrls = trackingEventUrls;
+    this.breakEventUrls = breakEventUrls;
+    this.empty = empty;
+    this.breakEvents = breakEvents;
+    this.fragments = PixelFragments.render(this);
+    this.macros = null;
+  }
+
+  private CompiledInputData(CompiledInputData compiled, MacroValues macros) {
+    this.pixelUrls = compiled.pixelUrls;
+    this.trackingEventUrls = compiled.trackingEventUrls;
+    this.breakEventUrls = compiled.breakEventUrls;
+    this.empty = compiled.empty;
+    this.breakEvents = compiled.breakEvents;
+    this.fragments = compiled.fragments.bind(macros);
+    this.macros = macros;
+  }
+
+  /**
+   * Compile pixels and tracking events into an insertion plan. Pixels of {@link PixelElementType#unknown} type
+   * are dropped, duplicated keys of the multimaps contribute their urls once.
+   * @param pixelMap            {@code Multimap<PixelElementType, String>} Ad level pixels, may be null
+   * @param trackingEventMap    {@code Multimap<TrackingEventElementType, String>} tracking events, may be null
+   * @return                    {@link CompiledInputData} compiled input data
+   * @throws IllegalArgumentException   if a url is null or contains {@code ]]>}, which would end its CDATA section
+   */
+  public static CompiledInputData of(Multimap<PixelElementType, String> pixelMap,
+      Multimap<TrackingEventElementType, String> trackingEventMap) {
+    return of(pixelMap, trackingEventMap, null);
+  }
+
+  /**
+   * Compile pixels, tracking events and VMAP break tracking events into an insertion plan.
+   * @param pixelMap            {@code Multimap<PixelElementType, String>} Ad level pixels, may be null
+   * @param trackingEventMap    {@code Multimap<TrackingEventElementType, String>} tracking events, may be null
+   * @param breakEventMap       {@code Multimap<BreakEventElementType, String>} AdBreak level tracking events,
+   *                            may be null
+   * @return                    {@link CompiledInputData} compiled input data
+   * @throws IllegalArgumentException   if a url is null or contains {@code ]]>}, which would end its CDATA section
+   */
+  public static CompiledInputData of(Multimap<PixelElementType, String> pixelMap,
+      Multimap<TrackingEventElementType, String> trackingEventMap,
+      Multimap<BreakEventElementType, String> breakEventMap) {
+    String[][] pixelUrls = new String[PixelElementType.values().length][];
+    String[][] trackingEventUrls = new String[TrackingEventElementType.values().length][];
+    boolean empty = true;
+    for (PixelElementType type : PixelElementType.values()) {
+      pixelUrls[type.ordinal()] = type == PixelElementType.unknown || pixelMap == null
+          ? NO_URLS : validate(type, pixelMap.get(type));
+      empty &= pixelUrls[type.ordinal()].length == 0;
+    }
+    for (TrackingEventElementType type : TrackingEventElementType.values()) {
+      trackingEventUrls[type.ordinal()] = trackingEventMap == null ? NO_URLS : validate(type, trackingEventMap.get(type));
+      empty &= trackingEventUrls[type.ordinal()].length == 0;
+    }
+    String[][] breakEventUrls = new String[BreakEventElementType.values().length][];
+    boolean breakEvents = false;
+    for (BreakEventElementType type : BreakEventElementType.values()) {
+      breakEventUrls[type.ordinal()] = breakEventMap == null ? NO_URLS : validate(type, breakEventMap.get(type));
+      breakEvents |= breakEventUrls[type.ordinal()].length > 0;
+    }
+    return new CompiledInputData(pixelUrls, trackingEventUrls, breakEventUrls, empty, breakEvents);
+  }
+
+  @Override
+  public CompiledInputData compile() {
+    return this;
+  }
+
+  /**
+   * Bind per-request macro values, e.g. {@code [CACHEBUSTING]} or {@code ${AUCTION_PRICE}}, to the pixel and
+   * tracking event urls and to the VASTAdTagURI of Wrapper ads. The values are written straight into the output.
+   * @param macros    {@link MacroValues} macro values of one request
+   * @return          {@link CompiledInputData} compiled input data bound to the macro values
+   */
+  public CompiledInputData bind(MacroValues macros) {
+    return new CompiledInputData(this, macros);
+  }
+
+  /**
+   * Get pixel urls of a pixel type.
+   * @param type      {@link PixelElementType} pixel type
+   * @return          {@code List<String>} unmodifiable list of pixel urls
+   */
+  public List<String> getPixelUrls(PixelElementType type) {
+    return Collections.unmodifiableList(Arrays.asList(pixelUrls[type.ordinal()]));
+  }
+
+  /**
+   * Get tracking event urls of a tracking event type.
+   * @param type      {@link TrackingEventElementType} tracking event type
+   * @return          {@code List<String>} unmodifiable list of tracking event urls
+   */
+  public List<String> getTrackingEventUrls(TrackingEventElementType type) {
+    return Collections.unmodifiableList(Arrays.asList(trackingEventUrls[type.ordinal()]));
+  }
+
+  /**
+   * Get VMAP AdBreak level tracking event urls of an event type.
+   * @param type      {@link BreakEventElementType} break event type
+   * @return          {@code List<String>} unmodifiable list of break tracking event urls
+   */
+  public List<String> getBreakEventUrls(BreakEventElementType type) {
+    return Collections.unmodifiableList(Arrays.asList(breakEventUrls[type.ordinal()]));
+  }
+
+  /**
+   * Check if there are VMAP AdBreak level tracking events to insert.
+   * @return      {@code boolean} true if there are break tracking events, false otherwise
+   */
+  public boolean hasBreakEvents() {
+    return breakEvents;
+  }
+
+  /**
+   * Check if there is nothing to insert.
+   * @return      {@code boolean} true if there are no pixels and no tracking events, false otherwise, break
+   *              tracking events of VMAP docs are not counted
+   */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * Get pixel and tracking event XML fragments rendered at compile time.
+   * @return      {@link PixelFragments} rendered fragments
+   */
+  public PixelFragments getFragments() {
+    return fragments;
+  }
+
+  /**
+   * Get the bound macro values.
+   * @return      {@link MacroValues} macro values, or null if none are bound
+   */
+  public MacroValues getMacros() {
+    return macros;
+  }
+
+  private static String[] validate(Enum<?> type, Collection<String> urls) {
+    if (urls.isEmpty()) {
+      return NO_URLS;
+    }
+    List<String> valid = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      if (url == null) {
+        throw new IllegalArgumentException("Null url for " + type);
+      }
+      if (url.contains(CDATA_END)) {
+        throw new IllegalArgumentException("Url for " + type + " contains " + CDATA_END + ": " + url);
+      }
+      valid.add(url);
+    }
+    return valid.toArray(NO_URLS);
+  }
+}
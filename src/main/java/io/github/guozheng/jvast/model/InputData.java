@@ -1,17 +1,84 @@
 package io.github.guozheng.jvast.model;
 
 import com.google.common.collect.Multimap;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 
-@Builder
 @Data
 /**
- * Data used for ad processing.
+ * Data used for ad processing. It is compiled into a {@link CompiledInputData} on first use, and the compiled
+ * data is reused for every ad and every request processed with the same instance. A map modified in place is not
+ * compiled again until it is set again, passing the same instance to its setter is enough.
  */
-public class InputData {
+public class InputData implements ProcessingInput {
   // Ad level pixel insertion
   Multimap<PixelElementType, String> pixelMap;
   // creative level TrackingEvent insertion
   Multimap<TrackingEventElementType, String> trackingEventMap;
+  // VMAP AdBreak level Tracking insertion
+  Multimap<BreakEventElementType, String> breakEventMap;
+
+  // insertion plan compiled from the maps on first use, dropped when a map is set
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  private volatile CompiledInputData compiled;
+
+  @Builder
+  InputData(Multimap<PixelElementType, String> pixelMap,
+      Multimap<TrackingEventElementType, String> trackingEventMap,
+      Multimap<BreakEventElementType, String> breakEventMap) {
+    this.pixelMap = pixelMap;
+    this.trackingEventMap = trackingEventMap;
+    this.breakEventMap = breakEventMap;
+  }
+
+  /**
+   * Set Ad level pixels, previously compiled data is dropped.
+   * @param pixelMap      {@code Multimap<PixelElementType, String>} Ad level pixels
+   */
+  public void setPixelMap(Multimap<PixelElementType, String> pixelMap) {
+    this.pixelMap = pixelMap;
+    this.compiled = null;
+  }
+
+  /**
+   * Set creative level tracking events, previously compiled data is dropped.
+   * @param trackingEventMap      {@code Multimap<TrackingEventElementType, String>} tracking events
+   */
+  public void setTrackingEventMap(Multimap<TrackingEventElementType, String> trackingEventMap) {
+    this.trackingEventMap = trackingEventMap;
+    this.compiled = null;
+  }
+
+  /**
+   * Set VMAP AdBreak level tracking events, previously compiled data is dropped.
+   * @param breakEventMap     {@code Multimap<BreakEventElementType, String>} break tracking events
+   */
+  public void setBreakEventMap(Multimap<BreakEventElementType, String> breakEventMap) {
+    this.breakEventMap = breakEventMap;
+    this.compiled = null;
+  }
+
+  /**
+   * Compile into an immutable insertion plan, compiled on first use and cached until a map is set. Concurrent
+   * first uses may compile more than once, the compiled data is immutable so any of them can be kept.
+   * @return      {@link CompiledInputData} compiled input data
+   * @throws IllegalArgumentException   if a url is null or contains {@code ]]>}
+   */
+  @Override
+  public CompiledInputData compile() {
+    CompiledInputData result = compiled;
+    if (result == null) {
+      result = CompiledInputData.of(pixelMap, trackingEventMap, breakEventMap);
+      compiled = result;
+    }
+    return result;
+  }
 }
@@ -0,0 +1,55 @@
+package io.github.guozheng.jvast.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import io.github.guozheng.jvast.util.StringUtil;
+
+/**
+ * Per-request macro values, keyed by macro name without the macro delimiters, e.g. {@code AUCTION_PRICE}
+ * fills {@code [AUCTION_PRICE]}, {@code ${AUCTION_PRICE}} and {@code %24%7BAUCTION_PRICE%7D}.
+ * Values are written verbatim, they must be encoded for the url they are written into by the caller.
+ * Macros without a value are left in place, e.g. {@code [ERRORCODE]} is filled in by the player.
+ * Not thread safe, create one instance per request.
+ */
+public final class MacroValues {
+  public static final String CACHEBUSTING = "CACHEBUSTING";
+  public static final String TIMESTAMP = "TIMESTAMP";
+  public static final String AUCTION_PRICE = "AUCTION_PRICE";
+  public static final String REQUEST_ID = "REQUEST_ID";
+
+  private static final String CDATA_END = "]]>";
+
+  private final Map<String, CharSequence> values = new HashMap<>();
+
+  /**
+   * Set the value of a macro.
+   * @param name      {@link String} macro name, e.g. {@link #CACHEBUSTING}
+   * @param value     {@link CharSequence} macro value
+   * @return          {@link MacroValues} this macro values
+   * @throws IllegalArgumentException   if the value is null or contains {@code ]]>}, which would end its CDATA section
+   */
+  public MacroValues put(String name, CharSequence value) {
+    if (value == null || StringUtil.indexOf(value, CDATA_END, 0, value.length()) != -1) {
+      throw new IllegalArgumentException("Invalid value for macro " + name + ": " + value);
+    }
+    values.put(name, value);
+    return this;
+  }
+
+  /**
+   * Get the value of a macro.
+   * @param name      {@link String} macro name
+   * @return          {@link CharSequence} macro value, or null if the macro has no value
+   */
+  public CharSequence get(String name) {
+    return values.get(name);
+  }
+
+  /**
+   * Check if no macro has a value.
+   * @return      {@code boolean} true if there are no values, false otherwise
+   */
+  public boolean isEmpty() {
+    return values.isEmpty();
+  }
+}
@@ -0,0 +1,13 @@
+package io.github.guozheng.jvast.model;
+
+/**
+ * Input for ad processing, compiled into an immutable insertion plan before it is used.
+ */
+public interface ProcessingInput {
+
+  /**
+   * Compile into an immutable insertion plan.
+   * @return      {@link CompiledInputData} compiled input data
+   */
+  CompiledInputData compile();
+}
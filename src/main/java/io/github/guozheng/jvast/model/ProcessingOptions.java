@@ -0,0 +1,69 @@
+package io.github.guozheng.jvast.model;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import io.github.guozheng.jvast.util.AsyncExecutors;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder(toBuilder = true)
+/**
+ * Options for processing video ads in parallel, both a batch of docs and the ads of one large doc, for
+ * asynchronous processing and for reusing scratch buffers across calls.
+ */
+public class ProcessingOptions {
+  public static final int DEFAULT_SEQUENTIAL_CUTOFF = 4;
+  public static final int DEFAULT_PARALLEL_DOC_LENGTH = 1 << 20;
+  public static final int DEFAULT_PARALLEL_AD_COUNT = 32;
+  public static final int DEFAULT_MAX_IN_FLIGHT = Runtime.getRuntime().availableProcessors() * 4;
+
+  private static final ProcessingOptions DEFAULTS = ProcessingOptions.builder().build();
+
+  // executor running the batch workers, the calling thread works on the batch as well
+  @Builder.Default
+  Executor executor = ForkJoinPool.commonPool();
+
+  // minimum number of docs per worker, batches of less than twice as many docs are processed by the calling thread
+  @Builder.Default
+  int sequentialCutoff = DEFAULT_SEQUENTIAL_CUTOFF;
+
+  // maximum number of workers per batch, including the calling thread
+  @Builder.Default
+  int parallelism = ForkJoinPool.getCommonPoolParallelism() + 1;
+
+  // docs at least this long, in chars or in bytes of UTF-8 input, have their ads processed in parallel
+  @Builder.Default
+  int parallelDocLength = DEFAULT_PARALLEL_DOC_LENGTH;
+
+  // docs with at least this many ads have their ads processed in parallel
+  @Builder.Default
+  int parallelAdCount = DEFAULT_PARALLEL_AD_COUNT;
+
+  // pool processing the ads of one doc in parallel
+  @Builder.Default
+  ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+  // borrow the index, splicers and output buffers from a per-thread pool and return them once the output is
+  // written, so steady-state processing allocates nothing but the result
+  @Builder.Default
+  boolean pooled = false;
+
+  // executor running asynchronous processing, virtual threads on Java 21+ and a bounded platform pool otherwise
+  @Builder.Default
+  Executor asyncExecutor = AsyncExecutors.defaultExecutor();
+
+  // permits for docs in flight on the async executor, a doc without a permit is processed by the caller;
+  // options built from each other with toBuilder() share the bulkhead
+  @Builder.Default
+  Semaphore bulkhead = new Semaphore(DEFAULT_MAX_IN_FLIGHT);
+
+  /**
+   * Get the default options, running on the common pool.
+   * @return      {@link ProcessingOptions} default options, shared and immutable
+   */
+  public static ProcessingOptions defaults() {
+    return DEFAULTS;
+  }
+}
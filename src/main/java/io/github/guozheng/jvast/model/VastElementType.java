@@ -0,0 +1,63 @@
+package io.github.guozheng.jvast.model;
+
+/**
+ * Enum representing VAST XML elements tracked by the element offset index, and the VMAP elements holding
+ * inline VAST docs, redirect urls and break level tracking.
+ */
+public enum VastElementType {
+  VAST,
+  Ad,
+  InLine,
+  Wrapper,
+  Error,
+  Impression,
+  Creatives,
+  Creative,
+  Linear,
+  Duration,
+  TrackingEvents,
+  Tracking,
+  VideoClicks,
+  ClickThrough,
+  ClickTracking,
+  MediaFiles,
+  MediaFile,
+  NonLinearAds,
+  NonLinear,
+  CompanionAds,
+  Companion,
+  StaticResource,
+  IFrameResource,
+  HTMLResource,
+  CreativeExtensions,
+  VASTAdTagURI,
+  // VAST 4.x
+  ViewableImpression,
+  AdVerifications,
+  UniversalAdId,
+  VmapVMAP("vmap:VMAP"),
+  VmapAdBreak("vmap:AdBreak"),
+  VmapAdSource("vmap:AdSource"),
+  VmapVASTAdData("vmap:VASTAdData"),
+  VmapAdTagURI("vmap:AdTagURI"),
+  VmapTrackingEvents("vmap:TrackingEvents"),
+  VmapTracking("vmap:Tracking");
+
+  private final String tag;
+
+  VastElementType() {
+    this.tag = name();
+  }
+
+  VastElementType(String tag) {
+    this.tag = tag;
+  }
+
+  /**
+   * Get the XML tag name of the element.
+   * @return    {@link String} tag name
+   */
+  public String getTag() {
+    return tag;
+  }
+}
@@ -0,0 +1,18 @@
+package io.github.guozheng.jvast.model;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+/**
+ * Metadata of a video ad doc and each of its Ad elements, collected in one walk of the doc.
+ */
+public class VastSummary {
+  // ad type and version of the doc, e.g. VAST 3.0
+  AdTypeVersion adTypeVersion;
+
+  // one summary per Ad element, in doc order, unmodifiable
+  List<AdSummary> ads;
+}
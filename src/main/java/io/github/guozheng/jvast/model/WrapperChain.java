@@ -0,0 +1,40 @@
+package io.github.guozheng.jvast.model;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+/**
+ * Result of following the VASTAdTagURI chain of one Ad element, the redirect urls requested and the docs they
+ * returned, in order. An InLine ad has an empty chain.
+ */
+public class WrapperChain {
+  WrapperChainStatus status;
+
+  // redirect urls in the order they were requested
+  List<String> adTagUris;
+
+  // response docs, one per redirect url that got a response
+  List<String> docs;
+
+  // reason the chain did not resolve, null if it did
+  String error;
+
+  /**
+   * Check if the chain reached an InLine ad.
+   * @return      {@code boolean} true if resolved, false otherwise
+   */
+  public boolean isResolved() {
+    return status == WrapperChainStatus.RESOLVED;
+  }
+
+  /**
+   * Get the doc holding the InLine ad the chain resolved to.
+   * @return      {@link String} last response doc, or null if the chain did not resolve or has no hops
+   */
+  public String getInLineDoc() {
+    return isResolved() && !docs.isEmpty() ? docs.get(docs.size() - 1) : null;
+  }
+}
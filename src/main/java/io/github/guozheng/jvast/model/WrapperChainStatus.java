@@ -0,0 +1,14 @@
+package io.github.guozheng.jvast.model;
+
+/**
+ * Enum representing how following the VASTAdTagURI chain of a Wrapper ad ended.
+ */
+public enum WrapperChainStatus {
+  RESOLVED, //reached an InLine ad, or the ad is InLine already
+  LOOP, //a redirect url was requested before in the same chain
+  DEPTH_EXCEEDED, //more Wrapper hops than allowed
+  TIMEOUT, //a hop or the whole chain ran out of time
+  HTTP_ERROR, //a request failed or got a non-200 response
+  INVALID_RESPONSE, //a response or the Wrapper itself has no VAST Ad, or no VASTAdTagURI to follow
+  CIRCUIT_OPEN; //the host of a redirect url failed repeatedly, it was not requested
+}
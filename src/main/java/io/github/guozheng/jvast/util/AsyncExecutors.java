@@ -0,0 +1,73 @@
+package io.github.guozheng.jvast.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Executors for asynchronous video ad processing. The library targets Java 11, virtual threads are looked up
+ * at runtime so a Java 21+ runtime gets them without a separate build.
+ */
+public final class AsyncExecutors {
+  private static final Logger LOGGER = LogManager.getLogger(AsyncExecutors.class);
+
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private AsyncExecutors() {
+  }
+
+  /**
+   * Get the shared default executor, created on first use: a virtual thread per task on Java 21+, otherwise
+   * a bounded pool of daemon platform threads, one per core.
+   * @return      {@link Executor} shared default executor
+   */
+  public static Executor defaultExecutor() {
+    return Holder.DEFAULT;
+  }
+
+  /**
+   * Create an executor starting a virtual thread per task, if the runtime supports virtual threads.
+   * @return      {@link ExecutorService} virtual thread executor, or null before Java 21
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Create a bounded pool of daemon platform threads, idle threads time out so an unused pool holds no threads.
+   * @param threads     {@code int} maximum number of threads
+   * @return            {@link ExecutorService} bounded platform thread pool
+   */
+  public static ExecutorService newBoundedExecutor(int threads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("jvast-async-%d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static final class Holder {
+    private static final Executor DEFAULT = createDefault();
+
+    private static Executor createDefault() {
+      final ExecutorService virtual = newVirtualThreadExecutor();
+      if (virtual != null) {
+        LOGGER.debug("Processing video ads asynchronously on virtual threads");
+        return virtual;
+      }
+      final int threads = Runtime.getRuntime().availableProcessors();
+      LOGGER.debug("Processing video ads asynchronously on {} platform threads", threads);
+      return newBoundedExecutor(threads);
+    }
+  }
+}
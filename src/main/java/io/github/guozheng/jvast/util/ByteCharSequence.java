@@ -0,0 +1,159 @@
+package io.github.guozheng.jvast.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only {@link CharSequence} view of UTF-8 encoded bytes, each byte is exposed as one Latin-1 char.
+ * Every VAST tag and attribute name is ASCII, and bytes of multi-byte UTF-8 sequences are never ASCII,
+ * so searching for ASCII needles through this view finds exactly the same matches as searching the
+ * decoded text. Offsets of the view are byte offsets into the UTF-8 input.
+ * {@link #toString()} and {@link #appendTo(StringBuilder, int, int)} decode the bytes as UTF-8.
+ */
+public final class ByteCharSequence implements CharSequence {
+  private final byte[] bytes;
+  private final int offset;
+  private final int length;
+
+  /**
+   * Create a view over an entire byte array.
+   * @param bytes     {@code byte[]} UTF-8 encoded bytes
+   */
+  public ByteCharSequence(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Create a view over a range of a byte array.
+   * @param bytes     {@code byte[]} UTF-8 encoded bytes
+   * @param offset    {@code int} offset of the first byte
+   * @param length    {@code int} number of bytes
+   */
+  public ByteCharSequence(byte[] bytes, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("Invalid range [" + offset + ", " + (offset + length)
+          + ") for byte array of length " + bytes.length);
+    }
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Create a view over the remaining bytes of a buffer. Heap buffers are viewed in place, the remaining
+   * bytes of a direct buffer are copied once. The position of the buffer is not changed.
+   * @param buffer    {@link ByteBuffer} UTF-8 encoded bytes
+   * @return          {@link ByteCharSequence} view over the remaining bytes
+   */
+  public static ByteCharSequence of(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return new ByteCharSequence(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    byte[] copy = new byte[buffer.remaining()];
+    buffer.duplicate().get(copy);
+    return new ByteCharSequence(copy);
+  }
+
+  /**
+   * Get the backing byte array.
+   * @return      {@code byte[]} backing bytes, shared and not copied
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Get the offset of the view in the backing byte array.
+   * @return      {@code int} offset of the first byte
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of range [0, " + length + ")");
+    }
+    return (char) (bytes[offset + index] & 0xFF);
+  }
+
+  @Override
+  public ByteCharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ") for length " + length);
+    }
+    return new ByteCharSequence(bytes, offset + start, end - start);
+  }
+
+  /**
+   * Find the first occurrence of an ASCII byte in between start and end index of the view.
+   * @param b         {@code byte} byte to search
+   * @param from      {@code int} start index, inclusive
+   * @param to        {@code int} end index, exclusive
+   * @return          {@code int} index of the byte in the view, or -1 if not found
+   */
+  public int indexOf(byte b, int from, int to) {
+    final int idx = StringUtil.indexOf(bytes, b, offset + Math.max(from, 0), offset + Math.min(to, length));
+    return idx == -1 ? -1 : idx - offset;
+  }
+
+  /**
+   * Find the first occurrence of an ASCII needle in between start and end index of the view.
+   * @param needle    {@link String} ASCII needle to search
+   * @param from      {@code int} start index, inclusive
+   * @param to        {@code int} end index, exclusive
+   * @return          {@code int} index of the needle in the view, or -1 if not found
+   */
+  public int indexOf(String needle, int from, int to) {
+    final int idx = StringUtil.indexOf(bytes, needle, offset + Math.max(from, 0), offset + Math.min(to, length));
+    return idx == -1 ? -1 : idx - offset;
+  }
+
+  /**
+   * Decode a range of the view as UTF-8 and append it to a {@link StringBuilder}.
+   * @param out       {@link StringBuilder} output builder
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @return          {@link StringBuilder} the output builder
+   */
+  public StringBuilder appendTo(StringBuilder out, int start, int end) {
+    return out.append(new String(bytes, offset + start, end - start, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Copy a range of the view to a byte array.
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @param dst       {@code byte[]} destination bytes
+   * @param pos       {@code int} position in the destination
+   * @return          {@code int} position in the destination after the copied bytes
+   */
+  public int writeTo(int start, int end, byte[] dst, int pos) {
+    System.arraycopy(bytes, offset + start, dst, pos, end - start);
+    return pos + end - start;
+  }
+
+  /**
+   * Write a range of the view to an {@link OutputStream} straight from the backing bytes.
+   * @param out       {@link OutputStream} output stream
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @throws IOException    if writing to the output stream fails
+   */
+  public void writeTo(OutputStream out, int start, int end) throws IOException {
+    out.write(bytes, offset + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, offset, length, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,235 @@
+package io.github.guozheng.jvast.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Processed output kept as an ordered list of segments, each segment is either a slice of the original
+ * input or an inserted fragment. The original input is never copied: segments can be written with one
+ * gathering write per call of {@link GatheringByteChannel#write(ByteBuffer[], int, int)}, or read through
+ * this {@link CharSequence} view, which is never flattened.
+ * Segments are kept in the units of the source: for a {@link ByteCharSequence} source every segment is a
+ * slice of UTF-8 bytes, inserted fragments are encoded once when they are appended, and the view exposes
+ * bytes as Latin-1 chars the same way {@link ByteCharSequence} does.
+ */
+public class EditScript implements CharSequence {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private final boolean utf8;
+
+  private CharSequence[] sources = new CharSequence[DEFAULT_CAPACITY];
+  private int[] starts = new int[DEFAULT_CAPACITY];
+  private int[] ends = new int[DEFAULT_CAPACITY];
+  // output offset of each segment
+  private int[] offsets = new int[DEFAULT_CAPACITY];
+  private int size;
+  private int length;
+
+  /**
+   * Create an empty edit script for output of a source.
+   * @param source      {@link CharSequence} source, segments are UTF-8 bytes if it is a {@link ByteCharSequence}
+   */
+  public EditScript(CharSequence source) {
+    this(source instanceof ByteCharSequence);
+  }
+
+  private EditScript(boolean utf8) {
+    this.utf8 = utf8;
+  }
+
+  /**
+   * Append a segment, a range of the original input or of an inserted fragment. The segment is not copied,
+   * except that fragments of a UTF-8 edit script are encoded once if they are not UTF-8 bytes or a whole
+   * pre-rendered {@link Fragment} already.
+   * A segment continuing the previous one is merged into it.
+   * @param seq         {@link CharSequence} original input or inserted fragment
+   * @param start       {@code int} start index of the segment, inclusive
+   * @param end         {@code int} end index of the segment, exclusive
+   * @return            {@link EditScript} this edit script
+   */
+  public EditScript append(CharSequence seq, int start, int end) {
+    if (start >= end) {
+      return this;
+    }
+    if (utf8 && seq instanceof Fragment && start == 0 && end == seq.length()) {
+      seq = ((Fragment) seq).getUtf8();
+      end = seq.length();
+    } else if (utf8 && !(seq instanceof ByteCharSequence)) {
+      byte[] bytes = new byte[StringUtil.utf8Length(seq, start, end)];
+      StringUtil.encodeUtf8(seq, start, end, bytes, 0);
+      seq = new ByteCharSequence(bytes);
+      start = 0;
+      end = bytes.length;
+    }
+    if (size > 0 && sources[size - 1] == seq && ends[size - 1] == start) {
+      ends[size - 1] = end;
+    } else {
+      if (size == sources.length) {
+        grow();
+      }
+      sources[size] = seq;
+      starts[size] = start;
+      ends[size] = end;
+      offsets[size] = length;
+      size++;
+    }
+    length += end - start;
+    return this;
+  }
+
+  /**
+   * Append an entire fragment as a segment.
+   * @param fragment    {@link CharSequence} inserted fragment
+   * @return            {@link EditScript} this edit script
+   */
+  public EditScript append(CharSequence fragment) {
+    return append(fragment, 0, fragment.length());
+  }
+
+  /**
+   * Get the number of segments.
+   * @return      {@code int} number of segments
+   */
+  public int segments() {
+    return size;
+  }
+
+  /**
+   * Get a segment.
+   * @param i     {@code int} segment number
+   * @return      {@link CharSequence} view of the segment
+   */
+  public CharSequence segment(int i) {
+    return sources[i].subSequence(starts[i], ends[i]);
+  }
+
+  /**
+   * Check if the segments are UTF-8 bytes.
+   * @return      {@code boolean} true if the source is a {@link ByteCharSequence}, false otherwise
+   */
+  public boolean isUtf8() {
+    return utf8;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of range [0, " + length + ")");
+    }
+    final int i = segmentAt(index);
+    return sources[i].charAt(starts[i] + index - offsets[i]);
+  }
+
+  @Override
+  public EditScript subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ") for length " + length);
+    }
+    EditScript sub = new EditScript(utf8);
+    if (start == end) {
+      return sub;
+    }
+    for (int i = segmentAt(start); i < size && offsets[i] < end; i++) {
+      sub.append(sources[i], starts[i] + Math.max(start - offsets[i], 0),
+          starts[i] + Math.min(end - offsets[i], ends[i] - starts[i]));
+    }
+    return sub;
+  }
+
+  /**
+   * Get the UTF-8 encoded segments as buffers for a gathering write. Slices of UTF-8 input and pre-rendered
+   * {@link Fragment}s wrap their bytes, other segments of a char source are encoded.
+   * @return      {@code ByteBuffer[]} one buffer per segment
+   */
+  public ByteBuffer[] toByteBuffers() {
+    ByteBuffer[] buffers = new ByteBuffer[size];
+    for (int i = 0; i < size; i++) {
+      if (utf8 || sources[i] instanceof Fragment && starts[i] == 0 && ends[i] == sources[i].length()) {
+        final ByteCharSequence bytes = utf8 ? (ByteCharSequence) sources[i] : ((Fragment) sources[i]).getUtf8();
+        final int start = utf8 ? starts[i] : 0;
+        final int end = utf8 ? ends[i] : bytes.length();
+        buffers[i] = ByteBuffer.wrap(bytes.getBytes(), bytes.getOffset() + start, end - start);
+      } else {
+        byte[] encoded = new byte[StringUtil.utf8Length(sources[i], starts[i], ends[i])];
+        StringUtil.encodeUtf8(sources[i], starts[i], ends[i], encoded, 0);
+        buffers[i] = ByteBuffer.wrap(encoded);
+      }
+    }
+    return buffers;
+  }
+
+  /**
+   * Write the UTF-8 encoded output to a blocking channel with gathering writes, the original input is
+   * never copied.
+   * @param channel     {@link GatheringByteChannel} output channel
+   * @return            {@code long} number of bytes written
+   * @throws IOException    if writing to the channel fails
+   */
+  public long writeTo(GatheringByteChannel channel) throws IOException {
+    final ByteBuffer[] buffers = toByteBuffers();
+    long written = 0;
+    int first = 0;
+    while (first < buffers.length) {
+      written += channel.write(buffers, first, buffers.length - first);
+      while (first < buffers.length && !buffers[first].hasRemaining()) {
+        first++;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Write the UTF-8 encoded output to an {@link OutputStream}, segment by segment.
+   * @param out       {@link OutputStream} output stream
+   * @throws IOException    if writing to the output stream fails
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    for (int i = 0; i < size; i++) {
+      StringUtil.writeUtf8(out, sources[i], starts[i], ends[i]);
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (utf8) {
+      byte[] bytes = new byte[length];
+      int pos = 0;
+      for (int i = 0; i < size; i++) {
+        pos = ((ByteCharSequence) sources[i]).writeTo(starts[i], ends[i], bytes, pos);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < size; i++) {
+      StringUtil.appendTo(sb, sources[i], starts[i], ends[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Find the segment holding an output offset.
+   * @param index     {@code int} output offset
+   * @return          {@code int} segment number
+   */
+  private int segmentAt(int index) {
+    final int i = Arrays.binarySearch(offsets, 0, size, index);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  private void grow() {
+    final int capacity = sources.length << 1;
+    sources = Arrays.copyOf(sources, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    ends = Arrays.copyOf(ends, capacity);
+    offsets = Arrays.copyOf(offsets, capacity);
+  }
+}
@@ -0,0 +1,49 @@
+package io.github.guozheng.jvast.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable pre-rendered XML fragment, kept both as chars and as UTF-8 bytes so it can be inserted into
+ * char and byte output any number of times without being encoded again.
+ */
+public final class Fragment implements CharSequence {
+  private final String chars;
+  private final ByteCharSequence utf8;
+
+  /**
+   * Create a fragment.
+   * @param chars     {@link CharSequence} fragment content
+   */
+  public Fragment(CharSequence chars) {
+    this.chars = chars.toString();
+    this.utf8 = new ByteCharSequence(this.chars.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Get the UTF-8 encoded fragment.
+   * @return      {@link ByteCharSequence} UTF-8 bytes of the fragment, shared and not copied
+   */
+  public ByteCharSequence getUtf8() {
+    return utf8;
+  }
+
+  @Override
+  public int length() {
+    return chars.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return chars.charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return chars.subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return chars;
+  }
+}
@@ -0,0 +1,114 @@
+package io.github.guozheng.jvast.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link MacroTemplate} bound to per-request macro values, kept as the alternating literal and value pieces.
+ * The pieces are written straight into the output, the bound text is only materialized by {@link #toString()}.
+ * Lengths and indexes are counted in the units of the pieces, i.e. bytes for literals viewing a
+ * {@link ByteCharSequence} doc.
+ */
+final class MacroFragment implements CharSequence {
+  private final CharSequence[] pieces;
+  private final int length;
+  private int utf8Length = -1;
+
+  MacroFragment(CharSequence[] pieces) {
+    int length = 0;
+    for (CharSequence piece : pieces) {
+      length += piece.length();
+    }
+    this.pieces = pieces;
+    this.length = length;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of range [0, " + length + ")");
+    }
+    int i = 0;
+    while (index >= pieces[i].length()) {
+      index -= pieces[i++].length();
+    }
+    return pieces[i].charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  /**
+   * Append the bound text to a {@link StringBuilder}.
+   * @param out       {@link StringBuilder} output builder
+   * @return          {@link StringBuilder} the output builder
+   */
+  StringBuilder appendTo(StringBuilder out) {
+    for (CharSequence piece : pieces) {
+      StringUtil.appendTo(out, piece, 0, piece.length());
+    }
+    return out;
+  }
+
+  /**
+   * Append the bound text to an {@link Appendable}.
+   * @param out       {@link Appendable} output
+   * @throws IOException    if appending to the output fails
+   */
+  void appendTo(Appendable out) throws IOException {
+    for (CharSequence piece : pieces) {
+      StringUtil.appendTo(out, piece, 0, piece.length());
+    }
+  }
+
+  /**
+   * Get the UTF-8 encoded length of the bound text, measured once.
+   * @return      {@code int} number of UTF-8 bytes
+   */
+  int utf8Length() {
+    if (utf8Length == -1) {
+      int bytes = 0;
+      for (CharSequence piece : pieces) {
+        bytes += StringUtil.utf8Length(piece, 0, piece.length());
+      }
+      utf8Length = bytes;
+    }
+    return utf8Length;
+  }
+
+  /**
+   * Encode the bound text as UTF-8 into a byte array.
+   * @param dst       {@code byte[]} destination bytes
+   * @param pos       {@code int} position in the destination
+   * @return          {@code int} position in the destination after the encoded bytes
+   */
+  int encodeUtf8(byte[] dst, int pos) {
+    for (CharSequence piece : pieces) {
+      pos = StringUtil.encodeUtf8(piece, 0, piece.length(), dst, pos);
+    }
+    return pos;
+  }
+
+  /**
+   * Write the bound text as UTF-8 to an {@link OutputStream}.
+   * @param out       {@link OutputStream} output stream
+   * @throws IOException    if writing to the output stream fails
+   */
+  void writeUtf8(OutputStream out) throws IOException {
+    for (CharSequence piece : pieces) {
+      StringUtil.writeUtf8(out, piece, 0, piece.length());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return appendTo(new StringBuilder(length)).toString();
+  }
+}
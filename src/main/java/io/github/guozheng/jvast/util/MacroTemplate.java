@@ -0,0 +1,218 @@
+package io.github.guozheng.jvast.util;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import io.github.guozheng.jvast.model.MacroValues;
+
+/**
+ * A url or XML template parsed once into literal segments and macro slots, e.g.
+ * {@code https://a.com/imp?cb=[CACHEBUSTING]&price=${AUCTION_PRICE}} has the literals {@code https://a.com/imp?cb=},
+ * {@code &price=} and an empty trailing literal, and the slots {@code CACHEBUSTING} and {@code AUCTION_PRICE}.
+ * Supported macro forms are {@code [NAME]}, {@code ${NAME}} and the url encoded {@code %24%7BNAME%7D}, a name
+ * starts with an upper case letter followed by upper case letters, digits or underscores.
+ * Binding per-request {@link MacroValues} does not render the template, the bound fragment writes literals and
+ * values straight into the output.
+ */
+public final class MacroTemplate {
+  private static final int MAX_NAME_LENGTH = 64;
+  private static final String DOLLAR_OPEN = "${";
+  private static final String ENCODED_DOLLAR_OPEN = "%24%7B";
+  private static final String ENCODED_CLOSE = "%7D";
+
+  // literals.length == names.length + 1, literal i comes before slot i
+  private final CharSequence[] literals;
+  private final String[] names;
+  // macro text of each slot, written as is when the slot has no value
+  private final CharSequence[] raws;
+
+  private MacroTemplate(CharSequence[] literals, String[] names, CharSequence[] raws) {
+    this.literals = literals;
+    this.names = names;
+    this.raws = raws;
+  }
+
+  /**
+   * Compile a template to be shared across requests and threads, literals are pre-rendered {@link Fragment}s.
+   * @param template      {@link CharSequence} template text
+   * @return              {@link MacroTemplate} compiled template
+   */
+  public static MacroTemplate compile(CharSequence template) {
+    return parse(template, 0, template.length(), true);
+  }
+
+  /**
+   * Parse a range of a doc as a template, literals are views of the doc and are not copied.
+   * @param doc       {@link CharSequence} doc holding the template, e.g. a VASTAdTagURI value
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @return          {@link MacroTemplate} parsed template
+   */
+  public static MacroTemplate parse(CharSequence doc, int start, int end) {
+    return parse(doc, start, end, false);
+  }
+
+  /**
+   * Get the number of macro slots.
+   * @return      {@code int} number of slots
+   */
+  public int slots() {
+    return names.length;
+  }
+
+  /**
+   * Check if the template has a slot for a macro.
+   * @param name      {@link String} macro name, e.g. {@link MacroValues#CACHEBUSTING}
+   * @return          {@code boolean} true if the macro appears in the template, false otherwise
+   */
+  public boolean hasSlot(String name) {
+    for (String slot : names) {
+      if (slot.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if any slot has a value.
+   * @param macros    {@link MacroValues} macro values
+   * @return          {@code boolean} true if binding would change the template text, false otherwise
+   */
+  public boolean isBoundBy(MacroValues macros) {
+    for (String name : names) {
+      if (macros.get(name) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Bind macro values to the slots. A template without slots is returned as its only literal.
+   * @param macros    {@link MacroValues} macro values
+   * @return          {@link CharSequence} fragment writing the literals and values into the output
+   */
+  public CharSequence bind(MacroValues macros) {
+    if (names.length == 0) {
+      return literals[0];
+    }
+    CharSequence[] pieces = new CharSequence[literals.length + names.length];
+    for (int i = 0; i < names.length; i++) {
+      final CharSequence value = macros.get(names[i]);
+      pieces[i << 1] = literals[i];
+      pieces[(i << 1) + 1] = value != null ? value : raws[i];
+    }
+    pieces[pieces.length - 1] = literals[names.length];
+    return new MacroFragment(pieces);
+  }
+
+  /**
+   * Write the template with macro values straight into a {@link StringBuilder}.
+   * @param out       {@link StringBuilder} output builder
+   * @param macros    {@link MacroValues} macro values
+   * @return          {@link StringBuilder} the output builder
+   */
+  public StringBuilder appendTo(StringBuilder out, MacroValues macros) {
+    for (int i = 0; i < names.length; i++) {
+      final CharSequence value = macros.get(names[i]);
+      final CharSequence piece = value != null ? value : raws[i];
+      StringUtil.appendTo(out, literals[i], 0, literals[i].length());
+      StringUtil.appendTo(out, piece, 0, piece.length());
+    }
+    return StringUtil.appendTo(out, literals[names.length], 0, literals[names.length].length());
+  }
+
+  private static MacroTemplate parse(CharSequence doc, int start, int end, boolean render) {
+    List<CharSequence> literals = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    List<CharSequence> raws = new ArrayList<>();
+    int literalStart = start;
+    int i = start;
+    while (i < end) {
+      final char c = doc.charAt(i);
+      final int nameStart;
+      if (c == '[') {
+        nameStart = i + 1;
+      } else if (c == '$' && StringUtil.regionMatches(doc, i, DOLLAR_OPEN)) {
+        nameStart = i + DOLLAR_OPEN.length();
+      } else if (c == '%' && regionMatchesIgnoreCase(doc, i, end, ENCODED_DOLLAR_OPEN)) {
+        nameStart = i + ENCODED_DOLLAR_OPEN.length();
+      } else {
+        i++;
+        continue;
+      }
+      final int nameEnd = scanName(doc, nameStart, end);
+      final int macroEnd = macroEnd(doc, c, nameStart, nameEnd, end);
+      if (macroEnd == -1) {
+        i++;
+        continue;
+      }
+      literals.add(segment(doc, literalStart, i, render));
+      names.add(doc.subSequence(nameStart, nameEnd).toString());
+      raws.add(segment(doc, i, macroEnd, render));
+      i = macroEnd;
+      literalStart = macroEnd;
+    }
+    literals.add(segment(doc, literalStart, end, render));
+    return new MacroTemplate(literals.toArray(new CharSequence[0]), names.toArray(new String[0]),
+        raws.toArray(new CharSequence[0]));
+  }
+
+  /**
+   * Scan a macro name, an upper case letter followed by upper case letters, digits or underscores.
+   * @return      {@code int} end index of the name, equal to the start index if there is no name
+   */
+  private static int scanName(CharSequence doc, int start, int end) {
+    final int limit = Math.min(end, start + MAX_NAME_LENGTH);
+    if (start >= limit || doc.charAt(start) < 'A' || doc.charAt(start) > 'Z') {
+      return start;
+    }
+    int i = start + 1;
+    while (i < limit) {
+      final char c = doc.charAt(i);
+      if ((c < 'A' || c > 'Z') && (c < '0' || c > '9') && c != '_') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Find the end of a macro whose name has been scanned.
+   * @return      {@code int} end index of the macro, or -1 if it is not a macro
+   */
+  private static int macroEnd(CharSequence doc, char open, int nameStart, int nameEnd, int end) {
+    if (nameEnd == nameStart || nameEnd >= end) {
+      return -1;
+    }
+    final char c = doc.charAt(nameEnd);
+    if (open == '[') {
+      return c == ']' ? nameEnd + 1 : -1;
+    }
+    if (open == '$') {
+      return c == '}' ? nameEnd + 1 : -1;
+    }
+    return regionMatchesIgnoreCase(doc, nameEnd, end, ENCODED_CLOSE) ? nameEnd + ENCODED_CLOSE.length() : -1;
+  }
+
+  private static boolean regionMatchesIgnoreCase(CharSequence doc, int offset, int end, String needle) {
+    if (offset + needle.length() > end) {
+      return false;
+    }
+    for (int i = 0; i < needle.length(); i++) {
+      if (Character.toUpperCase(doc.charAt(offset + i)) != needle.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static CharSequence segment(CharSequence doc, int start, int end, boolean render) {
+    if (render) {
+      return new Fragment(doc.subSequence(start, end));
+    }
+    return doc instanceof ByteCharSequence ? doc.subSequence(start, end) : CharBuffer.wrap(doc, start, end);
+  }
+}
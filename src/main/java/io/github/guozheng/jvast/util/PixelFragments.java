@@ -0,0 +1,172 @@
+package io.github.guozheng.jvast.util;
+
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENTS;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_TRACKING_EVENTS_END;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VMAP_TRACKING_EVENTS;
+import static io.github.guozheng.jvast.util.VideoAdUtil.VMAP_TRACKING_EVENTS_END;
+
+import java.util.List;
+import io.github.guozheng.jvast.model.BreakEventElementType;
+import io.github.guozheng.jvast.model.CompiledInputData;
+import io.github.guozheng.jvast.model.MacroValues;
+import io.github.guozheng.jvast.model.PixelElementType;
+import io.github.guozheng.jvast.model.TrackingEventElementType;
+
+/**
+ * Pixel and tracking event XML fragments rendered once from compiled input data, and reused for every
+ * insertion point in every ad. Each fragment is also compiled into a {@link MacroTemplate}, binding
+ * per-request {@link MacroValues} only binds the templates and renders nothing.
+ */
+public final class PixelFragments {
+  private final CharSequence adPixels;
+  private final CharSequence trackingEvents;
+  private final CharSequence trackingEventsElement;
+  private final CharSequence breakTrackingEvents;
+  private final CharSequence breakTrackingEventsElement;
+
+  private final MacroTemplate adPixelsTemplate;
+  private final MacroTemplate trackingEventsTemplate;
+  private final MacroTemplate trackingEventsElementTemplate;
+  private final MacroTemplate breakTrackingEventsTemplate;
+  private final MacroTemplate breakTrackingEventsElementTemplate;
+
+  private PixelFragments(CharSequence adPixels, CharSequence trackingEvents, CharSequence trackingEventsElement,
+      CharSequence breakTrackingEvents, CharSequence breakTrackingEventsElement,
+      MacroTemplate adPixelsTemplate, MacroTemplate trackingEventsTemplate,
+      MacroTemplate trackingEventsElementTemplate, MacroTemplate breakTrackingEventsTemplate,
+      MacroTemplate breakTrackingEventsElementTemplate) {
+    this.adPixels = adPixels;
+    this.trackingEvents = trackingEvents;
+    this.trackingEventsElement = trackingEventsElement;
+    this.breakTrackingEvents = breakTrackingEvents;
+    this.breakTrackingEventsElement = breakTrackingEventsElement;
+    this.adPixelsTemplate = adPixelsTemplate;
+    this.trackingEventsTemplate = trackingEventsTemplate;
+    this.trackingEventsElementTemplate = trackingEventsElementTemplate;
+    this.breakTrackingEventsTemplate = breakTrackingEventsTemplate;
+    this.breakTrackingEventsElementTemplate = breakTrackingEventsElementTemplate;
+  }
+
+  /**
+   * Render the fragments for compiled input data.
+   * @param inputData     {@link CompiledInputData} compiled pixels and tracking events
+   * @return              {@link PixelFragments} rendered fragments
+   */
+  public static PixelFragments render(CompiledInputData inputData) {
+    // insert Error pixel first based on VAST spec, then other pixels of the pixel element type, e.g. Impression
+    StringBuilder adPixels = new StringBuilder(System.lineSeparator());
+    appendPixels(adPixels, PixelElementType.Error, inputData);
+    for (PixelElementType pixelType : PixelElementType.values()) {
+      if (pixelType != PixelElementType.Error) {
+        appendPixels(adPixels, pixelType, inputData);
+      }
+    }
+
+    StringBuilder trackingEvents = new StringBuilder(System.lineSeparator());
+    for (TrackingEventElementType type : TrackingEventElementType.values()) {
+      final List<String> urls = inputData.getTrackingEventUrls(type);
+      if (!urls.isEmpty()) {
+        VideoAdUtil.appendTrackingElementsOfType(trackingEvents, type, urls);
+      }
+    }
+
+    final StringBuilder trackingEventsElement = new StringBuilder(VAST_TRACKING_EVENTS.length()
+        + trackingEvents.length() + VAST_TRACKING_EVENTS_END.length())
+        .append(VAST_TRACKING_EVENTS)
+        .append(trackingEvents)
+        .append(VAST_TRACKING_EVENTS_END);
+
+    // VMAP AdBreak level tracking, only inserted into VMAP docs
+    StringBuilder breakTrackingEvents = new StringBuilder(System.lineSeparator());
+    for (BreakEventElementType type : BreakEventElementType.values()) {
+      final List<String> urls = inputData.getBreakEventUrls(type);
+      if (!urls.isEmpty()) {
+        VideoAdUtil.appendBreakTrackingElementsOfType(breakTrackingEvents, type, urls);
+      }
+    }
+
+    final StringBuilder breakTrackingEventsElement = new StringBuilder(VMAP_TRACKING_EVENTS.length()
+        + breakTrackingEvents.length() + VMAP_TRACKING_EVENTS_END.length())
+        .append(VMAP_TRACKING_EVENTS)
+        .append(breakTrackingEvents)
+        .append(VMAP_TRACKING_EVENTS_END);
+
+    return new PixelFragments(
+        new Fragment(adPixels),
+        new Fragment(trackingEvents),
+        new Fragment(trackingEventsElement),
+        new Fragment(breakTrackingEvents),
+        new Fragment(breakTrackingEventsElement),
+        MacroTemplate.compile(adPixels),
+        MacroTemplate.compile(trackingEvents),
+        MacroTemplate.compile(trackingEventsElement),
+        MacroTemplate.compile(breakTrackingEvents),
+        MacroTemplate.compile(breakTrackingEventsElement));
+  }
+
+  /**
+   * Bind per-request macro values to the fragments, macros without a value are left in place.
+   * @param macros    {@link MacroValues} macro values
+   * @return          {@link PixelFragments} fragments writing the macro values straight into the output
+   */
+  public PixelFragments bind(MacroValues macros) {
+    return new PixelFragments(
+        adPixelsTemplate.bind(macros),
+        trackingEventsTemplate.bind(macros),
+        trackingEventsElementTemplate.bind(macros),
+        breakTrackingEventsTemplate.bind(macros),
+        breakTrackingEventsElementTemplate.bind(macros),
+        adPixelsTemplate,
+        trackingEventsTemplate,
+        trackingEventsElementTemplate,
+        breakTrackingEventsTemplate,
+        breakTrackingEventsElementTemplate);
+  }
+
+  private static void appendPixels(StringBuilder sb, PixelElementType pixelType, CompiledInputData inputData) {
+    final List<String> urls = inputData.getPixelUrls(pixelType);
+    if (!urls.isEmpty()) {
+      VideoAdUtil.appendPixelElementsOfType(sb, pixelType, urls);
+    }
+  }
+
+  /**
+   * Get the Ad level pixels, e.g. Impression and Error elements.
+   * @return      {@link CharSequence} Ad level pixels
+   */
+  public CharSequence getAdPixels() {
+    return adPixels;
+  }
+
+  /**
+   * Get the Tracking elements to insert into an existing TrackingEvents element.
+   * @return      {@link CharSequence} Tracking elements
+   */
+  public CharSequence getTrackingEvents() {
+    return trackingEvents;
+  }
+
+  /**
+   * Get the Tracking elements wrapped in a new TrackingEvents element.
+   * @return      {@link CharSequence} TrackingEvents element
+   */
+  public CharSequence getTrackingEventsElement() {
+    return trackingEventsElement;
+  }
+
+  /**
+   * Get the VMAP AdBreak level Tracking elements to insert into an existing vmap:TrackingEvents element.
+   * @return      {@link CharSequence} vmap:Tracking elements
+   */
+  public CharSequence getBreakTrackingEvents() {
+    return breakTrackingEvents;
+  }
+
+  /**
+   * Get the VMAP AdBreak level Tracking elements wrapped in a new vmap:TrackingEvents element.
+   * @return      {@link CharSequence} vmap:TrackingEvents element
+   */
+  public CharSequence getBreakTrackingEventsElement() {
+    return breakTrackingEventsElement;
+  }
+}
@@ -0,0 +1,299 @@
+package io.github.guozheng.jvast.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects insertions and replacements against an unmodified source and builds the spliced output in one pass.
+ * Offsets always refer to the original source, so callers can keep searching the source while they record
+ * edits, and the output length is known before any copying starts.
+ * Insertions at the same offset are emitted in the order they were recorded, an insertion at the start of a
+ * replaced range goes before the replacement whichever was recorded first. Replaced ranges must not overlap
+ * other edits, adjacent replaced ranges are fine.
+ */
+public class Splicer {
+  private static final int DEFAULT_CAPACITY = 8;
+
+  private CharSequence source;
+  private int start;
+  private int end;
+
+  private int[] offsets = new int[DEFAULT_CAPACITY];
+  // end of the replaced source range of each edit, equal to the offset for an insertion
+  private int[] ends = new int[DEFAULT_CAPACITY];
+  private CharSequence[] fragments = new CharSequence[DEFAULT_CAPACITY];
+  private int size;
+  private int insertedLength;
+  private int removedLength;
+  private boolean sorted = true;
+
+  /**
+   * Create a splicer over the entire source.
+   * @param source      {@link CharSequence} unmodified source
+   */
+  public Splicer(CharSequence source) {
+    this(source, 0, source.length());
+  }
+
+  /**
+   * Create a splicer over a range of the source.
+   * @param source      {@link CharSequence} unmodified source
+   * @param start       {@code int} start index of the range, inclusive
+   * @param end         {@code int} end index of the range, exclusive
+   */
+  public Splicer(CharSequence source, int start, int end) {
+    reset(source, start, end);
+  }
+
+  /**
+   * Drop all recorded edits and start over on a range of another source, reusing the arrays of this splicer.
+   * @param source      {@link CharSequence} unmodified source
+   * @param start       {@code int} start index of the range, inclusive
+   * @param end         {@code int} end index of the range, exclusive
+   * @return            {@link Splicer} this splicer
+   */
+  public Splicer reset(CharSequence source, int start, int end) {
+    if (start < 0 || end > source.length() || start > end) {
+      throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ") for source of length "
+          + source.length());
+    }
+    Arrays.fill(fragments, 0, size, null);
+    this.source = source;
+    this.start = start;
+    this.end = end;
+    this.size = 0;
+    this.insertedLength = 0;
+    this.removedLength = 0;
+    this.sorted = true;
+    return this;
+  }
+
+  /**
+   * Record an insertion of {@code fragment} before the character at {@code offset} in the source.
+   * @param offset        {@code int} offset in the source, within the range of this splicer
+   * @param fragment      {@link CharSequence} fragment to insert
+   * @return              {@link Splicer} this splicer
+   */
+  public Splicer insert(int offset, CharSequence fragment) {
+    if (offset < start || offset > end) {
+      throw new IndexOutOfBoundsException("Insertion offset " + offset + " out of range [" + start + ", "
+          + end + "]");
+    }
+    if (fragment == null || fragment.length() == 0) {
+      return this;
+    }
+    return add(offset, offset, fragment);
+  }
+
+  /**
+   * Record a replacement of the source range {@code [start, end)} with {@code fragment}.
+   * @param start         {@code int} start index in the source, inclusive
+   * @param end           {@code int} end index in the source, exclusive
+   * @param fragment      {@link CharSequence} replacement fragment
+   * @return              {@link Splicer} this splicer
+   */
+  public Splicer replace(int start, int end, CharSequence fragment) {
+    if (start < this.start || end > this.end || start > end) {
+      throw new IndexOutOfBoundsException("Replaced range [" + start + ", " + end + ") out of range ["
+          + this.start + ", " + this.end + "]");
+    }
+    return add(start, end, fragment);
+  }
+
+  private Splicer add(int offset, int end, CharSequence fragment) {
+    if (size == offsets.length) {
+      grow();
+    }
+    if (size > 0 && offset < offsets[size - 1]) {
+      sorted = false;
+    }
+    offsets[size] = offset;
+    ends[size] = end;
+    fragments[size] = fragment;
+    size++;
+    insertedLength += fragment.length();
+    removedLength += end - offset;
+    // a replacement forces the overlap check in sort()
+    sorted &= end == offset;
+    return this;
+  }
+
+  /**
+   * Get the number of recorded insertions and replacements.
+   * @return      {@code int} number of edits
+   */
+  public int insertions() {
+    return size;
+  }
+
+  /**
+   * Get the length of the spliced output, counted in chars of the source and the fragments.
+   * @return      {@code int} output length
+   */
+  public int length() {
+    return end - start + insertedLength - removedLength;
+  }
+
+  /**
+   * Append the spliced output to a {@link StringBuilder}, growing it at most once.
+   * @param out       {@link StringBuilder} output builder
+   * @return          {@link StringBuilder} the output builder
+   */
+  public StringBuilder appendTo(StringBuilder out) {
+    out.ensureCapacity(out.length() + length());
+    sort();
+    int from = start;
+    for (int i = 0; i < size; i++) {
+      StringUtil.appendTo(out, source, from, offsets[i]);
+      StringUtil.appendTo(out, fragments[i], 0, fragments[i].length());
+      from = ends[i];
+    }
+    return StringUtil.appendTo(out, source, from, end);
+  }
+
+  /**
+   * Get the UTF-8 encoded length of the spliced output.
+   * @return      {@code int} output length in bytes
+   */
+  public int utf8Length() {
+    int length = StringUtil.utf8Length(source, start, end);
+    for (int i = 0; i < size; i++) {
+      length += StringUtil.utf8Length(fragments[i], 0, fragments[i].length())
+          - StringUtil.utf8Length(source, offsets[i], ends[i]);
+    }
+    return length;
+  }
+
+  /**
+   * Write the UTF-8 encoded output to a byte array sized with {@link #utf8Length()}, source ranges of a
+   * {@link ByteCharSequence} are copied without decoding.
+   * @param dst       {@code byte[]} destination bytes
+   * @param pos       {@code int} position in the destination
+   * @return          {@code int} position in the destination after the output
+   */
+  public int writeUtf8(byte[] dst, int pos) {
+    sort();
+    int from = start;
+    for (int i = 0; i < size; i++) {
+      pos = StringUtil.encodeUtf8(source, from, offsets[i], dst, pos);
+      pos = StringUtil.encodeUtf8(fragments[i], 0, fragments[i].length(), dst, pos);
+      from = ends[i];
+    }
+    return StringUtil.encodeUtf8(source, from, end, dst, pos);
+  }
+
+  /**
+   * Append the spliced output to any {@link Appendable}, e.g. a {@link java.io.Writer}.
+   * @param out       {@link Appendable} output
+   * @throws IOException    if appending to the output fails
+   */
+  public void appendTo(Appendable out) throws IOException {
+    sort();
+    int from = start;
+    for (int i = 0; i < size; i++) {
+      StringUtil.appendTo(out, source, from, offsets[i]);
+      StringUtil.appendTo(out, fragments[i], 0, fragments[i].length());
+      from = ends[i];
+    }
+    StringUtil.appendTo(out, source, from, end);
+  }
+
+  /**
+   * Write the UTF-8 encoded output to an {@link OutputStream}, source ranges of a {@link ByteCharSequence}
+   * are written straight from the source bytes.
+   * @param out       {@link OutputStream} output stream
+   * @throws IOException    if writing to the output stream fails
+   */
+  public void writeUtf8(OutputStream out) throws IOException {
+    sort();
+    int from = start;
+    for (int i = 0; i < size; i++) {
+      StringUtil.writeUtf8(out, source, from, offsets[i]);
+      StringUtil.writeUtf8(out, fragments[i], 0, fragments[i].length());
+      from = ends[i];
+    }
+    StringUtil.writeUtf8(out, source, from, end);
+  }
+
+  /**
+   * Append the spliced output to an {@link EditScript} as segments, nothing is copied from the source.
+   * @param script    {@link EditScript} output edit script
+   * @return          {@link EditScript} the output edit script
+   */
+  public EditScript appendTo(EditScript script) {
+    sort();
+    int from = start;
+    for (int i = 0; i < size; i++) {
+      script.append(source, from, offsets[i]).append(fragments[i]);
+      from = ends[i];
+    }
+    return script.append(source, from, end);
+  }
+
+  /**
+   * Build the spliced output into an exactly-sized {@link StringBuilder}.
+   * @return      {@link StringBuilder} spliced output
+   */
+  public StringBuilder toStringBuilder() {
+    return appendTo(new StringBuilder(length()));
+  }
+
+  @Override
+  public String toString() {
+    return toStringBuilder().toString();
+  }
+
+  /**
+   * Stable insertion sort by offset and then end, so insertions at an offset come before a replacement starting
+   * there. Edits are few per range and mostly recorded in order.
+   * @throws IllegalStateException    if a replaced range overlaps another edit
+   */
+  private void sort() {
+    if (sorted) {
+      return;
+    }
+    for (int i = 1; i < size; i++) {
+      final int offset = offsets[i];
+      final int end = ends[i];
+      final CharSequence fragment = fragments[i];
+      int j = i - 1;
+      while (j >= 0 && (offsets[j] > offset || offsets[j] == offset && ends[j] > end)) {
+        offsets[j + 1] = offsets[j];
+        ends[j + 1] = ends[j];
+        fragments[j + 1] = fragments[j];
+        j--;
+      }
+      offsets[j + 1] = offset;
+      ends[j + 1] = end;
+      fragments[j + 1] = fragment;
+    }
+    // every edit must start at or after the end of the last replacement
+    int replacedStart = start;
+    int replacedEnd = start;
+    for (int i = 0; i < size; i++) {
+      if (offsets[i] < replacedEnd) {
+        throw new IllegalStateException("Edit at " + offsets[i] + " overlaps replaced range [" + replacedStart
+            + ", " + replacedEnd + ")");
+      }
+      if (ends[i] > offsets[i]) {
+        replacedStart = offsets[i];
+        replacedEnd = ends[i];
+      }
+    }
+    sorted = true;
+  }
+
+  private void grow() {
+    final int capacity = offsets.length << 1;
+    int[] newOffsets = new int[capacity];
+    int[] newEnds = new int[capacity];
+    CharSequence[] newFragments = new CharSequence[capacity];
+    System.arraycopy(offsets, 0, newOffsets, 0, size);
+    System.arraycopy(ends, 0, newEnds, 0, size);
+    System.arraycopy(fragments, 0, newFragments, 0, size);
+    offsets = newOffsets;
+    ends = newEnds;
+    fragments = newFragments;
+  }
+}
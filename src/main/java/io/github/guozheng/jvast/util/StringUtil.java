@@ -1,5 +1,10 @@
 package io.github.guozheng.jvast.util;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -18,6 +23,18 @@ public class StringUtil {
   private static final Logger LOGGER = LogManager.getLogger(StringUtil.class);
   public static final String EMPTY = "";
 
+  private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+      ByteOrder.LITTLE_ENDIAN);
+  private static final long SWAR_ONES = 0x0101010101010101L;
+  private static final long SWAR_HIGHS = 0x8080808080808080L;
+  private static final String[] SINGLE_CHARS = new String[128];
+
+  static {
+    for (char c = 0; c < SINGLE_CHARS.length; c++) {
+      SINGLE_CHARS[c] = String.valueOf(c);
+    }
+  }
+
   /**
    * Match all strings in the VAST doc using a pattern.
    *
@@ -46,8 +63,8 @@ public class StringUtil {
    * @return                {@code int} index of the element
    */
   public static int findNextNeedleIndex(StringBuilder docBuilder, int start, int end, String needle, boolean returnEndIndex) {
-    final int idx = docBuilder.indexOf(needle, start);
-    if (idx != -1 && idx < end) {
+    final int idx = indexOf(docBuilder, needle, start, end);
+    if (idx != -1) {
       return returnEndIndex ? idx + needle.length() : idx;
     } else {
       return -1;
@@ -65,21 +82,7 @@ public class StringUtil {
    * @return                    {@code String} matching substring
    */
   public static String getSubString(String left, String right, String doc, int fromIdx, String defaultValue) {
-    String sub;
-    int leftIdx = doc.indexOf(left, fromIdx);
-    if (leftIdx == -1) {
-      LOGGER.debug("No left string {} found in doc: {}, use default value: {}", left, doc, defaultValue);
-      return defaultValue;
-    }
-
-    int rightIdx = doc.indexOf(right, leftIdx + left.length());
-    if (rightIdx == -1) {
-      LOGGER.debug("No right string {} found in doc: {}, use default value: {}", right, doc, defaultValue);
-      return defaultValue;
-    }
-
-    sub = doc.substring(leftIdx + left.length(), rightIdx);
-    return sub;
+    return getSubString(left, right, (CharSequence) doc, fromIdx, defaultValue);
   }
 
   /**
@@ -93,21 +96,34 @@ public class StringUtil {
    * @return                    {@code String} matching substring
    */
   public static String getSubString(String left, String right, StringBuilder docBuilder, int fromIdx, String defaultValue) {
-    String sub;
-    int leftIdx = docBuilder.indexOf(left, fromIdx);
+    return getSubString(left, right, (CharSequence) docBuilder, fromIdx, defaultValue);
+  }
+
+  /**
+   * Find the first matching substring in between {@code left} and {@code right}, starting from {@code fromIdx}.
+   *
+   * @param left                {@code String} left substring separator
+   * @param right               {@code String} right substring separator
+   * @param doc                 {@link CharSequence} doc to search
+   * @param fromIdx             {@code int} starting index to search
+   * @param defaultValue        {@code String} default value if no match is found
+   * @return                    {@code String} matching substring
+   */
+  public static String getSubString(String left, String right, CharSequence doc, int fromIdx, String defaultValue) {
+    final int length = doc.length();
+    int leftIdx = indexOf(doc, left, fromIdx, length);
     if (leftIdx == -1) {
-      LOGGER.debug("No left string {} found in doc: {}, use default value: {}", left, docBuilder, defaultValue);
+      LOGGER.debug("No left string {} found in doc: {}, use default value: {}", left, doc, defaultValue);
       return defaultValue;
     }
 
-    int rightIdx = docBuilder.indexOf(right, leftIdx + left.length());
+    int rightIdx = indexOf(doc, right, leftIdx + left.length(), length);
     if (rightIdx == -1) {
-      LOGGER.debug("No right string {} found in doc: {}, use default value: {}", right, docBuilder, defaultValue);
+      LOGGER.debug("No right string {} found in doc: {}, use default value: {}", right, doc, defaultValue);
       return defaultValue;
     }
 
-    sub = docBuilder.substring(leftIdx + left.length(), rightIdx);
-    return sub;
+    return doc.subSequence(leftIdx + left.length(), rightIdx).toString();
   }
 
   /**
@@ -119,26 +135,7 @@ public class StringUtil {
    * @return          {@code List<String>} a list of substrings
    */
   public static List<String> getSubStrings(String left, String right, String doc) {
-    List<String> subs = new LinkedList<>();
-
-    int fromIdx = 0;
-    while (fromIdx < doc.length()) {
-      int leftIdx = doc.indexOf(left, fromIdx);
-      if (leftIdx == -1) {
-        LOGGER.debug("No more left string {} found", left);
-        break;
-      }
-      int rightIdx = doc.indexOf(right, leftIdx + left.length());
-      if (rightIdx == -1) {
-        LOGGER.debug("No more right string {} found", right);
-        break;
-      }
-      String sub = doc.substring(leftIdx + left.length(), rightIdx);
-      subs.add(sub.trim()); //make sure new lines or whitespaces are trimmed
-      fromIdx = rightIdx;
-    }
-
-    return subs;
+    return getSubStrings(left, right, (CharSequence) doc);
   }
 
   /**
@@ -150,21 +147,34 @@ public class StringUtil {
    * @return              {@code List<String>} a list of substrings
    */
   public static List<String> getSubStrings(String left, String right, StringBuilder docBuilder) {
+    return getSubStrings(left, right, (CharSequence) docBuilder);
+  }
+
+  /**
+   * Find all matching substrings in between {@code left} and {@code right}.
+   *
+   * @param left          {@code String} left substring separator
+   * @param right         {@code String} right substring separator
+   * @param doc           {@link CharSequence} doc to search
+   * @return              {@code List<String>} a list of substrings
+   */
+  public static List<String> getSubStrings(String left, String right, CharSequence doc) {
     List<String> subs = new LinkedList<>();
 
+    final int length = doc.length();
     int fromIdx = 0;
-    while (fromIdx < docBuilder.length()) {
-      int leftIdx = docBuilder.indexOf(left, fromIdx);
+    while (fromIdx < length) {
+      int leftIdx = indexOf(doc, left, fromIdx, length);
       if (leftIdx == -1) {
         LOGGER.debug("No more left string {} found", left);
         break;
       }
-      int rightIdx = docBuilder.indexOf(right, leftIdx + left.length());
+      int rightIdx = indexOf(doc, right, leftIdx + left.length(), length);
       if (rightIdx == -1) {
         LOGGER.debug("No more right string {} found", right);
         break;
       }
-      String sub = docBuilder.substring(leftIdx + left.length(), rightIdx);
+      String sub = doc.subSequence(leftIdx + left.length(), rightIdx).toString();
       subs.add(sub.trim()); //make sure new lines or whitespaces are trimmed
       fromIdx = rightIdx;
     }
@@ -180,13 +190,371 @@ public class StringUtil {
    * @return            {@code int} count of the sub string
    */
   public static int countNeedles(StringBuilder sb, String needle) {
+    return countNeedles((CharSequence) sb, needle);
+  }
+
+  /**
+   * Count occurrence of a substring in a doc.
+   * @param doc         {@link CharSequence} doc to search
+   * @param needle      {@link String} sub string to search for
+   * @return            {@code int} count of the sub string
+   */
+  public static int countNeedles(CharSequence doc, String needle) {
+    final int length = doc.length();
     int count = 0;
-    int start = sb.indexOf(needle);
+    int start = indexOf(doc, needle, 0, length);
     while (start != -1) {
       count++;
-      start = sb.indexOf(needle, start + 1);
+      start = indexOf(doc, needle, start + 1, length);
     }
     return count;
   }
 
+  /**
+   * Find the first occurrence of a character in between start and end index. Open-ended searches on
+   * {@link String} go through the intrinsic {@link String#indexOf(int, int)}, bounded searches never
+   * look past {@code to}.
+   * @param seq       {@link CharSequence} doc to search
+   * @param c         {@code char} character to search
+   * @param from      {@code int} start index, inclusive
+   * @param to        {@code int} end index, exclusive
+   * @return          {@code int} index of the character, or -1 if not found
+   */
+  public static int indexOf(CharSequence seq, char c, int from, int to) {
+    final int begin = Math.max(from, 0);
+    final int length = seq.length();
+    final int limit = Math.min(to, length);
+    if (begin >= limit) {
+      return -1;
+    }
+    if (seq instanceof String && limit == length) {
+      return ((String) seq).indexOf(c, begin);
+    }
+    if (seq instanceof ByteCharSequence && c < SINGLE_CHARS.length) {
+      return ((ByteCharSequence) seq).indexOf((byte) c, begin, limit);
+    }
+    if (seq instanceof StringBuilder && limit == length && c < SINGLE_CHARS.length) {
+      return ((StringBuilder) seq).indexOf(SINGLE_CHARS[c], begin);
+    }
+    for (int i = begin; i < limit; i++) {
+      if (seq.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find the first occurrence of a needle in between start and end index, the needle must end before
+   * the end index. Candidates are located by scanning for the first character of the needle and the
+   * needle is only verified at those candidates.
+   * @param seq       {@link CharSequence} doc to search
+   * @param needle    {@link String} needle to search
+   * @param from      {@code int} start index, inclusive
+   * @param to        {@code int} end index, exclusive
+   * @return          {@code int} index of the needle, or -1 if not found
+   */
+  public static int indexOf(CharSequence seq, String needle, int from, int to) {
+    final int length = seq.length();
+    final int limit = Math.min(to, length);
+    final int last = limit - needle.length();
+    final int begin = Math.max(from, 0);
+    if (begin > last) {
+      return -1;
+    }
+    if (seq instanceof ByteCharSequence && isAscii(needle)) {
+      return ((ByteCharSequence) seq).indexOf(needle, begin, limit);
+    }
+    if (limit == length) {
+      if (seq instanceof String) {
+        return ((String) seq).indexOf(needle, begin);
+      }
+      if (seq instanceof StringBuilder) {
+        return ((StringBuilder) seq).indexOf(needle, begin);
+      }
+    }
+    final char first = needle.charAt(0);
+    int candidate = indexOf(seq, first, begin, last + 1);
+    while (candidate != -1) {
+      if (regionMatches(seq, candidate, needle)) {
+        return candidate;
+      }
+      candidate = indexOf(seq, first, candidate + 1, last + 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Find the first occurrence of a byte in between start and end index, comparing eight bytes at a time.
+   * A word is XOR-ed with the byte broadcast to all lanes so matching lanes become zero, and the classic
+   * {@code (x - 0x01..) & ~x & 0x80..} test flags them. Borrows can only flag lanes above a real match,
+   * so the lowest flagged lane of a little-endian load is always the first match.
+   * @param bytes     {@code byte[]} bytes to search
+   * @param b         {@code byte} byte to search
+   * @param from      {@code int} start index, inclusive
+   * @param to        {@code int} end index, exclusive
+   * @return          {@code int} index of the byte, or -1 if not found
+   */
+  public static int indexOf(byte[] bytes, byte b, int from, int to) {
+    final int limit = Math.min(to, bytes.length);
+    int i = Math.max(from, 0);
+    final long pattern = (b & 0xFFL) * SWAR_ONES;
+    for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+      final long x = (long) LONG_VIEW.get(bytes, i) ^ pattern;
+      final long found = (x - SWAR_ONES) & ~x & SWAR_HIGHS;
+      if (found != 0) {
+        return i + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+    }
+    for (; i < limit; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find the first occurrence of an ASCII needle in between start and end index, the needle must end
+   * before the end index. Candidates for the first byte are located eight bytes at a time.
+   * @param bytes     {@code byte[]} bytes to search
+   * @param needle    {@link String} ASCII needle to search
+   * @param from      {@code int} start index, inclusive
+   * @param to        {@code int} end index, exclusive
+   * @return          {@code int} index of the needle, or -1 if not found
+   */
+  public static int indexOf(byte[] bytes, String needle, int from, int to) {
+    final int last = Math.min(to, bytes.length) - needle.length();
+    final byte first = (byte) needle.charAt(0);
+    int candidate = indexOf(bytes, first, from, last + 1);
+    while (candidate != -1) {
+      if (regionMatches(bytes, candidate, needle)) {
+        return candidate;
+      }
+      candidate = indexOf(bytes, first, candidate + 1, last + 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Check if the ASCII needle appears in the bytes at the given offset.
+   * @param bytes     {@code byte[]} bytes to check
+   * @param offset    {@code int} offset in the bytes
+   * @param needle    {@link String} ASCII needle to match
+   * @return          {@code boolean} true if the needle matches at the offset, false otherwise
+   */
+  public static boolean regionMatches(byte[] bytes, int offset, String needle) {
+    final int length = needle.length();
+    if (offset < 0 || offset + length > bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[offset + i] != (byte) needle.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check if the needle appears in the doc at the given offset.
+   * @param seq       {@link CharSequence} doc to check
+   * @param offset    {@code int} offset in the doc
+   * @param needle    {@link String} needle to match
+   * @return          {@code boolean} true if the needle matches at the offset, false otherwise
+   */
+  public static boolean regionMatches(CharSequence seq, int offset, String needle) {
+    final int length = needle.length();
+    if (offset < 0 || offset + length > seq.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (seq.charAt(offset + i) != needle.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check if a string only contains ASCII characters.
+   * @param str       {@link String} string to check
+   * @return          {@code boolean} true if every character is ASCII, false otherwise
+   */
+  public static boolean isAscii(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      if (str.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Append a range of a doc to a {@link StringBuilder}, a {@link ByteCharSequence} is decoded as UTF-8.
+   * @param out       {@link StringBuilder} output builder
+   * @param seq       {@link CharSequence} doc to copy from
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @return          {@link StringBuilder} the output builder
+   */
+  public static StringBuilder appendTo(StringBuilder out, CharSequence seq, int start, int end) {
+    if (isWholeFragment(seq, start, end)) {
+      return out.append(seq.toString());
+    }
+    if (isWholeMacroFragment(seq, start, end)) {
+      return ((MacroFragment) seq).appendTo(out);
+    }
+    if (seq instanceof ByteCharSequence) {
+      return ((ByteCharSequence) seq).appendTo(out, start, end);
+    }
+    return out.append(seq, start, end);
+  }
+
+  /**
+   * Append a range of a doc to an {@link Appendable}, a {@link ByteCharSequence} is decoded as UTF-8.
+   * @param out       {@link Appendable} output
+   * @param seq       {@link CharSequence} doc to copy from
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @throws IOException    if appending to the output fails
+   */
+  public static void appendTo(Appendable out, CharSequence seq, int start, int end) throws IOException {
+    if (isWholeMacroFragment(seq, start, end)) {
+      ((MacroFragment) seq).appendTo(out);
+    } else if (seq instanceof ByteCharSequence) {
+      out.append(seq.subSequence(start, end).toString());
+    } else {
+      out.append(seq, start, end);
+    }
+  }
+
+  /**
+   * Write a range of a doc to an {@link OutputStream} as UTF-8, a {@link ByteCharSequence} is written
+   * straight from its backing bytes.
+   * @param out       {@link OutputStream} output stream
+   * @param seq       {@link CharSequence} doc to write
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @throws IOException    if writing to the output stream fails
+   */
+  public static void writeUtf8(OutputStream out, CharSequence seq, int start, int end) throws IOException {
+    if (isWholeFragment(seq, start, end)) {
+      final ByteCharSequence utf8 = ((Fragment) seq).getUtf8();
+      utf8.writeTo(out, 0, utf8.length());
+    } else if (isWholeMacroFragment(seq, start, end)) {
+      ((MacroFragment) seq).writeUtf8(out);
+    } else if (seq instanceof ByteCharSequence) {
+      ((ByteCharSequence) seq).writeTo(out, start, end);
+    } else if (start < end) {
+      byte[] bytes = new byte[utf8Length(seq, start, end)];
+      encodeUtf8(seq, start, end, bytes, 0);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Get the UTF-8 encoded length of a range of a doc, a {@link ByteCharSequence} is already encoded.
+   * Unpaired surrogates count as one byte, they are encoded as {@code '?'} like {@link String#getBytes}.
+   * @param seq       {@link CharSequence} doc to measure
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @return          {@code int} number of UTF-8 bytes
+   */
+  public static int utf8Length(CharSequence seq, int start, int end) {
+    if (seq instanceof ByteCharSequence) {
+      return end - start;
+    }
+    if (isWholeFragment(seq, start, end)) {
+      return ((Fragment) seq).getUtf8().length();
+    }
+    if (isWholeMacroFragment(seq, start, end)) {
+      return ((MacroFragment) seq).utf8Length();
+    }
+    int length = end - start;
+    for (int i = start; i < end; i++) {
+      final char c = seq.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(seq.charAt(i + 1))) {
+          length += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          length += 2;
+        }
+      } else if (c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Encode a range of a doc as UTF-8 into a byte array sized with {@link #utf8Length(CharSequence, int, int)},
+   * a {@link ByteCharSequence} is copied as is.
+   * @param seq       {@link CharSequence} doc to encode
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @param dst       {@code byte[]} destination bytes
+   * @param pos       {@code int} position in the destination
+   * @return          {@code int} position in the destination after the encoded bytes
+   */
+  public static int encodeUtf8(CharSequence seq, int start, int end, byte[] dst, int pos) {
+    if (seq instanceof ByteCharSequence) {
+      return ((ByteCharSequence) seq).writeTo(start, end, dst, pos);
+    }
+    if (isWholeFragment(seq, start, end)) {
+      final ByteCharSequence utf8 = ((Fragment) seq).getUtf8();
+      return utf8.writeTo(0, utf8.length(), dst, pos);
+    }
+    if (isWholeMacroFragment(seq, start, end)) {
+      return ((MacroFragment) seq).encodeUtf8(dst, pos);
+    }
+    for (int i = start; i < end; i++) {
+      final char c = seq.charAt(i);
+      if (c < 0x80) {
+        dst[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        dst[pos++] = (byte) (0xC0 | (c >> 6));
+        dst[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(seq.charAt(i + 1))) {
+          final int cp = Character.toCodePoint(c, seq.charAt(++i));
+          dst[pos++] = (byte) (0xF0 | (cp >> 18));
+          dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+          dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+          dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+          dst[pos++] = (byte) '?';
+        }
+      } else {
+        dst[pos++] = (byte) (0xE0 | (c >> 12));
+        dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        dst[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * Check if a range covers an entire pre-rendered {@link Fragment}, whose UTF-8 bytes can be used as is.
+   * @param seq       {@link CharSequence} doc to check
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @return          {@code boolean} true if the range is an entire fragment, false otherwise
+   */
+  private static boolean isWholeFragment(CharSequence seq, int start, int end) {
+    return seq instanceof Fragment && start == 0 && end == seq.length();
+  }
+
+  /**
+   * Check if a range covers an entire bound {@link MacroTemplate}, whose pieces can be written one by one.
+   * @param seq       {@link CharSequence} doc to check
+   * @param start     {@code int} start index, inclusive
+   * @param end       {@code int} end index, exclusive
+   * @return          {@code boolean} true if the range is an entire bound template, false otherwise
+   */
+  private static boolean isWholeMacroFragment(CharSequence seq, int start, int end) {
+    return seq instanceof MacroFragment && start == 0 && end == seq.length();
+  }
+
 }
@@ -0,0 +1,589 @@
+package io.github.guozheng.jvast.util;
+
+import io.github.guozheng.jvast.model.VastElementType;
+import java.util.Arrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Start and end offsets of every {@link VastElementType} element in a VAST doc, recorded by walking the
+ * doc once. All the processing passes look up element positions here instead of rescanning the doc.
+ *
+ * <p>For each element the index keeps four offsets into the doc:
+ * <pre>{@code
+ *   <Linear skipoffset="00:00:05"> ... </Linear>
+ *   ^openStart                    ^openEnd
+ *                                     ^closeStart
+ *                                              ^closeEnd
+ * }</pre>
+ * A self-closing element has {@code closeStart == closeEnd == openEnd}, an element that is never closed
+ * has {@code closeStart == closeEnd == -1}. Comments, CDATA sections, processing instructions and
+ * elements that are not tracked are skipped, the parent of an element is its nearest tracked ancestor.
+ */
+public class VastIndex {
+  private static final Logger LOGGER = LogManager.getLogger(VastIndex.class);
+
+  public static final int NOT_FOUND = -1;
+
+  private static final int DEFAULT_CAPACITY = 64;
+  private static final VastElementType[] TYPES = VastElementType.values();
+  // tracked element types bucketed by tag length for allocation free name lookup
+  private static final VastElementType[][] TYPES_BY_TAG_LENGTH;
+
+  static {
+    int maxLength = 0;
+    for (VastElementType type : TYPES) {
+      maxLength = Math.max(maxLength, type.getTag().length());
+    }
+    TYPES_BY_TAG_LENGTH = new VastElementType[maxLength + 1][0];
+    for (VastElementType type : TYPES) {
+      final int length = type.getTag().length();
+      VastElementType[] bucket = Arrays.copyOf(TYPES_BY_TAG_LENGTH[length],
+          TYPES_BY_TAG_LENGTH[length].length + 1);
+      bucket[bucket.length - 1] = type;
+      TYPES_BY_TAG_LENGTH[length] = bucket;
+    }
+  }
+
+  private CharSequence doc;
+
+  private int size;
+  private int[] types = new int[DEFAULT_CAPACITY];
+  private int[] openStarts = new int[DEFAULT_CAPACITY];
+  private int[] openEnds = new int[DEFAULT_CAPACITY];
+  private int[] closeStarts = new int[DEFAULT_CAPACITY];
+  private int[] closeEnds = new int[DEFAULT_CAPACITY];
+  private int[] parents = new int[DEFAULT_CAPACITY];
+
+  // element numbers of each type in document order
+  private final int[][] elementsByType = new int[TYPES.length][];
+  private final int[] elementsByTypeSize = new int[TYPES.length];
+  // open elements while scanning
+  private int[] stack = new int[16];
+
+  private VastIndex(CharSequence doc) {
+    this.doc = doc;
+  }
+
+  /**
+   * Index a VAST doc.
+   * @param doc       {@link CharSequence} vast doc
+   * @return          {@link VastIndex} element offset index of the doc
+   */
+  public static VastIndex of(CharSequence doc) {
+    VastIndex index = new VastIndex(doc);
+    index.scan();
+    return index;
+  }
+
+  /**
+   * Index another VAST doc in place, reusing the arrays of this index. Element numbers and offsets
+   * handed out for the previous doc are no longer valid.
+   * @param doc       {@link CharSequence} vast doc
+   * @return          {@link VastIndex} this index, now indexing the doc
+   */
+  public VastIndex reindex(CharSequence doc) {
+    this.doc = doc;
+    this.size = 0;
+    Arrays.fill(elementsByTypeSize, 0);
+    scan();
+    return this;
+  }
+
+  /**
+   * Get the indexed doc.
+   * @return    {@link CharSequence} vast doc
+   */
+  public CharSequence getDoc() {
+    return doc;
+  }
+
+  /**
+   * Get the number of indexed elements.
+   * @return    {@code int} number of elements
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the number of indexed elements of a type.
+   * @param type      {@link VastElementType} element type
+   * @return          {@code int} number of elements of the type
+   */
+  public int count(VastElementType type) {
+    return elementsByTypeSize[type.ordinal()];
+  }
+
+  /**
+   * Get the type of an element.
+   * @param element   {@code int} element number
+   * @return          {@link VastElementType} element type
+   */
+  public VastElementType type(int element) {
+    return TYPES[types[element]];
+  }
+
+  /**
+   * Get the index of the '<' of the open tag of an element.
+   * @param element   {@code int} element number
+   * @return          {@code int} index in the doc
+   */
+  public int openStart(int element) {
+    return openStarts[element];
+  }
+
+  /**
+   * Get the index right after the '>' of the open tag of an element.
+   * @param element   {@code int} element number
+   * @return          {@code int} index in the doc
+   */
+  public int openEnd(int element) {
+    return openEnds[element];
+  }
+
+  /**
+   * Get the index of the '<' of the close tag of an element.
+   * @param element   {@code int} element number
+   * @return          {@code int} index in the doc, or {@link #NOT_FOUND} if the element is never closed
+   */
+  public int closeStart(int element) {
+    return closeStarts[element];
+  }
+
+  /**
+   * Get the index right after the '>' of the close tag of an element.
+   * @param element   {@code int} element number
+   * @return          {@code int} index in the doc, or {@link #NOT_FOUND} if the element is never closed
+   */
+  public int closeEnd(int element) {
+    return closeEnds[element];
+  }
+
+  /**
+   * Get the nearest tracked ancestor of an element.
+   * @param element   {@code int} element number
+   * @return          {@code int} parent element number, or {@link #NOT_FOUND}
+   */
+  public int parent(int element) {
+    return parents[element];
+  }
+
+  /**
+   * Check if an element has a close tag or is self-closing.
+   * @param element   {@code int} element number
+   * @return          {@code boolean} true if closed, false otherwise
+   */
+  public boolean isClosed(int element) {
+    return closeEnds[element] != NOT_FOUND;
+  }
+
+  /**
+   * Check if an element is self-closing, e.g. {@code <TrackingEvents/>}.
+   * @param element   {@code int} element number
+   * @return          {@code boolean} true if self-closing, false otherwise
+   */
+  public boolean isSelfClosing(int element) {
+    return closeEnds[element] == openEnds[element];
+  }
+
+  /**
+   * Find the first element of a type whose open tag starts in between start and end index.
+   * @param type      {@link VastElementType} element type
+   * @param from      {@code int} start index in the doc, inclusive
+   * @param to        {@code int} end index in the doc, exclusive
+   * @return          {@code int} element number, or {@link #NOT_FOUND}
+   */
+  public int first(VastElementType type, int from, int to) {
+    final int[] elements = elementsByType[type.ordinal()];
+    final int i = lowerBound(elements, elementsByTypeSize[type.ordinal()], from);
+    if (i < elementsByTypeSize[type.ordinal()] && openStarts[elements[i]] < to) {
+      return elements[i];
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Find the last element of a type whose open tag starts in between start and end index.
+   * @param type      {@link VastElementType} element type
+   * @param from      {@code int} start index in the doc, inclusive
+   * @param to        {@code int} end index in the doc, exclusive
+   * @return          {@code int} element number, or {@link #NOT_FOUND}
+   */
+  public int last(VastElementType type, int from, int to) {
+    final int[] elements = elementsByType[type.ordinal()];
+    final int i = lowerBound(elements, elementsByTypeSize[type.ordinal()], to) - 1;
+    if (i >= 0 && openStarts[elements[i]] >= from) {
+      return elements[i];
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Find the first descendant element of a type inside a parent element.
+   * @param parent    {@code int} parent element number
+   * @param type      {@link VastElementType} element type
+   * @return          {@code int} element number, or {@link #NOT_FOUND}
+   */
+  public int firstDescendant(int parent, VastElementType type) {
+    return first(type, openEnds[parent], contentEnd(parent));
+  }
+
+  /**
+   * Find the first direct child element of a type inside a parent element.
+   * @param parent    {@code int} parent element number
+   * @param type      {@link VastElementType} element type
+   * @return          {@code int} element number, or {@link #NOT_FOUND}
+   */
+  public int firstChild(int parent, VastElementType type) {
+    final int[] elements = elementsByType[type.ordinal()];
+    final int end = contentEnd(parent);
+    for (int i = lowerBound(elements, elementsByTypeSize[type.ordinal()], openEnds[parent]);
+        i < elementsByTypeSize[type.ordinal()] && openStarts[elements[i]] < end; i++) {
+      if (parents[elements[i]] == parent) {
+        return elements[i];
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Find the last direct child element of a type inside a parent element.
+   * @param parent    {@code int} parent element number
+   * @param type      {@link VastElementType} element type
+   * @return          {@code int} element number, or {@link #NOT_FOUND}
+   */
+  public int lastChild(int parent, VastElementType type) {
+    final int[] elements = elementsByType[type.ordinal()];
+    final int start = openEnds[parent];
+    for (int i = lowerBound(elements, elementsByTypeSize[type.ordinal()], contentEnd(parent)) - 1;
+        i >= 0 && openStarts[elements[i]] >= start; i--) {
+      if (parents[elements[i]] == parent) {
+        return elements[i];
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Get the value of an attribute from the open tag of an element, e.g. id of {@code <Ad id="123">}. Both
+   * quote styles and whitespace around '=' are accepted, the name must match exactly. The cost is linear in
+   * the length of the open tag.
+   * @param element   {@code int} element number
+   * @param name      {@link String} attribute name
+   * @return          {@link String} attribute value, or null if the element has no such attribute
+   */
+  public String getAttribute(int element, String name) {
+    final int valueStart = attributeValueStart(element, name);
+    return valueStart == NOT_FOUND ? null : doc.subSequence(valueStart, valueEnd(element, valueStart)).toString();
+  }
+
+  /**
+   * Get the value of a non-negative integer attribute from the open tag of an element without creating a
+   * string, e.g. sequence of {@code <Ad sequence="2">}.
+   * @param element         {@code int} element number
+   * @param name            {@link String} attribute name
+   * @param defaultValue    {@code int} value if the attribute is missing, empty, not a number or too large
+   * @return                {@code int} attribute value
+   */
+  public int getIntAttribute(int element, String name, int defaultValue) {
+    final int valueStart = attributeValueStart(element, name);
+    if (valueStart == NOT_FOUND) {
+      return defaultValue;
+    }
+    final int valueEnd = valueEnd(element, valueStart);
+    if (valueEnd == valueStart) {
+      return defaultValue;
+    }
+    long value = 0;
+    for (int i = valueStart; i < valueEnd; i++) {
+      final char c = doc.charAt(i);
+      if (c < '0' || c > '9') {
+        return defaultValue;
+      }
+      value = value * 10 + (c - '0');
+      if (value > Integer.MAX_VALUE) {
+        return defaultValue;
+      }
+    }
+    return (int) value;
+  }
+
+  /**
+   * Walk the attributes of the open tag of an element, each name compared as a whole, and find the start of
+   * the quoted value of the named attribute.
+   */
+  private int attributeValueStart(int element, String name) {
+    return attributeValueStart(doc, openStarts[element] + 1 + TYPES[types[element]].getTag().length(),
+        openEnds[element], name);
+  }
+
+  /**
+   * End of an attribute value, i.e. the closing quote matching the one before the value start.
+   */
+  private int valueEnd(int element, int valueStart) {
+    return attributeValueEnd(doc, valueStart, openEnds[element]);
+  }
+
+  /**
+   * Walk the attributes of an open tag that is not indexed, e.g. a root tag sniffed from the first bytes of
+   * a stream, and find the start of the quoted value of the named attribute. Both quote styles and whitespace
+   * around '=' are accepted, the name must match exactly.
+   * @param doc       {@link CharSequence} doc holding the open tag
+   * @param from      {@code int} index right after the tag name
+   * @param end       {@code int} end index of the open tag, exclusive, see {@link #tagEnd(CharSequence, int, int)}
+   * @param name      {@link String} attribute name
+   * @return          {@code int} start index of the attribute value, or {@link #NOT_FOUND} if there is no such
+   *     attribute
+   */
+  public static int attributeValueStart(CharSequence doc, int from, int end, String name) {
+    int i = from;
+    while (i < end) {
+      char c = doc.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '>' || c == '/') {
+        return NOT_FOUND;
+      }
+      final int nameStart = i;
+      while (i < end && (c = doc.charAt(i)) != '=' && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+        i++;
+      }
+      final int nameEnd = i;
+      i = skipWhitespace(doc, i, end);
+      if (i == end || doc.charAt(i) != '=') {
+        // attribute without a value, not well-formed, move on to the next name
+        continue;
+      }
+      i = skipWhitespace(doc, i + 1, end);
+      if (i == end) {
+        return NOT_FOUND;
+      }
+      final char quote = doc.charAt(i);
+      if (quote != '"' && quote != '\'') {
+        // unquoted value, not well-formed, skip it
+        while (i < end && !Character.isWhitespace(doc.charAt(i)) && doc.charAt(i) != '>') {
+          i++;
+        }
+        continue;
+      }
+      final int valueEnd = StringUtil.indexOf(doc, quote, i + 1, end);
+      if (valueEnd == -1) {
+        return NOT_FOUND;
+      }
+      if (nameEnd - nameStart == name.length() && StringUtil.regionMatches(doc, nameStart, name)) {
+        return i + 1;
+      }
+      i = valueEnd + 1;
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Find the end of an attribute value found by {@link #attributeValueStart(CharSequence, int, int, String)},
+   * i.e. the closing quote matching the one before the value start.
+   * @param doc           {@link CharSequence} doc holding the open tag
+   * @param valueStart    {@code int} start index of the attribute value
+   * @param end           {@code int} end index of the open tag, exclusive
+   * @return              {@code int} index of the closing quote, or -1 if the value is not closed
+   */
+  public static int attributeValueEnd(CharSequence doc, int valueStart, int end) {
+    return StringUtil.indexOf(doc, doc.charAt(valueStart - 1), valueStart, end);
+  }
+
+  private static int skipWhitespace(CharSequence doc, int from, int end) {
+    while (from < end && Character.isWhitespace(doc.charAt(from))) {
+      from++;
+    }
+    return from;
+  }
+
+  /**
+   * End of the content of an element, i.e. the start of its close tag, or the end of the doc if the
+   * element is never closed.
+   */
+  private int contentEnd(int element) {
+    return closeStarts[element] == NOT_FOUND ? doc.length() : closeStarts[element];
+  }
+
+  /**
+   * Index of the first element in the list whose open tag starts at or after the offset.
+   */
+  private int lowerBound(int[] elements, int count, int offset) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (openStarts[elements[mid]] < offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Walk the doc once from '<' to '<' and record every tracked element.
+   */
+  private void scan() {
+    final int length = doc.length();
+    int depth = 0;
+    int pos = 0;
+
+    while (pos < length) {
+      final int lt = StringUtil.indexOf(doc, '<', pos, length);
+      if (lt == -1 || lt + 1 >= length) {
+        break;
+      }
+
+      final char next = doc.charAt(lt + 1);
+      if (next == '!') {
+        // comment, CDATA section or DOCTYPE, none of them contain elements
+        if (StringUtil.regionMatches(doc, lt, "<!--")) {
+          pos = skipPast(lt + 4, "-->");
+        } else if (StringUtil.regionMatches(doc, lt, "<![CDATA[")) {
+          pos = skipPast(lt + 9, "]]>");
+        } else {
+          pos = skipPast(lt + 2, ">");
+        }
+        continue;
+      }
+      if (next == '?') {
+        // prolog or processing instruction
+        pos = skipPast(lt + 2, "?>");
+        continue;
+      }
+
+      final boolean isCloseTag = next == '/';
+      final int nameStart = isCloseTag ? lt + 2 : lt + 1;
+      final int nameEnd = nameEnd(nameStart, length);
+      final int gt = tagEnd(nameEnd, length);
+      if (gt == -1) {
+        LOGGER.debug("Unterminated tag at index {}, stop indexing", lt);
+        break;
+      }
+      pos = gt + 1;
+
+      final VastElementType type = lookup(nameStart, nameEnd);
+      if (type == null) {
+        continue;
+      }
+
+      if (isCloseTag) {
+        // close the nearest open element of the same type, elements left open in between are unclosed
+        for (int d = depth - 1; d >= 0; d--) {
+          if (types[stack[d]] == type.ordinal()) {
+            closeStarts[stack[d]] = lt;
+            closeEnds[stack[d]] = gt + 1;
+            depth = d;
+            break;
+          }
+        }
+      } else {
+        final int element = add(type, lt, gt + 1, depth > 0 ? stack[depth - 1] : NOT_FOUND);
+        if (doc.charAt(gt - 1) == '/') {
+          closeStarts[element] = gt + 1;
+          closeEnds[element] = gt + 1;
+        } else {
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth << 1);
+          }
+          stack[depth++] = element;
+        }
+      }
+    }
+
+    if (LOGGER.isTraceEnabled()) {
+      LOGGER.trace("Indexed {} elements in doc of length {}", size, length);
+    }
+  }
+
+  private int add(VastElementType type, int openStart, int openEnd, int parent) {
+    if (size == types.length) {
+      final int capacity = size << 1;
+      types = Arrays.copyOf(types, capacity);
+      openStarts = Arrays.copyOf(openStarts, capacity);
+      openEnds = Arrays.copyOf(openEnds, capacity);
+      closeStarts = Arrays.copyOf(closeStarts, capacity);
+      closeEnds = Arrays.copyOf(closeEnds, capacity);
+      parents = Arrays.copyOf(parents, capacity);
+    }
+    final int element = size++;
+    types[element] = type.ordinal();
+    openStarts[element] = openStart;
+    openEnds[element] = openEnd;
+    closeStarts[element] = NOT_FOUND;
+    closeEnds[element] = NOT_FOUND;
+    parents[element] = parent;
+
+    final int t = type.ordinal();
+    if (elementsByType[t] == null) {
+      elementsByType[t] = new int[8];
+    } else if (elementsByTypeSize[t] == elementsByType[t].length) {
+      elementsByType[t] = Arrays.copyOf(elementsByType[t], elementsByTypeSize[t] << 1);
+    }
+    elementsByType[t][elementsByTypeSize[t]++] = element;
+    return element;
+  }
+
+  private VastElementType lookup(int nameStart, int nameEnd) {
+    final int length = nameEnd - nameStart;
+    if (length <= 0 || length >= TYPES_BY_TAG_LENGTH.length) {
+      return null;
+    }
+    for (VastElementType type : TYPES_BY_TAG_LENGTH[length]) {
+      if (StringUtil.regionMatches(doc, nameStart, type.getTag())) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+  private int nameEnd(int from, int length) {
+    int i = from;
+    while (i < length) {
+      final char c = doc.charAt(i);
+      if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  private int tagEnd(int from, int length) {
+    return tagEnd(doc, from, length);
+  }
+
+  /**
+   * Find the closing '>' of a tag, skipping quoted attribute values.
+   * @param doc       {@link CharSequence} doc holding the tag
+   * @param from      {@code int} index inside the tag to search from
+   * @param to        {@code int} end index of the search, exclusive
+   * @return          {@code int} index of the closing '>', or -1 if the tag is not closed before the end index
+   */
+  public static int tagEnd(CharSequence doc, int from, int to) {
+    char quote = 0;
+    for (int i = from; i < to; i++) {
+      final char c = doc.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '>') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int skipPast(int from, String needle) {
+    final int idx = StringUtil.indexOf(doc, needle, from, doc.length());
+    return idx == -1 ? doc.length() : idx + needle.length();
+  }
+}
@@ -1,8 +1,10 @@
 package io.github.guozheng.jvast.util;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -10,10 +12,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 import io.github.guozheng.jvast.model.Ad;
+import io.github.guozheng.jvast.model.AdSummary;
 import io.github.guozheng.jvast.model.AdTypeVersion;
+import io.github.guozheng.jvast.model.BreakEventElementType;
 import io.github.guozheng.jvast.model.Pair;
 import io.github.guozheng.jvast.model.PixelElementType;
 import io.github.guozheng.jvast.model.TrackingEventElementType;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.model.VastSummary;
 import lombok.experimental.UtilityClass;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -41,15 +47,33 @@ public class VideoAdUtil {
       + "<VAST xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:noNamespaceSchemaLocation=\"vast.xsd\" version=\"3.0\"/>\n";
 
   // regex
-  // extract VASTAdTagURI from a VAST Wrapper doc
+  /**
+   * Extract VASTAdTagURI from a VAST Wrapper doc.
+   * @deprecated backtracks on large docs and requires CDATA, use {@link #getAdTagUri(VastIndex)} or
+   *     {@link #getAdTagUri(VastIndex, int)}
+   */
+  @Deprecated
   public static final Pattern VAST_AD_TAG_URI_PATTERN =
       Pattern.compile("<VASTAdTagURI>.*<!\\[CDATA\\[(.*?)\\]\\]>.*</VASTAdTagURI>", Pattern.DOTALL);
-  // extract ad id, assuming ad ids are integers
+  /**
+   * Extract ad id, assuming ad ids are integers.
+   * @deprecated numeric double quoted ids only, use {@link #getAdId(VastIndex, int)}
+   */
+  @Deprecated
   public static final Pattern VAST_AD_ID_PATTERN =
       Pattern.compile("<Ad[^>]* id=\"(\\d*)\"[^>]*>");
+  /**
+   * Extract ad sequence.
+   * @deprecated double quoted values only, use {@link #getAdSequence(VastIndex, int)}
+   */
+  @Deprecated
   public static final Pattern VAST_AD_SEQUENCE_PATTERN =
       Pattern.compile("<Ad[^>]* sequence=\"(\\d*)\"[^>]*>");
-  // extract creative ids
+  /**
+   * Extract creative ids.
+   * @deprecated numeric double quoted ids only, use {@link #getCreativeIds(VastIndex, int)}
+   */
+  @Deprecated
   public static final Pattern VAST_CREATIVE_ID_PATTERN =
       Pattern.compile("<Creative[^>]* id=\"(\\d*)\"[^>]*>");
 
@@ -68,6 +92,7 @@ public class VideoAdUtil {
   public static final long DEFAULT_CREATIVE_ID = -1L;
   public static final String DEFAULT_AD_ID_STR = "-1";
   public static final String DEFAULT_CREATIVE_ID_STR = "-1";
+  public static final int DEFAULT_AD_SEQUENCE = -1;
   public static final char ELEMENT_END = '>';
 
 
@@ -88,10 +113,19 @@ public class VideoAdUtil {
 
   private static final String AD_OPENING_TAG = "<Ad";
   private static final String AD_OPEN_TAG_END = ">";
-  private static final String AD_CLOSING_TAG = "</Ad>";
   private static final String AD_ID_OPEN_STR = "id=\"";
   private static final String AD_ID_CLOSE_STR = "\"";
 
+  private static final String CDATA_START = "<![CDATA[";
+  private static final String CDATA_END = "]]>";
+  private static final String[] XML_ENTITIES = {"&amp;", "&lt;", "&gt;", "&quot;", "&apos;"};
+  private static final char[] XML_ENTITY_CHARS = {'&', '<', '>', '"', '\''};
+
+  private static final String VAST_OPENING_TAG = "<VAST";
+  private static final String VMAP_OPENING_TAG = "<vmap:VMAP";
+  private static final String VERSION = "version";
+  private static final AdTypeVersion[] AD_TYPE_VERSIONS = AdTypeVersion.values();
+
   private static final String CREATIVES_OPEN_TAG = "<Creatives";
   private static final String CREATIVE_OPEN_TAG_START = "<Creative";
   private static final String CREATIVE_OPEN_TAG_END = ">";
@@ -100,10 +134,21 @@ public class VideoAdUtil {
   public static final String CREATIVE_CLOSE_TAG = "</Creative>";
 
   public static final int INVALID_DURATION_SEC = 0;
+  public static final int INVALID_DURATION_MILLIS = -1;
+  private static final int DURATION_FIELD_LENGTH = 2;
+  private static final int DURATION_MILLIS_LENGTH = 3;
+  private static final int DURATION_MAX_DIGITS = 9;
   public static final String UNKNOWN_CREATIVE_ID = "unknown";
 
   private static final String AD_ELEMENT = "//Ad";
   private static final String SEQUENCE = "sequence";
+  private static final String ID = "id";
+  // universal ad id of a Creative, AdID up to VAST 3.0 and adId since VAST 4.0
+  private static final String CREATIVE_AD_ID = "adId";
+  private static final String CREATIVE_AD_ID_V3 = "AdID";
+  private static final String EVENT = "event";
+  private static final Map<String, TrackingEventElementType> TRACKING_EVENT_TYPES =
+      Maps.uniqueIndex(Arrays.asList(TrackingEventElementType.values()), Enum::name);
 
   private static final String HB_PRICE_MACRO = "hb_pr=%24%7BAUCTION_PRICE%7D";
 
@@ -123,12 +168,16 @@ public class VideoAdUtil {
   public static final String VAST_TRACKING_EVENTS = "<TrackingEvents>";
   public static final String VAST_TRACKING_EVENTS_END = "</TrackingEvents>";
 
+  public static final String VMAP_TRACKING_EVENTS = "<vmap:TrackingEvents>";
+  public static final String VMAP_TRACKING_EVENTS_END = "</vmap:TrackingEvents>";
+
   // note there is no closing > because there might be attributes
   public static final String VAST_LINEAR_ELEMENT_WITH_ATTRS = "<Linear ";
   public static final String VAST_LINEAR_ELEMENT_WITHOUT_ATTRS = "<Linear>";
   public static final String VAST_LINEAR_ELEMENT_END = "</Linear>";
   public static final String VAST_DURATION_ELEMENT_END = "</Duration>";
   public static final String VAST_VIDEO_CLICKS_ELEMENT = "<VideoClicks>";
+  public static final String VAST_VIDEO_CLICKS_END = "</VideoClicks>";
 
   // note there is no closing > because there might be attributes
   public static final String VAST_NON_LINEAR_ADS_WITH_ATTRS = "<NonLinearAds ";
@@ -183,6 +232,127 @@ public class VideoAdUtil {
   }
 
 
+  /**
+   * Check if an Ad element is an InLine vast or not.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param ad        {@code int} Ad element number in the index
+   * @return          {@code boolean} true if the Ad element is an InLine vast, false otherwise
+   */
+  public static boolean isInline(VastIndex index, int ad) {
+    return index.firstChild(ad, VastElementType.InLine) != VastIndex.NOT_FOUND;
+  }
+
+  /**
+   * Check if an Ad element is a Wrapper vast or not.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param ad        {@code int} Ad element number in the index
+   * @return          {@code boolean} true if the Ad element is a Wrapper vast, false otherwise
+   */
+  public static boolean isWrapper(VastIndex index, int ad) {
+    return index.firstChild(ad, VastElementType.Wrapper) != VastIndex.NOT_FOUND;
+  }
+
+  /**
+   * Get the redirect url of a Wrapper element from the element offset index, i.e. the text of its
+   * VASTAdTagURI element.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param wrapper   {@code int} Wrapper element number in the index
+   * @return          {@code String} redirect url, or {@link #EMPTY_WRAPPER_REDIRECT_URL} if there is none
+   */
+  public static String getAdTagUri(VastIndex index, int wrapper) {
+    final int adTagUri = index.firstChild(wrapper, VastElementType.VASTAdTagURI);
+    if (adTagUri == VastIndex.NOT_FOUND || !index.isClosed(adTagUri) || index.isSelfClosing(adTagUri)) {
+      LOGGER.debug("Wrapper has no {} element", VastElementType.VASTAdTagURI);
+      return EMPTY_WRAPPER_REDIRECT_URL;
+    }
+    return getText(index, adTagUri);
+  }
+
+  /**
+   * Get the redirect url of the first VASTAdTagURI element of a doc from the element offset index.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @return          {@code String} redirect url, or {@link #EMPTY_WRAPPER_REDIRECT_URL} if there is none
+   */
+  public static String getAdTagUri(VastIndex index) {
+    final int adTagUri = index.first(VastElementType.VASTAdTagURI, 0, index.getDoc().length());
+    if (adTagUri == VastIndex.NOT_FOUND || !index.isClosed(adTagUri) || index.isSelfClosing(adTagUri)) {
+      LOGGER.debug("Doc has no {} element", VastElementType.VASTAdTagURI);
+      return EMPTY_WRAPPER_REDIRECT_URL;
+    }
+    return getText(index, adTagUri);
+  }
+
+  /**
+   * Get the text of an element from the element offset index, with surrounding whitespace and a CDATA
+   * section removed. XML entities are decoded outside of CDATA, e.g. {@code &amp;} in a url.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param element   {@code int} closed element number in the index
+   * @return          {@code String} element text
+   */
+  public static String getText(VastIndex index, int element) {
+    final CharSequence doc = index.getDoc();
+    int start = skipWhitespace(doc, index.openEnd(element), index.closeStart(element));
+    int end = trimWhitespace(doc, start, index.closeStart(element));
+    if (StringUtil.regionMatches(doc, start, CDATA_START) && end - start >= CDATA_START.length() + CDATA_END.length()
+        && StringUtil.regionMatches(doc, end - CDATA_END.length(), CDATA_END)) {
+      start = skipWhitespace(doc, start + CDATA_START.length(), end - CDATA_END.length());
+      end = trimWhitespace(doc, start, end - CDATA_END.length());
+      return doc.subSequence(start, end).toString();
+    }
+    return StringUtil.indexOf(doc, '&', start, end) == -1
+        ? doc.subSequence(start, end).toString()
+        : decodeEntities(doc, start, end);
+  }
+
+  private static int skipWhitespace(CharSequence doc, int start, int end) {
+    while (start < end && Character.isWhitespace(doc.charAt(start))) {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimWhitespace(CharSequence doc, int start, int end) {
+    while (end > start && Character.isWhitespace(doc.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  /**
+   * Decode the predefined XML entities of a range of a doc, other references are kept as they are.
+   */
+  private static String decodeEntities(CharSequence doc, int start, int end) {
+    StringBuilder sb = new StringBuilder(end - start);
+    int from = start;
+    for (int amp = StringUtil.indexOf(doc, '&', start, end); amp != -1;
+        amp = StringUtil.indexOf(doc, '&', from, end)) {
+      StringUtil.appendTo(sb, doc, from, amp);
+      final int entity = entityAt(doc, amp, end);
+      if (entity == -1) {
+        sb.append('&');
+        from = amp + 1;
+      } else {
+        sb.append(XML_ENTITY_CHARS[entity]);
+        from = amp + XML_ENTITIES[entity].length();
+      }
+    }
+    return StringUtil.appendTo(sb, doc, from, end).toString();
+  }
+
+  private static int entityAt(CharSequence doc, int amp, int end) {
+    for (int i = 0; i < XML_ENTITIES.length; i++) {
+      if (amp + XML_ENTITIES[i].length() <= end && StringUtil.regionMatches(doc, amp, XML_ENTITIES[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Check if a doc is a vmap doc.
    *
@@ -265,26 +435,112 @@ public class VideoAdUtil {
    * @return        {@link AdTypeVersion} ad type and version
    */
   public static AdTypeVersion getVideoAdType(StringBuilder adDoc) {
+    return getVideoAdType((CharSequence) adDoc);
+  }
+
+  /**
+   * Get video ad type and version.
+   *
+   * @param adDoc   {@link CharSequence} ad XML doc, e.g. a {@link ByteCharSequence} over UTF-8 bytes
+   * @return        {@link AdTypeVersion} ad type and version
+   */
+  public static AdTypeVersion getVideoAdType(CharSequence adDoc) {
     LOGGER.debug("video ad: {}", adDoc);
-    String tag = StringUtil.getSubString("<VAST", ">", adDoc, 0, StringUtil.EMPTY);
+    // the root tag and its version attribute are matched in place, nothing is copied out of the doc
+    final int length = adDoc.length();
+    final int vastStart = StringUtil.indexOf(adDoc, VAST_OPENING_TAG, 0, length);
+    // a VMAP doc may carry inline VAST docs, it is a VMAP doc if the VMAP root tag comes first
+    AdTypeVersion adTypeVersion = matchVersion(adDoc, VMAP_OPENING_TAG, AdTypeVersion.VMAP_1_0,
+        vastStart == -1 ? length : vastStart);
+    if (adTypeVersion == null && vastStart != -1) {
+      adTypeVersion = matchVersion(adDoc, VAST_OPENING_TAG, AdTypeVersion.VAST_2_0, length);
+    }
+    if (adTypeVersion == null) {
+      LOGGER.debug("video ad is neither a VAST nor VMAP");
+      return AdTypeVersion.UNKNOWN;
+    }
+    LOGGER.debug("type and version: {}", adTypeVersion);
+    return adTypeVersion;
+  }
 
-    if (!tag.equals(StringUtil.EMPTY)) {
-      //VAST ad
-      String version = StringUtil.getSubString("version=\"", "\"", tag, 0, DEFAULT_VAST_VERSION);
-      LOGGER.debug("type: VAST, version: {}", version);
-      return AdTypeVersion.fromTypeAndVersion("VAST", version);
-    } else {
-      //NOT VAST ad, try VMAP
-      tag = StringUtil.getSubString("<vmap:VMAP", ">", adDoc, 0, StringUtil.EMPTY);
-      if (!tag.equals(StringUtil.EMPTY)) {
-        String version = StringUtil.getSubString("version=\"", "\"", tag, 0, DEFAULT_VMAP_VERSION);
-        LOGGER.debug("type: VMAP, version: {}", version);
-        return AdTypeVersion.fromTypeAndVersion("VMAP", version);
-      } else {
-        LOGGER.debug("video ad is neither a VAST nor VMAP");
-        return AdTypeVersion.UNKNOWN;
+  /**
+   * Get video ad type and version from the root element in the index, the doc is not scanned again.
+   *
+   * @param index   {@link VastIndex} element offset index of the ad XML doc
+   * @return        {@link AdTypeVersion} ad type and version
+   */
+  public static AdTypeVersion getVideoAdType(VastIndex index) {
+    final int length = index.getDoc().length();
+    final int vast = index.first(VastElementType.VAST, 0, length);
+    final int vmap = index.first(VastElementType.VmapVMAP, 0, length);
+    // a VMAP doc may carry inline VAST docs, it is a VMAP doc if the VMAP root element comes first,
+    // element numbers follow doc order
+    if (vmap != VastIndex.NOT_FOUND && (vast == VastIndex.NOT_FOUND || vmap < vast)) {
+      return matchVersion(index, vmap, AdTypeVersion.VMAP_1_0);
+    }
+    if (vast != VastIndex.NOT_FOUND) {
+      return matchVersion(index, vast, AdTypeVersion.VAST_2_0);
+    }
+    LOGGER.debug("video ad is neither a VAST nor VMAP");
+    return AdTypeVersion.UNKNOWN;
+  }
+
+  /**
+   * Match the version attribute of an indexed root element against the known versions of an ad type.
+   *
+   * @param index           {@link VastIndex} element offset index of the ad XML doc
+   * @param root            {@code int} element number of the root element
+   * @param defaultVersion  {@link AdTypeVersion} ad type of the root element, used for a missing or unknown version
+   * @return                {@link AdTypeVersion} ad type and version
+   */
+  private static AdTypeVersion matchVersion(VastIndex index, int root, AdTypeVersion defaultVersion) {
+    final String version = index.getAttribute(root, VERSION);
+    for (AdTypeVersion adTypeVersion : AD_TYPE_VERSIONS) {
+      if (adTypeVersion.getType().equals(defaultVersion.getType()) && adTypeVersion.getVersion().equals(version)) {
+        return adTypeVersion;
       }
     }
+    return defaultVersion;
+  }
+
+  /**
+   * Match the version attribute of a root tag against the known versions of an ad type.
+   *
+   * @param adDoc           {@link CharSequence} ad XML doc
+   * @param openingTag      {@link String} opening of the root tag, e.g. {@code <VAST}
+   * @param defaultVersion  {@link AdTypeVersion} ad type of the root tag, used for a missing or unknown version
+   * @param to              {@code int} end index in the doc the root tag has to start before, exclusive
+   * @return                {@link AdTypeVersion} ad type and version, or null if the doc has no such root tag
+   */
+  private static AdTypeVersion matchVersion(CharSequence adDoc, String openingTag, AdTypeVersion defaultVersion,
+      int to) {
+    final int length = adDoc.length();
+    final int tagStart = StringUtil.indexOf(adDoc, openingTag, 0, to);
+    if (tagStart == -1) {
+      return null;
+    }
+    final int attrsStart = tagStart + openingTag.length();
+    // the same attribute walk as the index, quoted '>' and both quote styles are handled
+    final int tagEnd = VastIndex.tagEnd(adDoc, attrsStart, length);
+    if (tagEnd == -1) {
+      return null; // not closed
+    }
+    final int versionStart = VastIndex.attributeValueStart(adDoc, attrsStart, tagEnd, VERSION);
+    if (versionStart == VastIndex.NOT_FOUND) {
+      return defaultVersion;
+    }
+    final int versionEnd = VastIndex.attributeValueEnd(adDoc, versionStart, tagEnd);
+    if (versionEnd == -1) {
+      return defaultVersion;
+    }
+    for (AdTypeVersion adTypeVersion : AD_TYPE_VERSIONS) {
+      if (adTypeVersion.getType().equals(defaultVersion.getType())
+          && adTypeVersion.getVersion().length() == versionEnd - versionStart
+          && StringUtil.regionMatches(adDoc, versionStart, adTypeVersion.getVersion())) {
+        return adTypeVersion;
+      }
+    }
+    return defaultVersion;
   }
 
 
@@ -315,6 +571,79 @@ public class VideoAdUtil {
   }
 
 
+  /**
+   * Get the id of an Ad element from the element offset index.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param ad        {@code int} Ad element number in the index
+   * @return          {@code String} ad id
+   */
+  public static String getAdId(VastIndex index, int ad) {
+    final String adId = index.getAttribute(ad, ID);
+    if (adId == null) {
+      LOGGER.debug("ad response does not have id attribute, use default ad id: {}", DEFAULT_AD_ID_STR);
+      return DEFAULT_AD_ID_STR;
+    }
+    return adId;
+  }
+
+  /**
+   * Get the sequence of an Ad element of a pod from the element offset index.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param ad        {@code int} Ad element number in the index
+   * @return          {@code int} ad sequence, or {@link #DEFAULT_AD_SEQUENCE} if missing or not a number
+   */
+  public static int getAdSequence(VastIndex index, int ad) {
+    return index.getIntAttribute(ad, SEQUENCE, DEFAULT_AD_SEQUENCE);
+  }
+
+  /**
+   * Find all creative ids of an Ad element from the element offset index.
+   * Note that it is not guaranteed that Creative element would contain an id attribute, in that case we use
+   * the default 'unknown' as creative id.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param ad        {@code int} Ad element number in the index
+   * @return          {@code List<String>} creative ids
+   */
+  public static List<String> getCreativeIds(VastIndex index, int ad) {
+    return getCreativeAttributes(index, ad, ID, ID);
+  }
+
+  /**
+   * Find the universal ad ids of all Creative elements of an Ad element from the element offset index, i.e.
+   * the adId attribute, or AdID before VAST 4.0. A Creative element without one gets the default 'unknown'.
+   *
+   * @param index     {@link VastIndex} element offset index of the vast doc
+   * @param ad        {@code int} Ad element number in the index
+   * @return          {@code List<String>} creative ad ids, in doc order
+   */
+  public static List<String> getCreativeAdIds(VastIndex index, int ad) {
+    return getCreativeAttributes(index, ad, CREATIVE_AD_ID, CREATIVE_AD_ID_V3);
+  }
+
+  private static List<String> getCreativeAttributes(VastIndex index, int ad, String name, String fallbackName) {
+    final int end = index.isClosed(ad) ? index.closeStart(ad) : index.getDoc().length();
+    List<String> values = new ArrayList<>(2);
+    for (int creative = index.first(VastElementType.Creative, index.openEnd(ad), end);
+        creative != VastIndex.NOT_FOUND;
+        creative = index.first(VastElementType.Creative, index.openEnd(creative), end)) {
+      String value = index.getAttribute(creative, name);
+      if (value == null && !fallbackName.equals(name)) {
+        value = index.getAttribute(creative, fallbackName);
+      }
+      if (value == null) {
+        LOGGER.debug("<Creative> element does not contain {}, set to default: {}", name, UNKNOWN_CREATIVE_ID);
+        values.add(UNKNOWN_CREATIVE_ID);
+      } else {
+        LOGGER.debug("Found creative {} from doc: {}", name, value);
+        values.add(value);
+      }
+    }
+    return values;
+  }
+
   /**
    * Find all creative ids from the ad response doc using index.
    * Note that it is not guaranteed that Creative element would contain an id attribute, in that case we use
@@ -439,6 +768,64 @@ public class VideoAdUtil {
     return durationSec;
   }
 
+  /**
+   * Parse duration string in the format of HH:mm:ss or HH:mm:ss.mmm into milliseconds. Hours are one or more
+   * digits, minutes and seconds are two digits below 60 and milliseconds are three digits, anything else such
+   * as signs, exponents or NaN is not valid.
+   *
+   * @param duration      {@code String} duration string
+   * @return              {@code int} duration in milliseconds, {@link #INVALID_DURATION_MILLIS} if not valid
+   */
+  public static int durationToMillis(String duration) {
+    final String value = duration.trim();
+    final int minutesStart = value.indexOf(':') + 1;
+    final int secondsStart = minutesStart + DURATION_FIELD_LENGTH + 1;
+    final int millisStart = secondsStart + DURATION_FIELD_LENGTH + 1;
+    final boolean hasMillis = value.length() == millisStart + DURATION_MILLIS_LENGTH;
+    if (minutesStart <= 1 || secondsStart > value.length() || value.charAt(secondsStart - 1) != ':'
+        || value.length() != millisStart - 1 && !(hasMillis && value.charAt(millisStart - 1) == '.')) {
+      LOGGER.debug("Invalid Duration value: {}", duration);
+      return INVALID_DURATION_MILLIS;
+    }
+    final long hours = parseDigits(value, 0, minutesStart - 1);
+    final long minutes = parseDigits(value, minutesStart, secondsStart - 1);
+    final long seconds = parseDigits(value, secondsStart, millisStart - 1);
+    final long millis = hasMillis ? parseDigits(value, millisStart, value.length()) : 0;
+    if (hours < 0 || minutes < 0 || minutes >= 60 || seconds < 0 || seconds >= 60 || millis < 0) {
+      LOGGER.debug("Invalid Duration value: {}", duration);
+      return INVALID_DURATION_MILLIS;
+    }
+    final long total = ((hours * 60 + minutes) * 60 + seconds) * 1000 + millis;
+    if (total > Integer.MAX_VALUE) {
+      LOGGER.debug("Duration value out of range: {}", duration);
+      return INVALID_DURATION_MILLIS;
+    }
+    return (int) total;
+  }
+
+  /**
+   * Parse a range of ASCII digits, signs and any other chars are not accepted.
+   *
+   * @param value         {@code String} string to parse
+   * @param start         {@code int} start index, inclusive
+   * @param end           {@code int} end index, exclusive
+   * @return              {@code long} value of the digits, -1 if the range is empty, not only digits or too long
+   */
+  private static long parseDigits(String value, int start, int end) {
+    if (start >= end || end - start > DURATION_MAX_DIGITS) {
+      return -1;
+    }
+    long result = 0;
+    for (int i = start; i < end; i++) {
+      final char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
   /**
    * Parse a vast doc into a list of {@link Ad}.
    *
@@ -446,46 +833,148 @@ public class VideoAdUtil {
    * @return                  {@code List<Ad>} a list of {@link Ad}
    */
   public static List<Ad> splitVastDoc(String vastDoc) {
-    return splitVastDoc(new StringBuilder(vastDoc));
+    return splitVastDoc(VastIndex.of(vastDoc));
   }
 
+  /**
+   * Parse a vast doc into a list of {@link Ad}.
+   *
+   * @param sb                {@link StringBuilder} vast doc from the given demand source
+   * @return                  {@code List<Ad>} a list of {@link Ad}
+   */
   public static List<Ad> splitVastDoc(StringBuilder sb) {
-    List<Ad> ads = new LinkedList<>();
-
-    int startIndex = sb.indexOf(AD_OPENING_TAG);
+    return splitVastDoc(VastIndex.of(sb));
+  }
 
-    StringBuilder adElement; // each Ad xml element including open and close XML tags
-    String adId;
-    List<String> creativeIds;
+  /**
+   * Split an indexed vast doc into a list of {@link Ad} views, no Ad XML is copied and ids are looked up
+   * in the index when they are first accessed.
+   *
+   * @param index             {@link VastIndex} element offset index of the vast doc
+   * @return                  {@code List<Ad>} a list of {@link Ad}
+   */
+  public static List<Ad> splitVastDoc(VastIndex index) {
+    final CharSequence doc = index.getDoc();
+    List<Ad> ads = new ArrayList<>(index.count(VastElementType.Ad));
 
-    while (startIndex < sb.length() && startIndex != -1) {
-      int adClosingIndex = sb.indexOf(AD_CLOSING_TAG, startIndex);
-      if (adClosingIndex == -1) {
+    for (int ad = index.first(VastElementType.Ad, 0, doc.length()); ad != VastIndex.NOT_FOUND;
+        ad = index.first(VastElementType.Ad, index.closeEnd(ad), doc.length())) {
+      if (!index.isClosed(ad)) {
         LOGGER.debug("vast doc has no more ad element, done parsing vast doc");
         break;
       }
 
-      // process each <Ad> element, convert each <Ad> element into one AdData object
-      adElement = new StringBuilder(sb.substring(startIndex, adClosingIndex + AD_CLOSING_TAG.length()));
-      // update start index to get the next Ad element
-      startIndex = sb.indexOf(AD_OPENING_TAG, adClosingIndex + AD_CLOSING_TAG.length());
-
-      adId = getAdId(adElement);
-      creativeIds = getCreativeIds(adElement);
-
-      Ad ad = Ad.builder()
-          .content(adElement)
-          .adId(adId)
-          .creativeIds(creativeIds)
+      // process each <Ad> element, convert each <Ad> element into one view of the shared doc,
+      // ids are looked up in the index on first access
+      Ad adData = Ad.builder()
+          .source(doc)
+          .start(index.openStart(ad))
+          .end(index.closeEnd(ad))
+          .index(index)
+          .element(ad)
           .build();
 
-      LOGGER.trace("parsed an ad item in response: {}", ad);
-      ads.add(ad);
+      LOGGER.trace("parsed an ad item in response: {}", adData);
+      ads.add(adData);
     }
 
     return ads;
   }
 
+  /**
+   * Summarize a video ad doc, see {@link #summarize(VastIndex)}.
+   *
+   * @param doc               {@link CharSequence} video ad doc
+   * @return                  {@link VastSummary} summary of the doc and each of its Ad elements
+   */
+  public static VastSummary summarize(CharSequence doc) {
+    return summarize(VastIndex.of(doc));
+  }
+
+  /**
+   * Summarize an indexed video ad doc in one walk of the index: ad type and version, and for each Ad element
+   * its id, sequence, Wrapper redirect url, creative ids, durations, MediaFile count and existing Tracking
+   * events. It replaces separate {@link #getVideoAdType(CharSequence)}, {@link #getAdId(VastIndex, int)},
+   * {@link #getCreativeIds(VastIndex, int)} and {@link #getAdDuration(StringBuilder)} calls, which each scan
+   * the doc again.
+   *
+   * @param index             {@link VastIndex} element offset index of the video ad doc
+   * @return                  {@link VastSummary} summary of the doc and each of its Ad elements
+   */
+  public static VastSummary summarize(VastIndex index) {
+    final CharSequence doc = index.getDoc();
+    List<AdSummary> ads = new ArrayList<>(index.count(VastElementType.Ad));
+    for (int ad = index.first(VastElementType.Ad, 0, doc.length()); ad != VastIndex.NOT_FOUND && index.isClosed(ad);
+        ad = index.first(VastElementType.Ad, index.closeEnd(ad), doc.length())) {
+      ads.add(summarizeAd(index, ad));
+    }
+    return VastSummary.builder()
+        .adTypeVersion(getVideoAdType(index))
+        .ads(Collections.unmodifiableList(ads))
+        .build();
+  }
+
+  private static AdSummary summarizeAd(VastIndex index, int ad) {
+    final int end = index.closeEnd(ad);
+    boolean wrapper = false;
+    String adTagUri = EMPTY_WRAPPER_REDIRECT_URL;
+    List<String> creativeIds = new ArrayList<>(2);
+    int[] durations = new int[1];
+    int durationCount = 0;
+    int mediaFileCount = 0;
+    int[] trackingEventCounts = new int[TrackingEventElementType.values().length];
+
+    // element numbers follow doc order, the elements of the Ad are the ones opened after it and before its end
+    for (int element = ad + 1; element < index.size() && index.openStart(element) < end; element++) {
+      switch (index.type(element)) {
+        case Wrapper:
+          wrapper = true;
+          break;
+        case VASTAdTagURI:
+          if (adTagUri.isEmpty() && index.isClosed(element) && !index.isSelfClosing(element)) {
+            adTagUri = getText(index, element);
+          }
+          break;
+        case Creative: {
+          final String creativeId = index.getAttribute(element, ID);
+          creativeIds.add(creativeId == null ? UNKNOWN_CREATIVE_ID : creativeId);
+          break;
+        }
+        case Duration:
+          if (durationCount == durations.length) {
+            durations = Arrays.copyOf(durations, durationCount * 2);
+          }
+          durations[durationCount++] = index.isClosed(element) && !index.isSelfClosing(element)
+              ? durationToMillis(getText(index, element)) : INVALID_DURATION_MILLIS;
+          break;
+        case MediaFile:
+          mediaFileCount++;
+          break;
+        case Tracking:
+          trackingEventCounts[getTrackingEventType(index.getAttribute(element, EVENT)).ordinal()]++;
+          break;
+        default:
+          break;
+      }
+    }
+
+    return AdSummary.builder()
+        .adId(getAdId(index, ad))
+        .sequence(getAdSequence(index, ad))
+        .wrapper(wrapper)
+        .adTagUri(adTagUri)
+        .creativeIds(Collections.unmodifiableList(creativeIds))
+        .durationsMillis(Arrays.copyOf(durations, durationCount))
+        .mediaFileCount(mediaFileCount)
+        .trackingEventCounts(trackingEventCounts)
+        .build();
+  }
+
+  private static TrackingEventElementType getTrackingEventType(String event) {
+    final TrackingEventElementType type = event == null ? null : TRACKING_EVENT_TYPES.get(event);
+    return type == null ? TrackingEventElementType.unknown : type;
+  }
+
 
   /**
    * Get a matching vast prefix given the version.
@@ -538,7 +1027,7 @@ public class VideoAdUtil {
     }
 
     // insert other pixels of the pixel element type, e.g. Impression
-    for (PixelElementType pixelType: pixelMap.keys()) {
+    for (PixelElementType pixelType: pixelMap.keySet()) {
       if (pixelType != PixelElementType.Error) {
         appendPixelElementsOfType(sb, pixelType, pixelMap.get(pixelType));
       }
@@ -651,6 +1140,21 @@ public class VideoAdUtil {
   }
 
 
+  /**
+   * Append tracking event elements of one tracking event type.
+   * @param sb          {@link StringBuilder} string builder for TrackingElement pixels
+   * @param type        {@link TrackingEventElementType} tracking event type
+   * @param pixelUrls   {@code Collection<String>} pixel urls
+   * @return            {@link StringBuilder} string builder with the tracking event elements
+   */
+  public static StringBuilder appendTrackingElementsOfType(StringBuilder sb, TrackingEventElementType type,
+      Collection<String> pixelUrls) {
+    for (String pixelUrl : pixelUrls) {
+      appendTrackingElement(sb, type, pixelUrl);
+    }
+    return sb;
+  }
+
   /**
    * Append one tracking event element.
    * @param sb          {@link StringBuilder} string builder for TrackingElement pixel
@@ -668,4 +1172,25 @@ public class VideoAdUtil {
     return sb;
   }
 
+  /**
+   * Append VMAP AdBreak level tracking elements of one break event type.
+   * @param sb          {@link StringBuilder} string builder for vmap:Tracking pixels
+   * @param type        {@link BreakEventElementType} break event type
+   * @param pixelUrls   {@code Collection<String>} pixel urls
+   * @return            {@link StringBuilder} string builder with the break tracking elements
+   */
+  public static StringBuilder appendBreakTrackingElementsOfType(StringBuilder sb, BreakEventElementType type,
+      Collection<String> pixelUrls) {
+    for (String pixelUrl : pixelUrls) {
+      sb.append("<vmap:Tracking event=\"")
+          .append(type)
+          .append("\"><![CDATA[")
+          .append(pixelUrl)
+          .append("]]></vmap:Tracking>")
+          .append(System.lineSeparator());
+    }
+    LOGGER.debug("Built {} vmap:Tracking elements of type {}", pixelUrls.size(), type);
+    return sb;
+  }
+
 }
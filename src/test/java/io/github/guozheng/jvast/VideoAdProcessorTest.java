@@ -6,17 +6,59 @@ import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_VERSION_2_0;
 import static io.github.guozheng.jvast.util.VideoAdUtil.VAST_VERSION_3_0;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import io.github.guozheng.jvast.model.Ad;
+import io.github.guozheng.jvast.model.AdSummary;
+import io.github.guozheng.jvast.model.AdTypeVersion;
+import io.github.guozheng.jvast.model.BreakEventElementType;
+import io.github.guozheng.jvast.model.CompiledInputData;
 import io.github.guozheng.jvast.model.InputData;
+import io.github.guozheng.jvast.model.MacroValues;
+import io.github.guozheng.jvast.model.ProcessingInput;
+import io.github.guozheng.jvast.model.ProcessingOptions;
 import io.github.guozheng.jvast.model.PixelElementType;
 import io.github.guozheng.jvast.model.TrackingEventElementType;
+import io.github.guozheng.jvast.model.VastElementType;
+import io.github.guozheng.jvast.model.VastSummary;
+import io.github.guozheng.jvast.model.WrapperChain;
+import io.github.guozheng.jvast.model.WrapperChainStatus;
+import io.github.guozheng.jvast.util.ByteCharSequence;
 import io.github.guozheng.jvast.util.FileUtil;
+import io.github.guozheng.jvast.util.Fragment;
+import io.github.guozheng.jvast.util.PixelFragments;
+import io.github.guozheng.jvast.util.Splicer;
+import io.github.guozheng.jvast.util.StringUtil;
+import io.github.guozheng.jvast.util.VastIndex;
 import io.github.guozheng.jvast.util.VideoAdUtil;
 import io.github.guozheng.jvast.vastparser.TrackingEventsType;
 import io.github.guozheng.jvast.vastparser.VastModel;
@@ -137,4 +179,784 @@ public class VideoAdProcessorTest {
     }
   }
 
+  @Test
+  public void testAdsSplicedAgainstOriginalContent() {
+    final String videoAd = readFile("src/test/resources/pixel/vast_3.0_pods_dfp.xml");
+    InputData inputData = newInputData();
+    final PixelFragments fragments = inputData.compile().getFragments();
+
+    // one splicer per Ad, each holding every insertion of its Ad against the unmodified Ad content
+    final List<Ad> ads = VideoAdUtil.splitVastDoc(videoAd);
+    final List<Splicer> splicers = VastProcessor.spliceAds(videoAd, inputData);
+    assertEquals(ads.size(), splicers.size());
+    for (int i = 0; i < ads.size(); i++) {
+      final String original = ads.get(i).toContentString();
+      final String spliced = splicers.get(i).toString();
+      assertTrue(splicers.get(i).insertions() > 1);
+      assertEquals(splicers.get(i).length(), spliced.length());
+      // Ad pixels go right after the last Error of the original Ad
+      final int lastError = original.lastIndexOf("</Error>") + "</Error>".length();
+      assertEquals(original.substring(0, lastError) + fragments.getAdPixels(),
+          spliced.substring(0, lastError + fragments.getAdPixels().length()));
+      assertEquals(original, spliced.replace(fragments.getTrackingEventsElement().toString(), "")
+          .replace(fragments.getTrackingEvents().toString(), "")
+          .replace(fragments.getAdPixels().toString(), ""));
+    }
+
+    // an Ad without Creatives is skipped instead of failing the doc
+    final String noCreatives = "<VAST version=\"3.0\"><Ad id=\"1\"><InLine><AdSystem>x</AdSystem></InLine></Ad></VAST>";
+    assertEquals(0, VastProcessor.spliceAds(noCreatives, inputData).get(0).insertions());
+    assertTrue(process(noCreatives, inputData).contains("<AdSystem>x</AdSystem>"));
+  }
+
+  @Test
+  public void testFragmentsRenderedOncePerInputData() {
+    final String videoAd = readFile("src/test/resources/pixel/vast_3.0_pods_dfp.xml");
+    InputData inputData = newInputData();
+    final PixelFragments fragments = inputData.compile().getFragments();
+    final String output = process(videoAd, inputData);
+    assertEquals(output, process(videoAd, inputData));
+    assertTrue(fragments == inputData.compile().getFragments());
+
+    // every Ad gets the same rendered fragment, and the fragment keeps its UTF-8 bytes
+    final String adPixels = fragments.getAdPixels().toString();
+    assertTrue(adPixels.contains("<![CDATA[https://adclick.com/impression]]>"));
+    assertEquals(VideoAdUtil.splitVastDoc(videoAd).size(), StringUtil.countNeedles(output, adPixels));
+    final ByteCharSequence utf8 = ((Fragment) fragments.getAdPixels()).getUtf8();
+    assertEquals(adPixels, new String(utf8.getBytes(), utf8.getOffset(), utf8.length(), StandardCharsets.UTF_8));
+
+    // a new map renders new fragments
+    Multimap<PixelElementType, String> pixelMap = ArrayListMultimap.create();
+    pixelMap.put(PixelElementType.Impression, "https://adclick.com/second");
+    inputData.setPixelMap(pixelMap);
+    assertTrue(fragments != inputData.compile().getFragments());
+    assertTrue(inputData.compile().getFragments().getAdPixels().toString().contains("https://adclick.com/second"));
+  }
+
+  @Test
+  public void testUtf8BytesProcessingMatchesString() throws IOException {
+    final String[] filePaths = {
+        "src/test/resources/pixel/vast_2.0_inline_companion_ads.xml",
+        "src/test/resources/pixel/vast_2.0_wrapper.xml",
+        "src/test/resources/pixel/vast_3.0_inline_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_pods_dfp.xml"
+    };
+
+    Multimap<PixelElementType, String> pixelMap = ArrayListMultimap.create();
+    pixelMap.put(PixelElementType.Impression, "https://adclick.com/impression?q=\u00e9\u65e5\ud83d\ude00");
+    Multimap<TrackingEventElementType, String> trackingEventMap = ArrayListMultimap.create();
+    trackingEventMap.put(TrackingEventElementType.start, "https://adclick.com/start");
+    InputData inputData = InputData.builder()
+        .pixelMap(pixelMap)
+        .trackingEventMap(trackingEventMap)
+        .build();
+
+    for (String filePath : filePaths) {
+      final byte[] bytes = Files.readAllBytes(Paths.get(filePath));
+      final String videoAd = new String(bytes, StandardCharsets.UTF_8);
+      final String expected = process(videoAd, inputData);
+
+      assertEquals(expected, new String(process(bytes, inputData), StandardCharsets.UTF_8));
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+      direct.flip();
+      assertEquals(expected, StandardCharsets.UTF_8.decode(process(direct, inputData)).toString());
+      assertEquals(expected, process((CharSequence) CharBuffer.wrap(videoAd), inputData).toString());
+
+      StringWriter writer = new StringWriter();
+      process(videoAd, inputData, writer);
+      assertEquals(expected, writer.toString());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      process(bytes, inputData, Channels.newChannel(out));
+      assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+      assertEquals(expected, VideoAdProcessor.processToEditScript(bytes, inputData).toString());
+    }
+  }
+
+  @Test
+  public void testStreamingProcessingMatchesBytes() throws Exception {
+    final byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/pixel/vast_3.0_pods_dfp.xml"));
+
+    InputData inputData = newInputData();
+
+    final byte[] expected = process(bytes, inputData);
+    for (int chunkSize : new int[] {1, 7, 64, bytes.length}) {
+      assertTrue("chunk size " + chunkSize, Arrays.equals(expected, stream(bytes, inputData, chunkSize)));
+    }
+
+    // the type is known once the root element has been fed
+    StreamingVastProcessor processor = new StreamingVastProcessor(inputData, Runnable::run, Flow.defaultBufferSize());
+    processor.consume(buffer -> { });
+    processor.feed(ByteBuffer.wrap(bytes, 0, 7));
+    assertEquals(null, processor.getAdTypeVersion());
+    processor.feed(ByteBuffer.wrap(bytes, 7, bytes.length - 7));
+    assertEquals(AdTypeVersion.VAST_3_0, processor.getAdTypeVersion());
+    processor.finish();
+  }
+
+  @Test
+  public void testStreamingVmapMatchesBytes() throws Exception {
+    final String inLine = readFile("src/test/resources/pixel/vast_3.0_inline_dfp.xml");
+    final String inLineVmap = "<vmap:VMAP xmlns:vmap=\"http://www.iab.net/videosuite/vmap\" version=\"1.0\">\n"
+        + "  <vmap:AdBreak timeOffset=\"start\" breakType=\"linear\" breakId=\"preroll\">\n"
+        + "    <vmap:AdSource id=\"preroll-ad\"><vmap:VASTAdData>\n" + inLine + "\n</vmap:VASTAdData></vmap:AdSource>\n"
+        + "  </vmap:AdBreak>\n"
+        + "  <!-- <vmap:AdBreak timeOffset=\"end\"></vmap:AdBreak> -->\n"
+        + "  <vmap:AdBreak timeOffset=\"end\" breakType=\"linear\"><vmap:TrackingEvents/></vmap:AdBreak>\n"
+        + "</vmap:VMAP>\n";
+    InputData inputData = newInputData(BreakEventElementType.breakStart);
+
+    final byte[][] docs = {
+        Files.readAllBytes(Paths.get("src/test/resources/pixel/vmap_1.0_spotx.xml")),
+        inLineVmap.getBytes(StandardCharsets.UTF_8)
+    };
+    for (byte[] bytes : docs) {
+      final byte[] expected = process(bytes, inputData);
+      assertTrue(StringUtil.countNeedles(new String(expected, StandardCharsets.UTF_8), "adclick.com/breakStart") > 0);
+      for (int chunkSize : new int[] {1, 7, 64, bytes.length}) {
+        assertEquals("chunk size " + chunkSize, new String(expected, StandardCharsets.UTF_8),
+            new String(stream(bytes, inputData, chunkSize), StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  private static byte[] stream(byte[] bytes, ProcessingInput inputData, int chunkSize) throws Exception {
+    StreamingVastProcessor processor = new StreamingVastProcessor(inputData, Runnable::run, Flow.defaultBufferSize());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompletableFuture<Void> done = processor.consume(
+        buffer -> out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      processor.feed(ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i)));
+    }
+    processor.finish();
+    done.get(5, TimeUnit.SECONDS);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testVast4KeepsEnvelope() throws Exception {
+    final byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/pixel/vast_4.2_inline_pod.xml"));
+    final String videoAd = new String(bytes, StandardCharsets.UTF_8);
+    assertEquals(AdTypeVersion.VAST_4_2, VideoAdUtil.getVideoAdType(videoAd));
+    assertEquals(AdTypeVersion.VAST_4_2, AdTypeVersion.fromTypeAndVersion("VAST", "4.2"));
+
+    // nothing to insert, the doc is copied as it is
+    assertEquals(videoAd, process(videoAd, InputData.builder().build()));
+
+    InputData inputData = newInputData();
+    final String output = process(videoAd, inputData);
+    LOGGER.debug("Processed VAST 4.2: {}", output);
+
+    // the prolog, the root element with its namespaces and the comment are kept
+    final String envelope = videoAd.substring(0, videoAd.indexOf("<Ad "));
+    assertTrue(output.startsWith(envelope));
+    assertTrue(output.endsWith(videoAd.substring(videoAd.lastIndexOf("</Ad>"))));
+    // everything outside of the insertions is unchanged
+    final PixelFragments fragments = inputData.compile().getFragments();
+    assertEquals(videoAd, output.replace(fragments.getTrackingEventsElement().toString(), "")
+        .replace(fragments.getTrackingEvents().toString(), "")
+        .replace(fragments.getAdPixels().toString(), ""));
+    // without Impression pixels go before ViewableImpression and AdVerifications
+    final int secondAd = output.indexOf("<Ad id=\"20002\"");
+    assertTrue(output.indexOf("https://adclick.com/impression", secondAd) < output.indexOf("<ViewableImpression",
+        secondAd));
+
+    // the streaming output keeps the envelope too
+    assertEquals(output, new String(stream(bytes, inputData, 7), StandardCharsets.UTF_8));
+    assertTrue(Arrays.equals(output.getBytes(StandardCharsets.UTF_8), process(bytes, inputData)));
+    assertEquals(output, VideoAdProcessor.processToEditScript(bytes, inputData).toString());
+
+    // a single-quoted version, with a quoted '>' before it, is a VAST 4.2 doc too
+    final String singleQuoted = videoAd.replace("<VAST version=\"4.2\"", "<VAST x='>' version='4.2'");
+    final byte[] singleQuotedBytes = singleQuoted.getBytes(StandardCharsets.UTF_8);
+    assertEquals(AdTypeVersion.VAST_4_2, VideoAdUtil.getVideoAdType(singleQuoted));
+    assertEquals(AdTypeVersion.VAST_4_2, VideoAdUtil.summarize(singleQuoted).getAdTypeVersion());
+    final String singleQuotedOutput = process(singleQuoted, inputData);
+    assertTrue(singleQuotedOutput.startsWith(singleQuoted.substring(0, singleQuoted.indexOf("<Ad "))));
+    assertEquals(output.substring(output.indexOf("<Ad ")),
+        singleQuotedOutput.substring(singleQuotedOutput.indexOf("<Ad ")));
+    for (int chunkSize : new int[] {1, 7, singleQuotedBytes.length}) {
+      assertEquals(singleQuotedOutput,
+          new String(stream(singleQuotedBytes, inputData, chunkSize), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testIndexExtractorsMatchRegex() {
+    final String[] filePaths = {
+        "src/test/resources/pixel/vast_2.0_inline_spotx.xml",
+        "src/test/resources/pixel/vast_2.0_wrapper.xml",
+        "src/test/resources/pixel/vast_3.0_inline_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_pods_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_wrapper_dfp.xml",
+        "src/test/resources/pixel/vast_wrapper.xml"
+    };
+    for (String filePath : filePaths) {
+      final String videoAd = readFile(filePath);
+      VastIndex index = VastIndex.of(videoAd);
+      for (Ad ad : VideoAdUtil.splitVastDoc(index)) {
+        final String adXml = ad.toContentString();
+        Matcher adId = VideoAdUtil.VAST_AD_ID_PATTERN.matcher(adXml);
+        if (adId.find()) {
+          assertEquals(filePath, adId.group(1), ad.getAdId());
+        }
+        Matcher sequence = VideoAdUtil.VAST_AD_SEQUENCE_PATTERN.matcher(adXml);
+        assertEquals(filePath, sequence.find() ? Integer.parseInt(sequence.group(1)) : VideoAdUtil.DEFAULT_AD_SEQUENCE,
+            VideoAdUtil.getAdSequence(index, ad.getElement()));
+        List<String> creativeIds = new ArrayList<>();
+        for (Matcher creativeId = VideoAdUtil.VAST_CREATIVE_ID_PATTERN.matcher(adXml); creativeId.find(); ) {
+          creativeIds.add(creativeId.group(1));
+        }
+        List<String> indexCreativeIds = VideoAdUtil.getCreativeIds(index, ad.getElement());
+        indexCreativeIds.removeIf(VideoAdUtil.UNKNOWN_CREATIVE_ID::equals);
+        assertEquals(filePath, creativeIds, indexCreativeIds);
+      }
+      Matcher adTagUri = VideoAdUtil.VAST_AD_TAG_URI_PATTERN.matcher(videoAd);
+      assertEquals(filePath, adTagUri.find() ? adTagUri.group(1).trim() : VideoAdUtil.EMPTY_WRAPPER_REDIRECT_URL,
+          VideoAdUtil.getAdTagUri(index));
+    }
+
+    // quoting variants, attribute order, non-numeric ids and a VASTAdTagURI without CDATA
+    final String wrapper = "<VAST version='3.0'><Ad sequence = '2'  id='a-1'><Wrapper><AdSystem>x</AdSystem>"
+        + "<VASTAdTagURI>\n  https://ads.example.com/vast?a=1&amp;b=2\n</VASTAdTagURI></Wrapper></Ad>"
+        + "<Ad xid=\"9\" sequence=\"x\" id=\"77\"><InLine><Creatives><Creative adId=\"c1\" id=\"5\"/>"
+        + "<Creative AdID='c2'></Creative><Creative sequence=\"1\"></Creative></Creatives></InLine></Ad></VAST>";
+    VastIndex index = VastIndex.of(wrapper);
+    final int first = index.first(VastElementType.Ad, 0, wrapper.length());
+    final int second = index.first(VastElementType.Ad, index.closeEnd(first), wrapper.length());
+    assertEquals("a-1", VideoAdUtil.getAdId(index, first));
+    assertEquals(2, VideoAdUtil.getAdSequence(index, first));
+    assertEquals("77", VideoAdUtil.getAdId(index, second));
+    assertEquals(VideoAdUtil.DEFAULT_AD_SEQUENCE, VideoAdUtil.getAdSequence(index, second));
+    assertEquals("https://ads.example.com/vast?a=1&b=2", VideoAdUtil.getAdTagUri(index));
+    assertEquals(Arrays.asList("5", VideoAdUtil.UNKNOWN_CREATIVE_ID, VideoAdUtil.UNKNOWN_CREATIVE_ID),
+        VideoAdUtil.getCreativeIds(index, second));
+    assertEquals(Arrays.asList("c1", "c2", VideoAdUtil.UNKNOWN_CREATIVE_ID),
+        VideoAdUtil.getCreativeAdIds(index, second));
+    assertTrue(!VideoAdUtil.VAST_AD_TAG_URI_PATTERN.matcher(wrapper).find());
+  }
+
+  @Test
+  public void testVastSummaryMatchesSeparateCalls() {
+    final String[] filePaths = {
+        "src/test/resources/pixel/vast_2.0_inline_companion_ads.xml",
+        "src/test/resources/pixel/vast_2.0_inline_nonlinear.xml",
+        "src/test/resources/pixel/vast_2.0_inline_spotx.xml",
+        "src/test/resources/pixel/vast_2.0_wrapper.xml",
+        "src/test/resources/pixel/vast_3.0_inline_companion_ads.xml",
+        "src/test/resources/pixel/vast_3.0_inline_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_inline_nonlinear.xml",
+        "src/test/resources/pixel/vast_3.0_pods_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_wrapper_dfp.xml",
+        "src/test/resources/pixel/vast_4.2_inline_pod.xml"
+    };
+    for (String filePath : filePaths) {
+      final String videoAd = readFile(filePath);
+      VastIndex index = VastIndex.of(videoAd);
+      VastSummary summary = VideoAdUtil.summarize(index);
+      assertEquals(filePath, VideoAdUtil.getVideoAdType(videoAd), summary.getAdTypeVersion());
+
+      List<Ad> ads = VideoAdUtil.splitVastDoc(index);
+      assertEquals(filePath, ads.size(), summary.getAds().size());
+      List<Integer> durationSecs = new ArrayList<>();
+      for (int i = 0; i < ads.size(); i++) {
+        final Ad ad = ads.get(i);
+        final String adXml = ad.toContentString();
+        final AdSummary adSummary = summary.getAds().get(i);
+        assertEquals(filePath, ad.getAdId(), adSummary.getAdId());
+        assertEquals(filePath, VideoAdUtil.getAdSequence(index, ad.getElement()), adSummary.getSequence());
+        assertEquals(filePath, VideoAdUtil.isWrapper(index, ad.getElement()), adSummary.isWrapper());
+        assertEquals(filePath, adSummary.isWrapper()
+            ? VideoAdUtil.getAdTagUri(index, index.firstChild(ad.getElement(), VastElementType.Wrapper))
+            : VideoAdUtil.EMPTY_WRAPPER_REDIRECT_URL, adSummary.getAdTagUri());
+        assertEquals(filePath, ad.getCreativeIds(), adSummary.getCreativeIds());
+        assertEquals(filePath, StringUtil.countNeedles(adXml, "<MediaFile "), adSummary.getMediaFileCount());
+        for (TrackingEventElementType type : TrackingEventElementType.values()) {
+          if (type != TrackingEventElementType.unknown) {
+            assertEquals(filePath + " " + type, StringUtil.countNeedles(adXml, "event=\"" + type + "\""),
+                adSummary.getTrackingEventCount(type));
+          }
+        }
+        for (int durationMillis : adSummary.getDurationsMillis()) {
+          durationSecs.add(durationMillis / 1000);
+        }
+      }
+      if (!durationSecs.isEmpty()) {
+        assertEquals(filePath, VideoAdUtil.getAdDuration(new StringBuilder(videoAd)), durationSecs);
+      }
+    }
+
+    VastSummary summary = VideoAdUtil.summarize(readFile("src/test/resources/pixel/vast_4.2_inline_pod.xml"));
+    assertEquals(AdTypeVersion.VAST_4_2, summary.getAdTypeVersion());
+    assertEquals(2, summary.getAds().size());
+    assertEquals("20001", summary.getAds().get(0).getAdId());
+    assertEquals(1, summary.getAds().get(0).getSequence());
+    assertEquals(2, summary.getAds().get(1).getSequence());
+    assertTrue(Arrays.equals(new int[] {16000}, summary.getAds().get(1).getDurationsMillis()));
+    assertEquals(1, summary.getAds().get(0).getTrackingEventCount(TrackingEventElementType.start));
+    assertEquals(0, summary.getAds().get(1).getTrackingEventCount(TrackingEventElementType.start));
+    assertEquals(16500, VideoAdUtil.durationToMillis("00:00:16.500"));
+    assertEquals(3_723_004, VideoAdUtil.durationToMillis(" 1:02:03.004 "));
+    for (String duration : new String[] {"16s", "00:00:1e1", "00:00:NaN", "00:00:16.5", "00:00:+1", "-1:00:00",
+        "00:60:00", "00:00:16.", "00:00:16.5000", ":00:16", "00:00:16:00", "0x1:00:00", "00:0:16"}) {
+      assertEquals(duration, VideoAdUtil.INVALID_DURATION_MILLIS, VideoAdUtil.durationToMillis(duration));
+    }
+
+    // the summary does not expose its state
+    final AdSummary adSummary = summary.getAds().get(1);
+    adSummary.getDurationsMillis()[0] = 0;
+    adSummary.getTrackingEventCounts()[TrackingEventElementType.start.ordinal()] = 5;
+    assertEquals(16000, adSummary.getDurationsMillis()[0]);
+    assertEquals(0, adSummary.getTrackingEventCount(TrackingEventElementType.start));
+    assertThrows(UnsupportedOperationException.class, () -> adSummary.getCreativeIds().clear());
+    assertThrows(UnsupportedOperationException.class, () -> summary.getAds().clear());
+
+    // the type comes from the root element, a VMAP doc is VMAP even if it carries inline VAST docs
+    assertEquals(AdTypeVersion.VMAP_1_0,
+        VideoAdUtil.summarize(readFile("src/test/resources/pixel/vmap_1.0_spotx.xml")).getAdTypeVersion());
+    assertEquals(AdTypeVersion.VMAP_1_0, VideoAdUtil.summarize("<vmap:VMAP version=\"1.0\"><vmap:AdBreak><vmap:AdSource>"
+        + "<vmap:VASTAdData><VAST version=\"3.0\"></VAST></vmap:VASTAdData></vmap:AdSource></vmap:AdBreak></vmap:VMAP>")
+        .getAdTypeVersion());
+    assertEquals(AdTypeVersion.VAST_3_0, VideoAdUtil.summarize("<VAST version='3.0'><Ad/></VAST>").getAdTypeVersion());
+    assertEquals(AdTypeVersion.VAST_2_0, VideoAdUtil.summarize("<VAST version=\"9.9\"></VAST>").getAdTypeVersion());
+    assertEquals(AdTypeVersion.UNKNOWN, VideoAdUtil.summarize("<VASTAdTagURI>x</VASTAdTagURI>").getAdTypeVersion());
+  }
+
+  @Test
+  public void testCompiledInputDataMatchesInputData() throws IOException {
+    final String videoAd = readFile("src/test/resources/pixel/vast_3.0_pods_dfp.xml");
+
+    Multimap<PixelElementType, String> pixelMap = ArrayListMultimap.create();
+    pixelMap.put(PixelElementType.Impression, "https://adclick.com/impression");
+    pixelMap.put(PixelElementType.Error, "https://adclick.com/error");
+    Multimap<TrackingEventElementType, String> trackingEventMap = ArrayListMultimap.create();
+    trackingEventMap.put(TrackingEventElementType.start, "https://adclick.com/start");
+    InputData inputData = InputData.builder()
+        .pixelMap(pixelMap)
+        .trackingEventMap(trackingEventMap)
+        .build();
+
+    final CompiledInputData compiled = inputData.compile();
+    assertTrue(compiled == inputData.compile());
+    assertEquals(process(videoAd, inputData), process(videoAd, compiled));
+    assertEquals(Arrays.asList("https://adclick.com/impression"), compiled.getPixelUrls(PixelElementType.Impression));
+
+    pixelMap.put(PixelElementType.Impression, "https://adclick.com/impression?q=]]>");
+    try {
+      InputData.builder().pixelMap(pixelMap).trackingEventMap(trackingEventMap).build().compile();
+      fail("URL breaking out of CDATA should be rejected");
+    } catch (IllegalArgumentException e) {
+      LOGGER.info("invalid URL rejected: {}", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testInputDataRecompilesMapsOnSet() {
+    final String videoAd = readFile("src/test/resources/pixel/vast_3.0_inline_dfp.xml");
+    Multimap<PixelElementType, String> pixelMap = ArrayListMultimap.create();
+    pixelMap.put(PixelElementType.Impression, "https://adclick.com/impression");
+    InputData inputData = InputData.builder().pixelMap(pixelMap).build();
+
+    final CompiledInputData compiled = inputData.compile();
+    assertTrue(compiled == inputData.compile());
+    assertEquals(0, StringUtil.countNeedles(process(videoAd, inputData), "https://adclick.com/second"));
+
+    // a map modified in place is not compiled again
+    inputData.getPixelMap().put(PixelElementType.Impression, "https://adclick.com/second");
+    assertTrue(compiled == inputData.compile());
+    assertEquals(0, StringUtil.countNeedles(process(videoAd, inputData), "https://adclick.com/second"));
+
+    // until it is set again
+    inputData.setPixelMap(inputData.getPixelMap());
+    assertTrue(compiled != inputData.compile());
+    assertTrue(inputData.compile() == inputData.compile());
+    assertEquals(1, StringUtil.countNeedles(process(videoAd, inputData), "https://adclick.com/second"));
+
+    Multimap<TrackingEventElementType, String> trackingEventMap = ArrayListMultimap.create();
+    trackingEventMap.put(TrackingEventElementType.start, "https://adclick.com/start");
+    inputData.setTrackingEventMap(trackingEventMap);
+    assertTrue(StringUtil.countNeedles(process(videoAd, inputData), "https://adclick.com/start") > 0);
+  }
+
+  @Test
+  public void testMacroSubstitutionMatchesReplacedUrls() {
+    final String template = readFile("src/test/resources/pixel/vast_2.0_wrapper.xml")
+        .replace("correlator=909250540", "correlator=[CACHEBUSTING]&price=%24%7BAUCTION_PRICE%7D");
+
+    Multimap<PixelElementType, String> pixelMap = ArrayListMultimap.create();
+    pixelMap.put(PixelElementType.Impression,
+        "https://adclick.com/impression?cb=[CACHEBUSTING]&price=${AUCTION_PRICE}&ts=[TIMESTAMP]");
+    Multimap<TrackingEventElementType, String> trackingEventMap = ArrayListMultimap.create();
+    trackingEventMap.put(TrackingEventElementType.start, "https://adclick.com/start?cb=[CACHEBUSTING]");
+    final CompiledInputData compiled = InputData.builder()
+        .pixelMap(pixelMap)
+        .trackingEventMap(trackingEventMap)
+        .build()
+        .compile();
+    final MacroValues macros = new MacroValues()
+        .put(MacroValues.CACHEBUSTING, "12345")
+        .put(MacroValues.AUCTION_PRICE, "1.50");
+
+    // macros without a value, e.g. [TIMESTAMP], are left for the player
+    Multimap<PixelElementType, String> replacedPixelMap = ArrayListMultimap.create();
+    replacedPixelMap.put(PixelElementType.Impression,
+        "https://adclick.com/impression?cb=12345&price=1.50&ts=[TIMESTAMP]");
+    Multimap<TrackingEventElementType, String> replacedTrackingEventMap = ArrayListMultimap.create();
+    replacedTrackingEventMap.put(TrackingEventElementType.start, "https://adclick.com/start?cb=12345");
+    final String expected = process(template.replace("correlator=[CACHEBUSTING]&price=%24%7BAUCTION_PRICE%7D",
+        "correlator=12345&price=1.50"), InputData.builder()
+        .pixelMap(replacedPixelMap)
+        .trackingEventMap(replacedTrackingEventMap)
+        .build());
+
+    assertEquals(expected, process(template, compiled.bind(macros)));
+    assertEquals(expected, new String(process(template.getBytes(StandardCharsets.UTF_8), compiled.bind(macros)),
+        StandardCharsets.UTF_8));
+    assertEquals(expected, VideoAdProcessor.processToEditScript(template.getBytes(StandardCharsets.UTF_8),
+        compiled.bind(macros)).toString());
+  }
+
+  @Test
+  public void testBatchProcessingMatchesSequential() throws Exception {
+    final String[] filePaths = {
+        "src/test/resources/pixel/vast_2.0_inline_companion_ads.xml",
+        "src/test/resources/pixel/vast_2.0_wrapper.xml",
+        "src/test/resources/pixel/vast_3.0_inline_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_pods_dfp.xml",
+        "src/test/resources/pixel/vast_3.0_wrapper_dfp.xml"
+    };
+
+    InputData inputData = newInputData();
+
+    List<String> videoAds = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      for (String filePath : filePaths) {
+        videoAds.add(readFile(filePath));
+      }
+    }
+    videoAds.add("not a video ad");
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<String> results = VideoAdProcessor.processBatch(videoAds, inputData, ProcessingOptions.builder()
+          .executor(executor)
+          .parallelism(4)
+          .sequentialCutoff(2)
+          .build());
+      assertEquals(videoAds.size(), results.size());
+      for (int i = 0; i < videoAds.size(); i++) {
+        assertEquals(process(videoAds.get(i), inputData), results.get(i));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(Arrays.asList(process(videoAds.get(0), inputData)),
+        VideoAdProcessor.processBatch(videoAds.subList(0, 1), inputData));
+  }
+
+  @Test
+  public void testBatchFailureStopsWorkers() throws Exception {
+    final String videoAd = readFile("src/test/resources/pixel/vast_3.0_pods_dfp.xml");
+    InputData inputData = newInputData();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      final ProcessingOptions options = ProcessingOptions.builder()
+          .executor(executor)
+          .parallelism(4)
+          .sequentialCutoff(2)
+          .build();
+      // the failing doc is claimed by the calling thread or by an executor worker, depending on its position
+      for (int broken : new int[] {0, 1, 2, 3, 39}) {
+        final AtomicInteger claimed = new AtomicInteger();
+        final List<CharSequence> videoAds = new AbstractList<CharSequence>() {
+          @Override
+          public CharSequence get(int index) {
+            claimed.incrementAndGet();
+            return index == broken ? brokenVideoAd() : videoAd;
+          }
+
+          @Override
+          public int size() {
+            return 40;
+          }
+        };
+        try {
+          VideoAdProcessor.processBatch(videoAds, inputData, options);
+          fail("a failing video ad must fail the batch");
+        } catch (StackOverflowError e) {
+          LOGGER.debug("batch failed on video ad {} as expected", broken);
+        }
+        // every worker has stopped once the batch fails, no doc is claimed afterwards
+        final int claimedOnFailure = claimed.get();
+        Thread.sleep(50);
+        assertEquals(claimedOnFailure, claimed.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelAdProcessingMatchesSequential() throws IOException {
+    final byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/pixel/vast_3.0_pods_dfp.xml"));
+    final String videoAd = new String(bytes, StandardCharsets.UTF_8);
+
+    InputData inputData = newInputData();
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final ProcessingOptions parallel = ProcessingOptions.builder()
+          .parallelAdCount(2)
+          .forkJoinPool(pool)
+          .build();
+      final ProcessingOptions sequential = ProcessingOptions.builder()
+          .parallelAdCount(Integer.MAX_VALUE)
+          .parallelDocLength(Integer.MAX_VALUE)
+          .build();
+      assertEquals(process((CharSequence) videoAd, inputData, sequential).toString(),
+          process((CharSequence) videoAd, inputData, parallel).toString());
+      assertEquals(process(videoAd, inputData), process((CharSequence) videoAd, inputData, parallel).toString());
+      assertTrue(Arrays.equals(process(bytes, inputData, sequential), process(bytes, inputData, parallel)));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testPooledProcessingMatchesDefault() throws IOException {
+    final String[] filePaths = {
+        "src/test/resources/pixel/vast_3.0_pods_dfp.xml",
+        "src/test/resources/pixel/vast_2.0_inline_companion_ads.xml",
+        "src/test/resources/pixel/vast_3.0_inline_dfp.xml"
+    };
+
+    InputData inputData = newInputData();
+    final ProcessingOptions pooled = ProcessingOptions.builder().pooled(true).build();
+
+    // docs of different sizes in turn, so pooled buffers are reused both grown and shrunk
+    for (int round = 0; round < 2; round++) {
+      for (String filePath : filePaths) {
+        final byte[] bytes = Files.readAllBytes(Paths.get(filePath));
+        final String videoAd = new String(bytes, StandardCharsets.UTF_8);
+        final String expected = process(videoAd, inputData);
+
+        assertEquals(expected, process((CharSequence) videoAd, inputData, pooled).toString());
+        assertEquals(expected, new String(process(bytes, inputData, pooled), StandardCharsets.UTF_8));
+
+        StringWriter writer = new StringWriter();
+        process(videoAd, inputData, pooled, writer);
+        assertEquals(expected, writer.toString());
+
+        StringBuilder builder = new StringBuilder();
+        process(videoAd, inputData, pooled, builder);
+        assertEquals(expected, builder.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        process(bytes, inputData, pooled, out);
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        out = new ByteArrayOutputStream();
+        process(bytes, inputData, pooled, Channels.newChannel(out));
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testAsyncProcessingMatchesSync() throws Exception {
+    final byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/pixel/vast_3.0_pods_dfp.xml"));
+    final String videoAd = new String(bytes, StandardCharsets.UTF_8);
+
+    InputData inputData = newInputData();
+    final String expected = process(videoAd, inputData);
+
+    assertEquals(expected, VideoAdProcessor.processAsync(videoAd, inputData).get(5, TimeUnit.SECONDS));
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final ProcessingOptions options = ProcessingOptions.builder().asyncExecutor(executor).build();
+      assertEquals(expected, new String(VideoAdProcessor.processAsync(bytes, inputData, options)
+          .get(5, TimeUnit.SECONDS), StandardCharsets.UTF_8));
+    } finally {
+      executor.shutdown();
+    }
+
+    // a full bulkhead and a rejecting executor both fall back to the calling thread
+    final ProcessingOptions full = ProcessingOptions.builder()
+        .asyncExecutor(command -> fail("executor must not be used without a permit"))
+        .bulkhead(new Semaphore(0))
+        .build();
+    CompletableFuture<String> future = VideoAdProcessor.processAsync(videoAd, inputData, full);
+    assertTrue(future.isDone());
+    assertEquals(expected, future.get());
+
+    final Semaphore bulkhead = new Semaphore(1);
+    final ProcessingOptions rejecting = ProcessingOptions.builder()
+        .asyncExecutor(command -> {
+          throw new RejectedExecutionException();
+        })
+        .bulkhead(bulkhead)
+        .build();
+    future = VideoAdProcessor.processAsync(videoAd, inputData, rejecting);
+    assertTrue(future.isDone());
+    assertEquals(expected, future.get());
+    assertEquals(1, bulkhead.availablePermits());
+
+    // an Error on the calling thread fails the future instead of escaping to the caller
+    future = VideoAdProcessor.processAsync(brokenVideoAd(), inputData, full);
+    assertTrue(future.isCompletedExceptionally());
+    try {
+      future.get();
+      fail("future of a failed video ad must fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof StackOverflowError);
+    }
+  }
+
+  @Test
+  public void testFlattenWrapperChain() {
+    final String wrapper = readFile("src/test/resources/pixel/vast_3.0_wrapper_dfp.xml");
+    final String inLine = readFile("src/test/resources/pixel/vast_3.0_inline_dfp.xml");
+    final VastModel original = parseWithoutValidation(inLine);
+
+    // two Wrapper hops, each with one Error, one Impression, 15 Linear Tracking and one ClickTracking
+    WrapperChain chain = WrapperChain.builder()
+        .status(WrapperChainStatus.RESOLVED)
+        .adTagUris(Arrays.asList("https://ads.example.com/wrapper", "https://ads.example.com/inline"))
+        .docs(Arrays.asList(wrapper, wrapper, inLine))
+        .build();
+    final String flattened = WrapperFlattener.flatten(chain);
+    LOGGER.debug("Flattened VAST: {}", flattened);
+    assertEquals(AdTypeVersion.VAST_3_0, VideoAdUtil.getVideoAdType(flattened));
+
+    final VastModel model = parseWithoutValidation(flattened);
+    assertEquals(original.getImpressionPixels().size() + 2, model.getImpressionPixels().size());
+    assertEquals(original.getErrorPixels().size() + 2, model.getErrorPixels().size());
+    assertEquals(original.getTrackingPixels().get(TrackingEventsType.start).size() + 2,
+        model.getTrackingPixels().get(TrackingEventsType.start).size());
+    assertEquals(2, model.getVideoClicks().getClickTracking().size());
+    assertEquals(original.getVideoClicks().getClickThrough(), model.getVideoClicks().getClickThrough());
+    assertEquals(original.getMediaFiles().size(), model.getMediaFiles().size());
+
+    try {
+      WrapperFlattener.flatten(WrapperChain.builder()
+          .status(WrapperChainStatus.TIMEOUT)
+          .adTagUris(Arrays.asList("https://ads.example.com/wrapper"))
+          .docs(Arrays.asList(wrapper))
+          .build());
+      fail("an unresolved chain must not be flattened");
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Expected error: {}", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testVmapProcessing() {
+    final String spotx = readFile("src/test/resources/pixel/vmap_1.0_spotx.xml");
+    final String inLine = readFile("src/test/resources/pixel/vast_3.0_inline_dfp.xml");
+    final VastModel original = parseWithoutValidation(inLine);
+    // one break with inline VAST and break tracking, one with an empty vmap:TrackingEvents
+    final String vmap = "<vmap:VMAP xmlns:vmap=\"http://www.iab.net/videosuite/vmap\" version=\"1.0\">\n"
+        + "  <vmap:AdBreak timeOffset=\"start\" breakType=\"linear\" breakId=\"preroll\">\n"
+        + "    <vmap:AdSource id=\"preroll-ad\" allowMultipleAds=\"false\" followRedirects=\"true\">\n"
+        + "      <vmap:VASTAdData>\n" + inLine + "\n      </vmap:VASTAdData>\n"
+        + "    </vmap:AdSource>\n"
+        + "    <vmap:TrackingEvents>\n"
+        + "      <vmap:Tracking event=\"breakStart\"><![CDATA[https://vmap.example.com/start]]></vmap:Tracking>\n"
+        + "    </vmap:TrackingEvents>\n"
+        + "  </vmap:AdBreak>\n"
+        + "  <vmap:AdBreak timeOffset=\"end\" breakType=\"linear\" breakId=\"postroll\">\n"
+        + "    <vmap:TrackingEvents/>\n"
+        + "  </vmap:AdBreak>\n"
+        + "</vmap:VMAP>\n";
+    assertEquals(AdTypeVersion.VMAP_1_0, VideoAdUtil.getVideoAdType(vmap));
+
+    InputData inputData = newInputData(BreakEventElementType.breakStart, BreakEventElementType.breakEnd);
+
+    // the VMAP doc is kept as it is, break tracking is added to each of the three AdTagURI breaks
+    assertEquals(spotx, process(spotx, InputData.builder().build()));
+    final String spotxOutput = process(spotx, inputData);
+    LOGGER.debug("Processed VMAP: {}", spotxOutput);
+    assertTrue(spotxOutput.startsWith(spotx.substring(0, spotx.indexOf("<vmap:AdBreak"))));
+    assertEquals(3, StringUtil.countNeedles(spotxOutput, "<vmap:TrackingEvents>"));
+    assertEquals(3, StringUtil.countNeedles(spotxOutput, "<![CDATA[https://adclick.com/breakStart]]>"));
+    assertEquals(3, StringUtil.countNeedles(spotxOutput, "<![CDATA[https://adclick.com/breakEnd]]>"));
+
+    // pixels go into the inline VAST, break tracking into the existing and the self-closing vmap:TrackingEvents
+    final String output = process(vmap, inputData);
+    LOGGER.debug("Processed VMAP: {}", output);
+    assertEquals(2, StringUtil.countNeedles(output, "<vmap:TrackingEvents>"));
+    assertEquals(2, StringUtil.countNeedles(output, "<![CDATA[https://adclick.com/breakStart]]>"));
+    assertTrue(output.contains("<![CDATA[https://vmap.example.com/start]]>"));
+    final String vast = output.substring(output.indexOf("<VAST"), output.indexOf("</VAST>") + "</VAST>".length());
+    final VastModel model = parseWithoutValidation(vast);
+    assertEquals(original.getImpressionPixels().size() + 1, model.getImpressionPixels().size());
+    // the inline VAST Ad is processed exactly like the Ad of a VAST doc
+    final String vastOutput = process(inLine, inputData);
+    assertEquals(vastOutput.substring(vastOutput.indexOf("<Ad "), vastOutput.indexOf("</Ad>")),
+        output.substring(output.indexOf("<Ad "), output.indexOf("</Ad>")));
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final ProcessingOptions parallel = ProcessingOptions.builder()
+          .parallelAdCount(2)
+          .forkJoinPool(pool)
+          .build();
+      assertEquals(spotxOutput, process((CharSequence) spotx, inputData, parallel).toString());
+      assertEquals(output, process((CharSequence) vmap, inputData, parallel).toString());
+      assertEquals(output, new String(process(vmap.getBytes(StandardCharsets.UTF_8), inputData, parallel),
+          StandardCharsets.UTF_8));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Create the input data most tests process with: one Impression pixel, one start tracking event and a
+   * tracking url per given break event.
+   */
+  private static InputData newInputData(BreakEventElementType... breakEvents) {
+    Multimap<PixelElementType, String> pixelMap = ArrayListMultimap.create();
+    pixelMap.put(PixelElementType.Impression, "https://adclick.com/impression");
+    Multimap<TrackingEventElementType, String> trackingEventMap = ArrayListMultimap.create();
+    trackingEventMap.put(TrackingEventElementType.start, "https://adclick.com/start");
+    Multimap<BreakEventElementType, String> breakEventMap = ArrayListMultimap.create();
+    for (BreakEventElementType breakEvent : breakEvents) {
+      breakEventMap.put(breakEvent, "https://adclick.com/" + breakEvent);
+    }
+    return InputData.builder()
+        .pixelMap(pixelMap)
+        .trackingEventMap(trackingEventMap)
+        .breakEventMap(breakEventMap)
+        .build();
+  }
+
+  /**
+   * Create a video ad failing with an {@link Error} on first access.
+   */
+  private static CharSequence brokenVideoAd() {
+    return new CharSequence() {
+      @Override
+      public int length() {
+        throw new StackOverflowError();
+      }
+
+      @Override
+      public char charAt(int index) {
+        throw new StackOverflowError();
+      }
+
+      @Override
+      public CharSequence subSequence(int start, int end) {
+        throw new StackOverflowError();
+      }
+    };
+  }
+
+  private static VastModel parseWithoutValidation(String vast) {
+    // a new parser per doc, a parser keeps the docs it has seen
+    VastParser parser = new VastParser(VastParser.VAST_3_0_SCHEMA_JVAST, false);
+    assertEquals(VastParserErrorCode.ERROR_NONE.getValue(), parser.process(vast));
+    return parser.getModel();
+  }
+
 }
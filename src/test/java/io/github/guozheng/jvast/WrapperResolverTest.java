@@ -0,0 +1,377 @@
+package io.github.guozheng.jvast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import io.github.guozheng.jvast.model.BreakPrefetch;
+import io.github.guozheng.jvast.model.WrapperChain;
+import io.github.guozheng.jvast.model.WrapperChainStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WrapperResolverTest {
+  private static final String INLINE = "<VAST version=\"3.0\"><Ad id=\"1\"><InLine><AdSystem>stub</AdSystem>"
+      + "<Impression><![CDATA[https://adclick.com/impression]]></Impression><Creatives></Creatives>"
+      + "</InLine></Ad></VAST>";
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private String base;
+  private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    stub("/inline", 200, INLINE, 0);
+    stub("/wrapper1", 200, wrapper("<![CDATA[ " + base + "/wrapper2 ]]>"), 0);
+    // an entity-encoded relative redirect url
+    stub("/wrapper2", 200, wrapper("/inline?a=1&amp;b=2"), 0);
+    stub("/loop1", 200, wrapper(base + "/loop2"), 0);
+    stub("/loop2", 200, wrapper(base + "/loop1"), 0);
+    stub("/slow", 200, INLINE, 2000);
+    stub("/missing", 404, "", 0);
+    stub("/notvast", 200, "{\"id\": 1}", 0);
+    stub("/counted", 200, INLINE, 0);
+    stub("/popular", 200, INLINE, 300);
+    stub("/down", 503, "", 0);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testResolvePodConcurrently() throws Exception {
+    final String pod = "<VAST version=\"3.0\">"
+        + "<Ad id=\"1\" sequence=\"1\"><Wrapper><AdSystem>stub</AdSystem><VASTAdTagURI>" + base + "/wrapper1"
+        + "</VASTAdTagURI></Wrapper></Ad>"
+        + "<Ad id=\"2\" sequence=\"2\"><InLine><AdSystem>stub</AdSystem><Creatives></Creatives></InLine></Ad>"
+        + "<Ad id=\"3\" sequence=\"3\"><Wrapper><AdSystem>stub</AdSystem><VASTAdTagURI><![CDATA["
+        + base + "/loop1]]></VASTAdTagURI></Wrapper></Ad>"
+        + "</VAST>";
+
+    List<WrapperChain> chains = new WrapperResolver().resolveAll(pod).get(10, TimeUnit.SECONDS);
+    assertEquals(3, chains.size());
+
+    assertEquals(WrapperChainStatus.RESOLVED, chains.get(0).getStatus());
+    assertEquals(Arrays.asList(base + "/wrapper1", base + "/wrapper2", base + "/inline?a=1&b=2"),
+        chains.get(0).getAdTagUris());
+    assertEquals(INLINE, chains.get(0).getInLineDoc());
+
+    assertEquals(WrapperChainStatus.RESOLVED, chains.get(1).getStatus());
+    assertTrue(chains.get(1).getAdTagUris().isEmpty());
+    assertNull(chains.get(1).getInLineDoc());
+
+    assertEquals(WrapperChainStatus.LOOP, chains.get(2).getStatus());
+    assertEquals(Arrays.asList(base + "/loop1", base + "/loop2"), chains.get(2).getAdTagUris());
+  }
+
+  @Test
+  public void testResolveLimits() throws Exception {
+    // the request timeout stays well below the 2s delay of /slow but leaves room for a busy test machine
+    WrapperResolver resolver = new WrapperResolver(WrapperResolver.newHttpClient(Duration.ofSeconds(1)), 2,
+        Duration.ofSeconds(1), Duration.ofSeconds(5), 1);
+
+    WrapperChain chain = resolver.resolve(base + "/wrapper1").get(10, TimeUnit.SECONDS);
+    assertEquals(WrapperChainStatus.DEPTH_EXCEEDED, chain.getStatus());
+    assertEquals(2, chain.getDocs().size());
+
+    assertEquals(WrapperChainStatus.TIMEOUT, resolver.resolve(base + "/slow").get(10, TimeUnit.SECONDS).getStatus());
+    assertEquals(WrapperChainStatus.HTTP_ERROR,
+        resolver.resolve(base + "/missing").get(10, TimeUnit.SECONDS).getStatus());
+    assertEquals(WrapperChainStatus.INVALID_RESPONSE,
+        resolver.resolve(base + "/notvast").get(10, TimeUnit.SECONDS).getStatus());
+    // the single request slot is free again after a timed out request
+    assertEquals(WrapperChainStatus.RESOLVED, resolver.resolve(base + "/inline").get(10, TimeUnit.SECONDS)
+        .getStatus());
+  }
+
+  @Test
+  public void testResolveWithCache() throws Exception {
+    assertEquals("http://ads.example.com/Tag?a=1&b=2",
+        WrapperCache.normalize(" HTTP://Ads.Example.com/Tag?cb=123&a=1&ts=[TIMESTAMP]&b=2&x=[CACHEBUSTING]#f "));
+    assertEquals("http://ads.example.com/tag", WrapperCache.normalize("http://ads.example.com/tag?CB=1"));
+
+    WrapperCache cache = new WrapperCache(1 << 20, Duration.ofMinutes(1), 2);
+    WrapperResolver resolver = new WrapperResolver(WrapperResolver.newHttpClient(Duration.ofSeconds(1)), 5,
+        Duration.ofSeconds(2), Duration.ofSeconds(5), 4, cache);
+
+    // seen once, the response is not admitted
+    assertEquals(INLINE, resolver.resolve(base + "/counted?cb=1").get(10, TimeUnit.SECONDS).getInLineDoc());
+    assertEquals(1, cache.rejectionCount());
+    // seen twice, admitted under the key without its cache buster
+    assertEquals(INLINE, resolver.resolve(base + "/counted?cb=2").get(10, TimeUnit.SECONDS).getInLineDoc());
+    assertEquals(1, cache.size());
+    // served from the cache
+    WrapperChain chain = resolver.resolve(base + "/counted?cb=3").get(10, TimeUnit.SECONDS);
+    assertEquals(WrapperChainStatus.RESOLVED, chain.getStatus());
+    assertEquals(INLINE, chain.getInLineDoc());
+    assertEquals(Arrays.asList(base + "/counted?cb=3"), chain.getAdTagUris());
+
+    assertEquals(2, hits.get("/counted").get());
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public void testCoalesceConcurrentFetches() throws Exception {
+    WrapperResolver resolver = new WrapperResolver(WrapperResolver.newHttpClient(Duration.ofSeconds(1)), 5,
+        Duration.ofMillis(1000), Duration.ofSeconds(5), 64);
+
+    // urls only differing in their cache buster share one request
+    List<CompletableFuture<WrapperChain>> chains = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      chains.add(resolver.resolve(base + "/popular?cb=" + i));
+    }
+    for (int i = 0; i < chains.size(); i++) {
+      WrapperChain chain = chains.get(i).get(10, TimeUnit.SECONDS);
+      assertEquals(WrapperChainStatus.RESOLVED, chain.getStatus());
+      assertEquals(INLINE, chain.getInLineDoc());
+      assertEquals(Arrays.asList(base + "/popular?cb=" + i), chain.getAdTagUris());
+    }
+    assertEquals(1, hits.get("/popular").get());
+    assertEquals(1, resolver.fetchCount());
+    assertEquals(7, resolver.coalescedCount());
+
+    // the timeout of a shared request goes to every caller
+    CompletableFuture<WrapperChain> first = resolver.resolve(base + "/slow");
+    CompletableFuture<WrapperChain> second = resolver.resolve(base + "/slow");
+    assertEquals(WrapperChainStatus.TIMEOUT, first.get(10, TimeUnit.SECONDS).getStatus());
+    assertEquals(WrapperChainStatus.TIMEOUT, second.get(10, TimeUnit.SECONDS).getStatus());
+    assertEquals(8, resolver.coalescedCount());
+
+    // a finished request is not shared
+    assertEquals(WrapperChainStatus.RESOLVED, resolver.resolve(base + "/popular").get(10, TimeUnit.SECONDS)
+        .getStatus());
+    assertEquals(2, hits.get("/popular").get());
+  }
+
+  @Test
+  public void testSharedFetchKeepsHopTimeout() throws Exception {
+    WrapperResolver resolver = new WrapperResolver(WrapperResolver.newHttpClient(Duration.ofSeconds(1)), 5,
+        Duration.ofSeconds(2), Duration.ofMillis(1500), 64);
+    stub("/early", 200, wrapper(base + "/shared"), 1000);
+    stub("/shared", 200, INLINE, 800);
+
+    // the first chain requests /shared with about 500 ms left of its total timeout
+    CompletableFuture<WrapperChain> first = resolver.resolve(base + "/early");
+    Thread.sleep(1200);
+    // the second one joins that request with its full total timeout
+    CompletableFuture<WrapperChain> second = resolver.resolve(base + "/shared");
+
+    assertEquals(WrapperChainStatus.TIMEOUT, first.get(10, TimeUnit.SECONDS).getStatus());
+    WrapperChain chain = second.get(10, TimeUnit.SECONDS);
+    assertEquals(WrapperChainStatus.RESOLVED, chain.getStatus());
+    assertEquals(INLINE, chain.getInLineDoc());
+    assertEquals(1, resolver.coalescedCount());
+    assertEquals(1, hits.get("/shared").get());
+  }
+
+  @Test
+  public void testHedgeSlowRequests() throws Exception {
+    WrapperResolver resolver = new WrapperResolver(WrapperResolver.newHttpClient(Duration.ofSeconds(1)), 5,
+        Duration.ofSeconds(4), Duration.ofSeconds(5), 64);
+    for (int i = 0; i < WrapperResolver.MIN_HEDGE_SAMPLES; i++) {
+      assertEquals(WrapperChainStatus.RESOLVED, resolver.resolve(base + "/counted?i=" + i).get(10, TimeUnit.SECONDS)
+          .getStatus());
+    }
+    final Duration p95 = resolver.hostLatency("127.0.0.1:" + server.getAddress().getPort(), 0.95);
+    assertTrue(p95 != null && p95.compareTo(Duration.ofSeconds(1)) < 0);
+
+    // only the first request to the straggler is slow, its duplicate answers first
+    final AtomicInteger straggler = new AtomicInteger();
+    server.createContext("/straggler", exchange -> {
+      try {
+        Thread.sleep(straggler.getAndIncrement() == 0 ? 3000 : 0);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      final byte[] bytes = INLINE.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    });
+    final long start = System.nanoTime();
+    WrapperChain chain = resolver.resolve(base + "/straggler").get(10, TimeUnit.SECONDS);
+    assertEquals(WrapperChainStatus.RESOLVED, chain.getStatus());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    assertEquals(2, straggler.get());
+    assertTrue(resolver.hedgeCount() >= 1);
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    WrapperResolver resolver = new WrapperResolver();
+    for (int i = 0; i < WrapperResolver.CIRCUIT_FAILURE_THRESHOLD; i++) {
+      assertEquals(WrapperChainStatus.HTTP_ERROR, resolver.resolve(base + "/down").get(10, TimeUnit.SECONDS)
+          .getStatus());
+    }
+    // the host is skipped without a request until its open time is over
+    assertEquals(WrapperChainStatus.CIRCUIT_OPEN, resolver.resolve(base + "/inline").get(10, TimeUnit.SECONDS)
+        .getStatus());
+    assertEquals(WrapperChainStatus.CIRCUIT_OPEN, resolver.resolve(base + "/down").get(10, TimeUnit.SECONDS)
+        .getStatus());
+    assertEquals(WrapperResolver.CIRCUIT_FAILURE_THRESHOLD, hits.get("/down").get());
+    assertEquals(0, hits.get("/inline").get());
+  }
+
+  @Test
+  public void testQueuedTimeoutsKeepCircuitClosed() throws Exception {
+    // the only permit is held by a request to another authority of the same server, its headers arrive at
+    // once so the request timeout does not end it, its body only once the test releases it
+    final CountDownLatch release = new CountDownLatch(1);
+    server.createContext("/held", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.flush();
+        release.await(10, TimeUnit.SECONDS);
+        out.write(INLINE.getBytes(StandardCharsets.UTF_8));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    WrapperResolver resolver = new WrapperResolver(WrapperResolver.newHttpClient(Duration.ofSeconds(1)), 5,
+        Duration.ofMillis(300), Duration.ofSeconds(5), 1);
+    final CompletableFuture<WrapperChain> held =
+        resolver.resolve("http://localhost:" + server.getAddress().getPort() + "/held");
+
+    // requests timing out while they wait for the permit are never sent and do not count as host failures
+    for (int i = 0; i <= WrapperResolver.CIRCUIT_FAILURE_THRESHOLD; i++) {
+      assertEquals(WrapperChainStatus.TIMEOUT, resolver.resolve(base + "/inline?i=" + i).get(10, TimeUnit.SECONDS)
+          .getStatus());
+    }
+    assertEquals(0, hits.get("/inline").get());
+    assertEquals(WrapperChainStatus.TIMEOUT, held.get(10, TimeUnit.SECONDS).getStatus());
+
+    release.countDown();
+    WrapperChainStatus status = null;
+    for (int i = 0; i < 20 && status != WrapperChainStatus.RESOLVED; i++) {
+      status = resolver.resolve(base + "/inline").get(10, TimeUnit.SECONDS).getStatus();
+      assertTrue(status != WrapperChainStatus.CIRCUIT_OPEN);
+    }
+    assertEquals(WrapperChainStatus.RESOLVED, status);
+  }
+
+  @Test
+  public void testPrefetchVmapInPlayOrder() throws Exception {
+    // requests are recorded in the order they arrive
+    final List<String> requested = Collections.synchronizedList(new ArrayList<>());
+    server.createContext("/break", exchange -> {
+      requested.add(exchange.getRequestURI().getQuery());
+      final byte[] bytes = INLINE.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    });
+    final String vmap = "<vmap:VMAP xmlns:vmap=\"http://www.iab.net/videosuite/vmap\" version=\"1.0\">"
+        + adBreak("00:00:25", "mid2") + adBreak("end", "post") + adBreak("50%", "half")
+        + "<vmap:AdBreak timeOffset=\"00:00:10\" breakType=\"linear\" breakId=\"inline\"><vmap:AdSource>"
+        + "<vmap:VASTAdData>" + INLINE + "</vmap:VASTAdData></vmap:AdSource></vmap:AdBreak>"
+        + adBreak("00:00:05.500", "mid1") + adBreak("start", "pre")
+        + "</vmap:VMAP>";
+
+    VmapPrefetcher prefetcher = new VmapPrefetcher(new WrapperResolver(), 1, 1);
+    List<BreakPrefetch> prefetches = prefetcher.prefetch(vmap);
+    List<String> breakIds = new ArrayList<>();
+    for (BreakPrefetch prefetch : prefetches) {
+      breakIds.add(prefetch.getBreakId());
+    }
+    assertEquals(Arrays.asList("pre", "mid1", "mid2", "half", "post"), breakIds);
+    assertTrue(prefetches.get(0).isPriority());
+    assertEquals(5, prefetches.get(0).getPosition());
+    assertTrue(!prefetches.get(1).isPriority());
+
+    for (BreakPrefetch prefetch : prefetches) {
+      assertEquals(WrapperChainStatus.RESOLVED, prefetch.getChain().get(10, TimeUnit.SECONDS).getStatus());
+    }
+    // one background request at a time, so the deferred breaks were requested in play order
+    assertEquals(Arrays.asList("pre", "mid1", "mid2", "half", "post"), requested);
+    assertEquals(0, prefetcher.backgroundQueueSize());
+
+    assertTrue(VmapPrefetcher.offsetKey("00:01:00") > VmapPrefetcher.offsetKey("00:00:59.999"));
+    assertEquals(VmapPrefetcher.END_KEY, VmapPrefetcher.offsetKey("100%"));
+    assertEquals(VmapPrefetcher.UNKNOWN_KEY, VmapPrefetcher.offsetKey("soon"));
+  }
+
+  @Test
+  public void testPrefetchDrainsInlineResultsWithoutRecursion() throws Exception {
+    // an invalid url settles without a request, every deferred break completes inside drain
+    final int breaks = 20000;
+    final StringBuilder vmap = new StringBuilder(
+        "<vmap:VMAP xmlns:vmap=\"http://www.iab.net/videosuite/vmap\" version=\"1.0\">");
+    for (int i = 0; i < breaks; i++) {
+      vmap.append("<vmap:AdBreak timeOffset=\"start\" breakType=\"linear\" breakId=\"").append(i)
+          .append("\"><vmap:AdSource><vmap:AdTagURI templateType=\"vast3\"><![CDATA[not a url ").append(i)
+          .append("]]></vmap:AdTagURI></vmap:AdSource></vmap:AdBreak>");
+    }
+    vmap.append("</vmap:VMAP>");
+
+    VmapPrefetcher prefetcher = new VmapPrefetcher(new WrapperResolver(), 1, 1);
+    List<BreakPrefetch> prefetches = prefetcher.prefetch(vmap);
+    assertEquals(breaks, prefetches.size());
+    for (BreakPrefetch prefetch : prefetches) {
+      assertEquals(WrapperChainStatus.INVALID_RESPONSE,
+          prefetch.getChain().get(10, TimeUnit.SECONDS).getStatus());
+    }
+    assertEquals(0, prefetcher.backgroundQueueSize());
+  }
+
+  private String adBreak(String timeOffset, String breakId) {
+    return "<vmap:AdBreak timeOffset=\"" + timeOffset + "\" breakType=\"linear\" breakId=\"" + breakId + "\">"
+        + "<vmap:AdSource id=\"" + breakId + "\"><vmap:AdTagURI templateType=\"vast3\"><![CDATA["
+        + base + "/break?" + breakId + "]]></vmap:AdTagURI></vmap:AdSource></vmap:AdBreak>";
+  }
+
+  private static String wrapper(String adTagUri) {
+    return "<VAST version=\"3.0\"><Ad id=\"1\"><Wrapper><AdSystem>stub</AdSystem><VASTAdTagURI>" + adTagUri
+        + "</VASTAdTagURI><Impression><![CDATA[https://adclick.com/wrapper]]></Impression></Wrapper></Ad></VAST>";
+  }
+
+  private void stub(String path, int status, String body, long delayMillis) {
+    final AtomicInteger count = hits.computeIfAbsent(path, p -> new AtomicInteger());
+    server.createContext(path, exchange -> {
+      count.incrementAndGet();
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    });
+  }
+}
@@ -0,0 +1,68 @@
+package io.github.guozheng.jvast.model;
+
+import static io.github.guozheng.jvast.util.FileUtil.readFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import io.github.guozheng.jvast.util.VideoAdUtil;
+import org.junit.Test;
+
+public class AdTest {
+
+  @Test
+  public void testAdIsOffsetViewOfSource() {
+    final String vast = readFile("src/test/resources/pixel/vast_3.0_pods_dfp.xml");
+    final List<Ad> ads = VideoAdUtil.splitVastDoc(vast);
+    assertEquals(2, ads.size());
+
+    int from = 0;
+    for (Ad ad : ads) {
+      final int start = vast.indexOf("<Ad ", from);
+      final int end = vast.indexOf("</Ad>", start) + "</Ad>".length();
+      assertSame(vast, ad.getSource());
+      assertEquals(start, ad.getStart());
+      assertEquals(end, ad.getEnd());
+      assertEquals(end - start, ad.length());
+      assertEquals(vast.substring(start, end), ad.getContent().toString());
+      assertEquals(vast.substring(start, end), ad.toContentString());
+      assertEquals(vast.substring(start, end), ad.appendTo(new StringBuilder()).toString());
+      from = end;
+    }
+  }
+
+  @Test
+  public void testIdsAreLookedUpOnFirstAccess() {
+    final String vast = "<VAST version=\"3.0\"><Ad id=\"1\"><InLine><Creatives>"
+        + "<Creative id=\"11\"></Creative><Creative></Creative></Creatives></InLine></Ad>"
+        + "<Ad id='2'><InLine><Creatives><Creative id=\"21\"/></Creatives></InLine></Ad></VAST>";
+    final List<Ad> ads = VideoAdUtil.splitVastDoc(vast);
+
+    // nothing is materialized by splitting, a copy without the index only sees the fields as they are
+    assertNull(ads.get(0).toBuilder().index(null).build().getAdId());
+    assertNull(ads.get(0).toBuilder().index(null).build().getCreativeIds());
+    assertEquals("1", ads.get(0).getAdId());
+    assertEquals("1", ads.get(0).toBuilder().index(null).build().getAdId());
+    assertEquals(Arrays.asList("11", VideoAdUtil.UNKNOWN_CREATIVE_ID), ads.get(0).getCreativeIds());
+    assertSame(ads.get(0).getCreativeIds(), ads.get(0).getCreativeIds());
+    assertEquals("2", ads.get(1).getAdId());
+    assertEquals(Arrays.asList("21"), ads.get(1).getCreativeIds());
+  }
+
+  @Test
+  public void testContentOfStandaloneAd() {
+    final StringBuilder content = new StringBuilder("<Ad id=\"7\"><InLine></InLine></Ad>");
+    final Ad built = Ad.builder().content(content).adId("7").build();
+    assertEquals(content.toString(), built.getContent().toString());
+    assertEquals(content.length(), built.length());
+    assertEquals("7", built.getAdId());
+
+    final Ad set = Ad.builder().build();
+    set.setContent(content);
+    assertEquals(0, set.getStart());
+    assertEquals(content.length(), set.getEnd());
+    assertEquals(content.toString(), set.toContentString());
+  }
+}
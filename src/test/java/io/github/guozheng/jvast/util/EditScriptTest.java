@@ -0,0 +1,163 @@
+package io.github.guozheng.jvast.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class EditScriptTest {
+  private static final String SOURCE = "<VAST><Ad id=\"\u00e9\"><InLine><Impression>x</Impression></InLine></Ad></VAST>";
+  private static final Fragment IMPRESSION = new Fragment("<Impression><![CDATA[https://a.com/\u00fc]]></Impression>");
+
+  @Test
+  public void testCharViewMatchesToString() {
+    final EditScript script = build(SOURCE);
+    final String expected = script.toString();
+    assertEquals(expected.length(), script.length());
+    for (int i = 0; i < expected.length(); i++) {
+      assertEquals("index " + i, expected.charAt(i), script.charAt(i));
+    }
+    assertSubSequences(expected, script);
+  }
+
+  @Test
+  public void testByteViewMatchesToString() {
+    final EditScript script = build(new ByteCharSequence(("xx" + SOURCE).getBytes(StandardCharsets.UTF_8), 2,
+        SOURCE.getBytes(StandardCharsets.UTF_8).length));
+    final byte[] utf8 = script.toString().getBytes(StandardCharsets.UTF_8);
+    // the view of a UTF-8 script exposes bytes as Latin-1 chars
+    final String expected = new String(utf8, StandardCharsets.ISO_8859_1);
+    assertEquals(utf8.length, script.length());
+    for (int i = 0; i < expected.length(); i++) {
+      assertEquals("index " + i, expected.charAt(i), script.charAt(i));
+    }
+    for (int start = 0; start <= utf8.length; start++) {
+      for (int end = start; end <= utf8.length; end++) {
+        final EditScript sub = script.subSequence(start, end);
+        assertEquals(start + ".." + end, expected.substring(start, end),
+            new String(toBytes(sub.toByteBuffers()), StandardCharsets.ISO_8859_1));
+      }
+    }
+  }
+
+  @Test
+  public void testByteBuffersAndChannelMatchToString() throws Exception {
+    for (CharSequence source : new CharSequence[] {SOURCE, new ByteCharSequence(SOURCE.getBytes(StandardCharsets.UTF_8))}) {
+      final EditScript script = build(source);
+      final byte[] expected = script.toString().getBytes(StandardCharsets.UTF_8);
+      assertArrayEquals(expected, toBytes(script.toByteBuffers()));
+
+      // a channel accepting a few bytes per call forces writes to resume mid-segment
+      for (int chunk : new int[] {1, 3, 7, Integer.MAX_VALUE}) {
+        final ChunkedChannel channel = new ChunkedChannel(chunk);
+        assertEquals(expected.length, script.writeTo(channel));
+        assertArrayEquals("chunk " + chunk, expected, channel.out.toByteArray());
+      }
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      script.writeTo(out);
+      assertArrayEquals(expected, out.toByteArray());
+
+      // sub-sequences write the same bytes as their slice of the whole output
+      final int cut = SOURCE.indexOf("<InLine>");
+      final int end = script.length() - "</VAST>".length();
+      final EditScript sub = script.subSequence(cut, end);
+      final ChunkedChannel channel = new ChunkedChannel(5);
+      sub.writeTo(channel);
+      assertArrayEquals(sub.toString().getBytes(StandardCharsets.UTF_8), channel.out.toByteArray());
+    }
+  }
+
+  @Test
+  public void testContiguousSlicesAreMerged() {
+    final EditScript script = new EditScript(SOURCE).append(SOURCE, 0, 6).append(SOURCE, 6, 10)
+        .append(IMPRESSION).append(SOURCE, 10, 10).append(SOURCE, 10, SOURCE.length());
+    assertEquals(3, script.segments());
+    assertEquals(SOURCE.substring(0, 10) + IMPRESSION + SOURCE.substring(10), script.toString());
+  }
+
+  /**
+   * Splice fragments after every element of the source, more segments than the initial capacity.
+   */
+  private static EditScript build(CharSequence source) {
+    final EditScript script = new EditScript(source);
+    int last = 0;
+    int gt = StringUtil.indexOf(source, '>', 0, source.length());
+    int n = 0;
+    while (gt != -1) {
+      script.append(source, last, gt + 1);
+      script.append(n++ % 2 == 0 ? IMPRESSION : "<Error>\u00f6</Error>");
+      last = gt + 1;
+      gt = StringUtil.indexOf(source, '>', last, source.length());
+    }
+    return script.append(source, last, source.length());
+  }
+
+  private static void assertSubSequences(String expected, EditScript script) {
+    for (int start = 0; start <= expected.length(); start++) {
+      for (int end = start; end <= expected.length(); end++) {
+        final EditScript sub = script.subSequence(start, end);
+        assertEquals(start + ".." + end, expected.substring(start, end), sub.toString());
+        assertEquals(end - start, sub.length());
+        if (end - start > 2) {
+          assertEquals(expected.substring(start + 1, end - 1), sub.subSequence(1, end - start - 1).toString());
+        }
+      }
+    }
+  }
+
+  private static byte[] toBytes(ByteBuffer[] buffers) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : buffers) {
+      final ByteBuffer copy = buffer.duplicate();
+      while (copy.hasRemaining()) {
+        out.write(copy.get());
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static final class ChunkedChannel implements GatheringByteChannel {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final int chunk;
+
+    ChunkedChannel(int chunk) {
+      this.chunk = chunk;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      long written = 0;
+      for (int i = offset; i < offset + length && written < chunk; i++) {
+        while (srcs[i].hasRemaining() && written < chunk) {
+          out.write(srcs[i].get());
+          written++;
+        }
+      }
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return (int) write(new ByteBuffer[] {src});
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package io.github.guozheng.jvast.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class SplicerTest {
+  private static final String SOURCE = "0123456789";
+
+  @Test
+  public void testInsertAtReplaceStartInEitherOrder() {
+    assertEquals("012[i]R56789", new Splicer(SOURCE).replace(3, 5, "R").insert(3, "[i]").toString());
+    assertEquals("012[i]R56789", new Splicer(SOURCE).insert(3, "[i]").replace(3, 5, "R").toString());
+    // an insertion at the end of a replaced range goes after it
+    assertEquals("012R[i]56789", new Splicer(SOURCE).insert(5, "[i]").replace(3, 5, "R").toString());
+    // insertions at the same offset keep their order
+    assertEquals("012[a][b]R56789",
+        new Splicer(SOURCE).replace(3, 5, "R").insert(3, "[a]").insert(3, "[b]").toString());
+  }
+
+  @Test
+  public void testAdjacentReplacements() {
+    assertEquals("012AB789", new Splicer(SOURCE).replace(5, 7, "B").replace(3, 5, "A").toString());
+    assertEquals("012AB789", new Splicer(SOURCE).replace(3, 5, "A").replace(5, 7, "B").toString());
+    assertEquals(8, new Splicer(SOURCE).replace(3, 5, "A").replace(5, 7, "B").length());
+  }
+
+  @Test
+  public void testOverlappingEditsAreRejected() {
+    assertOverlap(new Splicer(SOURCE).replace(3, 6, "A").replace(5, 7, "B"));
+    assertOverlap(new Splicer(SOURCE).replace(5, 7, "B").replace(3, 6, "A"));
+    assertOverlap(new Splicer(SOURCE).replace(3, 6, "A").insert(4, "[i]"));
+    assertOverlap(new Splicer(SOURCE).insert(4, "[i]").replace(3, 6, "A"));
+    assertOverlap(new Splicer(SOURCE).replace(3, 6, "A").replace(3, 4, "B"));
+  }
+
+  @Test
+  public void testOutputsAgree() throws Exception {
+    final Splicer splicer = new Splicer("<a>\u00e9</a>").insert(8, "\u4e2d").replace(3, 4, "x").insert(3, "y");
+    final String expected = "<a>yx</a>\u4e2d";
+    assertEquals(expected, splicer.toString());
+    byte[] utf8 = new byte[splicer.utf8Length()];
+    assertEquals(utf8.length, splicer.writeUtf8(utf8, 0));
+    assertEquals(expected, new String(utf8, StandardCharsets.UTF_8));
+    StringBuilder appended = new StringBuilder();
+    splicer.appendTo((Appendable) appended);
+    assertEquals(expected, appended.toString());
+  }
+
+  private static void assertOverlap(Splicer splicer) {
+    try {
+      splicer.toString();
+      fail("Overlapping edits should be rejected");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
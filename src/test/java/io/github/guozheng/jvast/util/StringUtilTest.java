@@ -0,0 +1,125 @@
+package io.github.guozheng.jvast.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class StringUtilTest {
+  // the target, its borrow neighbours and sign-bit variants, so false SWAR lanes would show up
+  private static final byte[] ALPHABET = {'<', '=', ';', '>', (byte) ('<' | 0x80), 0x00, 0x01, (byte) 0xFF};
+
+  @Test
+  public void testByteIndexOfEveryLaneAndOffset() {
+    for (int length = 0; length <= 24; length++) {
+      for (int match = -1; match < length; match++) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) '=');
+        if (match >= 0) {
+          bytes[match] = '<';
+        }
+        for (int from = 0; from <= length; from++) {
+          for (int to = from; to <= length + 2; to++) {
+            assertEquals("length=" + length + " match=" + match + " from=" + from + " to=" + to,
+                naiveIndexOf(bytes, (byte) '<', from, to), StringUtil.indexOf(bytes, (byte) '<', from, to));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testByteIndexOfMatchesNaiveScan() {
+    final Random random = new Random(42);
+    for (int run = 0; run < 2000; run++) {
+      final byte[] bytes = new byte[random.nextInt(40)];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+      }
+      final int from = random.nextInt(bytes.length + 1) - 1;
+      final int to = random.nextInt(bytes.length + 3);
+      for (byte b : ALPHABET) {
+        assertEquals(naiveIndexOf(bytes, b, from, to), StringUtil.indexOf(bytes, b, from, to));
+      }
+    }
+  }
+
+  @Test
+  public void testByteNeedleMustEndInsideWindow() {
+    final byte[] bytes = "xx]]>yy]]>".getBytes(StandardCharsets.US_ASCII);
+    assertEquals(2, StringUtil.indexOf(bytes, "]]>", 0, bytes.length));
+    assertEquals(7, StringUtil.indexOf(bytes, "]]>", 3, bytes.length));
+    assertEquals(-1, StringUtil.indexOf(bytes, "]]>", 0, 4));
+    assertEquals(-1, StringUtil.indexOf(bytes, "]]>", 3, 9));
+    assertEquals(7, StringUtil.indexOf(bytes, "]]>", 3, 100));
+  }
+
+  @Test
+  public void testByteCharSequenceViewAtOffset() {
+    // matches outside the view, on both sides, must not be reported
+    final String view = "abc<Impression>0123456789</Impression>xyz";
+    for (int offset = 0; offset < Long.BYTES; offset++) {
+      final String prefix = "<<<<<<<<".substring(0, offset);
+      final byte[] bytes = (prefix + view + "<</Impression>").getBytes(StandardCharsets.US_ASCII);
+      final ByteCharSequence seq = new ByteCharSequence(bytes, offset, view.length());
+      for (int from = -1; from <= view.length(); from++) {
+        for (int to = from; to <= view.length() + 1; to++) {
+          final String window = "offset=" + offset + " from=" + from + " to=" + to;
+          assertEquals(window, naiveIndexOf(view, "<", from, to), StringUtil.indexOf(seq, '<', from, to));
+          assertEquals(window, naiveIndexOf(view, "</Impression>", from, to),
+              StringUtil.indexOf(seq, "</Impression>", from, to));
+          assertEquals(window, naiveIndexOf(view, "<Impression>", from, to),
+              StringUtil.indexOf(seq, "<Impression>", from, to));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCharSequenceTypesAgree() {
+    final String doc = "<VAST><Ad><Impression><![CDATA[https://a.com/?a=1]]></Impression>"
+        + "<Impression><![CDATA[https://b.com/\u00e9]]></Impression></Ad></VAST>";
+    final byte[] utf8 = doc.getBytes(StandardCharsets.UTF_8);
+    final CharSequence[] seqs = {doc, new StringBuilder(doc), CharBuffer.wrap(doc)};
+    final ByteCharSequence bytes = new ByteCharSequence(utf8);
+    final String[] needles = {"<", "]]>", "</Impression>", "\u00e9"};
+    for (String needle : needles) {
+      for (int from = 0; from <= doc.length(); from++) {
+        for (int to : new int[] {from, from + 5, from + 40, doc.length(), doc.length() + 1}) {
+          final int expected = naiveIndexOf(doc, needle, from, to);
+          for (CharSequence seq : seqs) {
+            assertEquals(seq.getClass() + " " + needle + " " + from + ".." + to,
+                expected, StringUtil.indexOf(seq, needle, from, to));
+          }
+          if (needle.length() == 1) {
+            assertEquals(expected, StringUtil.indexOf(doc, needle.charAt(0), from, to));
+            assertEquals(expected, StringUtil.indexOf(new StringBuilder(doc), needle.charAt(0), from, to));
+          }
+        }
+      }
+      // the byte view counts UTF-8 bytes, compare ASCII needles over the whole doc
+      if (StringUtil.isAscii(needle)) {
+        final int expected = doc.indexOf(needle);
+        assertEquals(needle, doc.substring(0, expected).getBytes(StandardCharsets.UTF_8).length,
+            StringUtil.indexOf(bytes, needle, 0, bytes.length()));
+      }
+    }
+  }
+
+  private static int naiveIndexOf(byte[] bytes, byte b, int from, int to) {
+    for (int i = Math.max(from, 0); i < Math.min(to, bytes.length); i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int naiveIndexOf(String doc, String needle, int from, int to) {
+    final int idx = doc.indexOf(needle, Math.max(from, 0));
+    return idx != -1 && idx + needle.length() <= Math.min(to, doc.length()) ? idx : -1;
+  }
+}
@@ -0,0 +1,144 @@
+package io.github.guozheng.jvast.util;
+
+import static io.github.guozheng.jvast.util.VastIndex.NOT_FOUND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import io.github.guozheng.jvast.model.VastElementType;
+import org.junit.Test;
+
+public class VastIndexTest {
+
+  @Test
+  public void testCdataAndCommentsAreSkipped() {
+    final String doc = "<?xml version=\"1.0\"?>\n<!DOCTYPE VAST>\n<VAST version=\"3.0\">"
+        + "<!-- <Ad id=\"commented\"></Ad> -->"
+        + "<Ad id=\"1\"><InLine><Impression><![CDATA[https://a.com/?x=<Ad><Impression>]]></Impression>"
+        + "<Error><![CDATA[https://a.com/err]]]]><![CDATA[>]]></Error></InLine></Ad></VAST>";
+    VastIndex index = VastIndex.of(doc);
+    assertEquals(1, index.count(VastElementType.Ad));
+    assertEquals(1, index.count(VastElementType.Impression));
+    assertEquals(1, index.count(VastElementType.Error));
+
+    final int ad = index.first(VastElementType.Ad, 0, doc.length());
+    assertEquals(doc.indexOf("<Ad id=\"1\">"), index.openStart(ad));
+    assertEquals("1", index.getAttribute(ad, "id"));
+    final int impression = index.firstDescendant(ad, VastElementType.Impression);
+    assertEquals(doc.indexOf("</Impression>"), index.closeStart(impression));
+    assertEquals(doc.indexOf("</Error>") + "</Error>".length(),
+        index.closeEnd(index.firstDescendant(ad, VastElementType.Error)));
+    assertEquals(doc.indexOf("</Ad></VAST>") + "</Ad>".length(), index.closeEnd(ad));
+  }
+
+  @Test
+  public void testQuotedGreaterThanInAttributes() {
+    final String doc = "<Ad id='a>1'><InLine><Creatives>"
+        + "<Creative id=\"x>y\" adId='\"quoted\"'><Linear></Linear></Creative></Creatives></InLine></Ad>";
+    VastIndex index = VastIndex.of(doc);
+    final int ad = index.first(VastElementType.Ad, 0, doc.length());
+    assertEquals(doc.indexOf("<InLine>"), index.openEnd(ad));
+    assertEquals("a>1", index.getAttribute(ad, "id"));
+
+    final int creative = index.first(VastElementType.Creative, 0, doc.length());
+    assertEquals(doc.indexOf("<Linear>"), index.openEnd(creative));
+    assertEquals("x>y", index.getAttribute(creative, "id"));
+    assertEquals("\"quoted\"", index.getAttribute(creative, "adId"));
+    assertNull(index.getAttribute(creative, "sequence"));
+    assertEquals(creative, index.parent(index.first(VastElementType.Linear, 0, doc.length())));
+  }
+
+  @Test
+  public void testWhitespaceInCloseTagsAndSelfClosing() {
+    final String doc = "<Ad id=\"1\"><InLine><Creatives><Creative id=\"2\" /><Creative><Linear>"
+        + "<TrackingEvents/><Duration>00:00:15</Duration  ></Linear\n></Creative></Creatives></InLine></Ad \t>";
+    VastIndex index = VastIndex.of(doc);
+    final int ad = index.first(VastElementType.Ad, 0, doc.length());
+    assertTrue(index.isClosed(ad));
+    assertEquals(doc.length(), index.closeEnd(ad));
+    assertEquals(doc.indexOf("</Ad \t>"), index.closeStart(ad));
+
+    final int selfClosing = index.first(VastElementType.Creative, 0, doc.length());
+    assertTrue(index.isClosed(selfClosing));
+    assertTrue(index.isSelfClosing(selfClosing));
+    assertEquals(index.openEnd(selfClosing), index.closeEnd(selfClosing));
+    assertEquals("2", index.getAttribute(selfClosing, "id"));
+
+    final int linear = index.first(VastElementType.Linear, 0, doc.length());
+    assertEquals(doc.indexOf("</Linear\n>") + "</Linear\n>".length(), index.closeEnd(linear));
+    assertTrue(index.isSelfClosing(index.firstChild(linear, VastElementType.TrackingEvents)));
+    final int duration = index.firstChild(linear, VastElementType.Duration);
+    assertEquals(doc.indexOf("</Duration  >"), index.closeStart(duration));
+    assertFalse(index.isSelfClosing(duration));
+  }
+
+  @Test
+  public void testUnclosedElements() {
+    final String doc = "<VAST version=\"2.0\"><Ad id=\"1\"><InLine><Creatives><Creative><Linear></Creative>"
+        + "</Creatives></InLine></Ad><Ad id=\"2\"><InLine><Impression>";
+    VastIndex index = VastIndex.of(doc);
+    // the Linear left open is closed over by its Creative
+    final int linear = index.first(VastElementType.Linear, 0, doc.length());
+    assertFalse(index.isClosed(linear));
+    assertEquals(NOT_FOUND, index.closeStart(linear));
+    assertEquals(NOT_FOUND, index.closeEnd(linear));
+    assertTrue(index.isClosed(index.first(VastElementType.Creative, 0, doc.length())));
+
+    final int first = index.first(VastElementType.Ad, 0, doc.length());
+    final int second = index.last(VastElementType.Ad, 0, doc.length());
+    assertTrue(index.isClosed(first));
+    assertFalse(index.isClosed(second));
+    assertFalse(index.isClosed(index.firstDescendant(second, VastElementType.Impression)));
+    assertFalse(index.isClosed(index.first(VastElementType.VAST, 0, doc.length())));
+  }
+
+  @Test
+  public void testNestedAds() {
+    final String doc = "<VAST><Ad id=\"outer\"><Wrapper><Extensions><Extension><Ad id=\"inner\"><InLine>"
+        + "</InLine></Ad></Extension></Extensions><VASTAdTagURI>https://a.com</VASTAdTagURI></Wrapper></Ad>"
+        + "<Ad id=\"next\"><InLine></InLine></Ad></VAST>";
+    VastIndex index = VastIndex.of(doc);
+    assertEquals(3, index.count(VastElementType.Ad));
+    final int outer = index.first(VastElementType.Ad, 0, doc.length());
+    final int inner = index.firstDescendant(outer, VastElementType.Ad);
+    final int wrapper = index.firstChild(outer, VastElementType.Wrapper);
+    assertEquals("inner", index.getAttribute(inner, "id"));
+    // untracked elements are skipped, the parent is the nearest tracked ancestor
+    assertEquals(wrapper, index.parent(inner));
+    assertEquals(doc.indexOf("</Ad></Extension>"), index.closeStart(inner));
+    assertEquals(doc.indexOf("</Ad><Ad id=\"next\">"), index.closeStart(outer));
+    assertEquals(NOT_FOUND, index.firstChild(outer, VastElementType.InLine));
+    assertEquals(NOT_FOUND, index.firstChild(outer, VastElementType.Ad));
+
+    final int next = index.first(VastElementType.Ad, index.closeEnd(outer), doc.length());
+    assertEquals("next", index.getAttribute(next, "id"));
+    assertEquals(next, index.last(VastElementType.Ad, 0, doc.length()));
+    assertEquals(index.first(VastElementType.VAST, 0, doc.length()), index.parent(next));
+  }
+
+  @Test
+  public void testReindexAndByteDocs() {
+    final String first = "<VAST><Ad id=\"1\"><InLine><Impression>x</Impression></InLine></Ad></VAST>";
+    final String second = "<VAST><Ad id=\"\u00e9\"><Wrapper></Wrapper></Ad></VAST>";
+    VastIndex index = VastIndex.of(first);
+    assertEquals(1, index.count(VastElementType.Impression));
+    index.reindex(second);
+    assertEquals(0, index.count(VastElementType.Impression));
+    assertEquals(1, index.count(VastElementType.Wrapper));
+    assertEquals("\u00e9", index.getAttribute(index.first(VastElementType.Ad, 0, second.length()), "id"));
+
+    // a UTF-8 byte view is indexed at the same element offsets, counted in bytes
+    final byte[] bytes = ("xx" + first + "yy").getBytes(StandardCharsets.UTF_8);
+    VastIndex byteIndex = VastIndex.of(new ByteCharSequence(bytes, 2, bytes.length - 4));
+    VastIndex charIndex = VastIndex.of(first);
+    assertEquals(charIndex.size(), byteIndex.size());
+    for (int element = 0; element < charIndex.size(); element++) {
+      assertEquals(charIndex.type(element), byteIndex.type(element));
+      assertEquals(charIndex.openStart(element), byteIndex.openStart(element));
+      assertEquals(charIndex.closeEnd(element), byteIndex.closeEnd(element));
+      assertEquals(charIndex.parent(element), byteIndex.parent(element));
+    }
+  }
+}